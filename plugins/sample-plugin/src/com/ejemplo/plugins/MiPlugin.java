@@ -3,28 +3,21 @@ package com.ejemplo.plugins;
 import com.ejemplo.plugins.deps.PluginSupport;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xml.dtm.DTM;
 import org.apache.xml.utils.PrefixResolver;
 import org.apache.xpath.XPath;
 import org.apache.xpath.XPathContext;
 import org.apache.xpath.objects.XObject;
+import simpleapp.ImageConversionService;
 
 import javax.xml.transform.TransformerException;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import javax.imageio.ImageIO;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Plugin externo: incluye handlers de saludo, conversion de imagen y una extension demo.
+ * La conversion de imagen la hace el servicio del host ({@link ImageConversionService}); el plugin solo
+ * interpreta los atributos del elemento.
  */
 public final class MiPlugin {
     private MiPlugin() {
@@ -61,17 +54,14 @@ public final class MiPlugin {
             System.out.println("[mi-plugin] changeImageFormat source=" + sourcePath);
             System.out.println("[mi-plugin] changeImageFormat input=" + input);
         }
-        if (!Files.exists(input)) {
-            throw new TransformerException("No se encontro el fichero de imagen: " + input);
-        }
-
         Path output = resolveOutputPath(readAttribute("output", context, element),
                 readAttribute("suffix", context, element), input, format, baseDir);
         if (debug) {
             System.out.println("[mi-plugin] changeImageFormat output=" + output);
         }
 
-        convertImage(input, output, format, debug);
+        // El host convierte (cache, ImageIO, ImageMagick, limite global y cancelacion): la ruta se emite ya
+        ImageConversionService.getInstance().submit(context, input, output, format);
         emitText(context, emitPath(output, baseDir), "No se pudo emitir la ruta convertida");
     }
 
@@ -95,120 +85,6 @@ public final class MiPlugin {
         }
     }
 
-    private static void convertImage(Path input, Path output, String format, boolean debug)
-            throws TransformerException {
-        try {
-            Path parent = output.getParent();
-            if (parent != null) {
-                Files.createDirectories(parent);
-            }
-        } catch (Exception e) {
-            throw new TransformerException("No se pudo preparar la carpeta destino", e);
-        }
-
-        List<String[]> commands = buildMagickCommands(input, output);
-        TransformerException lastError = null;
-        for (String[] command : commands) {
-            try {
-                if (debug) {
-                    System.out.println("[mi-plugin] trying command: " + String.join(" ", command));
-                }
-                runMagickCommand(command, format);
-                return;
-            } catch (TransformerException ex) {
-                lastError = ex;
-            }
-        }
-        if (lastError != null) {
-            try {
-                convertWithImageIO(input, output, format);
-                return;
-            } catch (Exception ignored) {
-                throw lastError;
-            }
-        }
-        throw new TransformerException("No se encontro un comando valido de ImageMagick para convertir la imagen");
-    }
-
-    private static List<String[]> buildMagickCommands(Path input, Path output) {
-        List<String[]> commands = new ArrayList<>();
-        String magickExe = resolveMagickExecutable();
-        commands.add(new String[]{magickExe, input.toString(), output.toString()});
-        if (!isWindows()) {
-            commands.add(new String[]{"convert", input.toString(), output.toString()});
-        }
-        return commands;
-    }
-
-    private static void runMagickCommand(String[] command, String format)
-            throws TransformerException {
-        Process process;
-        try {
-            process = new ProcessBuilder(command)
-                    .redirectErrorStream(true)
-                    .start();
-        } catch (IOException e) {
-            throw new TransformerException("No se pudo ejecutar ImageMagick (comando '" + command[0] + "')", e);
-        }
-
-        String log;
-        try (InputStream stream = process.getInputStream()) {
-            log = readProcessOutput(stream);
-        } catch (Exception e) {
-            process.destroyForcibly();
-            throw new TransformerException("Fallo al leer salida de ImageMagick", e);
-        }
-
-        try {
-            boolean finished = process.waitFor(60, TimeUnit.SECONDS);
-            if (!finished) {
-                process.destroyForcibly();
-                throw new TransformerException("ImageMagick tardo demasiado en convertir la imagen");
-            }
-            int exitCode = process.exitValue();
-            if (exitCode != 0) {
-                throw new TransformerException("ImageMagick devolvio codigo " + exitCode
-                        + " al convertir a '" + format + "': " + log);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new TransformerException("La conversion de imagen fue interrumpida", e);
-        }
-    }
-
-    private static String readProcessOutput(InputStream stream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        byte[] chunk = new byte[1024];
-        int read;
-        while ((read = stream.read(chunk)) != -1) {
-            buffer.write(chunk, 0, read);
-        }
-        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
-    }
-
-    private static String resolveMagickExecutable() {
-        String configured = System.getProperty("xslt.magick");
-        if (!PluginSupport.isBlank(configured)) {
-            return configured.trim();
-        }
-        return "magick";
-    }
-
-    private static void convertWithImageIO(Path input, Path output, String format) throws Exception {
-        String fmt = PluginSupport.normalizeFormat(format);
-        if ("jpg".equals(fmt)) {
-            fmt = "jpeg";
-        }
-        BufferedImage img = ImageIO.read(input.toFile());
-        if (img == null) {
-            throw new IllegalArgumentException("ImageIO no pudo leer la imagen: " + input);
-        }
-        boolean ok = ImageIO.write(img, fmt, output.toFile());
-        if (!ok) {
-            throw new IllegalArgumentException("ImageIO no soporta escribir formato: " + fmt);
-        }
-    }
-
     private static String resolveNombre(XSLProcessorContext context, ElemExtensionCall element)
             throws TransformerException {
         String nombre = readAttribute("nombre", context, element);
@@ -253,11 +129,35 @@ public final class MiPlugin {
                     }
                 }
             }
+            Path fromSource = baseDirFromSourceTree(context, node);
+            if (fromSource != null) {
+                return fromSource;
+            }
         } catch (Exception ignored) {
         }
         return Paths.get("").toAbsolutePath();
     }
 
+    /**
+     * En transformaciones en streaming el nodo de contexto es un proxy DTM sin documentURI:
+     * se usa el systemId con el que se abrio el documento fuente.
+     */
+    private static Path baseDirFromSourceTree(XSLProcessorContext context, org.w3c.dom.Node node) {
+        if (context == null || node == null) return null;
+        XPathContext xctxt = context.getTransformer().getXPathContext();
+        int handle = xctxt.getDTMHandleFromNode(node);
+        DTM dtm = xctxt.getDTM(handle);
+        if (dtm == null) return null;
+        String systemId = dtm.getDocumentBaseURI();
+        if (PluginSupport.isBlank(systemId)) {
+            systemId = dtm.getDocumentSystemIdentifier(handle);
+        }
+        if (PluginSupport.isBlank(systemId) || !systemId.startsWith("file:")) {
+            return null;
+        }
+        return Paths.get(java.net.URI.create(systemId)).getParent();
+    }
+
     private static Path resolvePath(String rawPath, Path baseDir) {
         Path path = Paths.get(rawPath);
         if (path.isAbsolute()) {
@@ -296,11 +196,6 @@ public final class MiPlugin {
         return output.toString();
     }
 
-    private static boolean isWindows() {
-        String os = System.getProperty("os.name");
-        return os != null && os.toLowerCase(Locale.ROOT).contains("win");
-    }
-
     private static void emitText(XSLProcessorContext context, String text, String errorMessage)
             throws TransformerException {
         try {
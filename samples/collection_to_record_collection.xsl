@@ -1,4 +1,6 @@
 <?xml version="1.0" encoding="UTF-8"?>
+<?app-shard?>
+<?app-validate input?>
 <xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
   <xsl:output method="xml" encoding="UTF-8" indent="yes"/>
   <xsl:strip-space elements="*"/>
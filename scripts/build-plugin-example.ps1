@@ -9,6 +9,7 @@ $depsClassesDir = Join-Path $buildRoot "deps-classes"
 $bundleDir = Join-Path $repoRoot "plugins\bundle"
 $jarPath = Join-Path $bundleDir "mi-plugin.jar"
 $depsJarPath = Join-Path $bundleDir "mi-plugin-deps.jar"
+$appClassesDir = Join-Path $repoRoot "out"
 $jarCmd = "jar"
 
 if ($env:JAVA_HOME) {
@@ -60,8 +61,13 @@ if ($LASTEXITCODE -ne 0) {
   throw "Fallo el empaquetado de mi-plugin-deps.jar: $depsJarPath"
 }
 
+# El plugin usa el servicio de conversion del host: compila contra las clases de la app
+if (-not (Test-Path (Join-Path $appClassesDir "simpleapp\ImageConversionService.class"))) {
+  throw "Compila antes la aplicacion (scripts\compile.ps1): el plugin necesita las clases de out\."
+}
+
 Write-Host "Compilando plugin externo..." -ForegroundColor Cyan
-javac -cp "$repoRoot\lib\xalan-2.7.3.jar;$repoRoot\lib\serializer-2.7.3.jar;$depsJarPath" `
+javac -cp "$appClassesDir;$repoRoot\lib\xalan-2.7.3.jar;$repoRoot\lib\serializer-2.7.3.jar;$depsJarPath" `
   -d $classesDir `
   (Get-ChildItem -Path $srcRoot -Recurse -Filter *.java | ForEach-Object { $_.FullName })
 if ($LASTEXITCODE -ne 0) {
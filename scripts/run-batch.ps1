@@ -0,0 +1,26 @@
+$ErrorActionPreference = "Stop"
+
+# Procesado por lotes sin interfaz: los argumentos se pasan tal cual a simpleapp.BatchMain
+# Ejemplo: scripts\run-batch.ps1 -x samples\collection_to_record_collection.xsl -o salida samples
+$repoRoot = Split-Path -Parent $PSScriptRoot
+$previous = $env:JAVA_TOOL_OPTIONS
+$env:JAVA_TOOL_OPTIONS = ''
+
+Push-Location $repoRoot
+try {
+  Write-Host "Compilando..." -ForegroundColor Cyan
+  javac -cp "lib\xalan-2.7.3.jar;lib\serializer-2.7.3.jar" -d out src\simpleapp\*.java
+
+  Write-Host "Procesando lote..." -ForegroundColor Cyan
+  java -cp "out;lib\xalan-2.7.3.jar;lib\serializer-2.7.3.jar" simpleapp.BatchMain @args
+  $exitCode = $LASTEXITCODE
+}
+finally {
+  Pop-Location
+  if ($previous) {
+    $env:JAVA_TOOL_OPTIONS = $previous
+  } else {
+    Remove-Item Env:JAVA_TOOL_OPTIONS -ErrorAction SilentlyContinue
+  }
+}
+exit $exitCode
@@ -11,6 +11,10 @@ $pluginJar = Join-Path $repoRoot "plugins\bundle\mi-plugin.jar"
 
 Push-Location $repoRoot
 try {
+  # el plugin compila contra las clases de la app (ImageConversionService)
+  Step "Compilar aplicacion"
+  javac -cp "lib\xalan-2.7.3.jar;lib\serializer-2.7.3.jar" -d out src\simpleapp\*.java
+
   Step "Build plugin externo"
   try {
     & (Join-Path $repoRoot "scripts\build-plugin-example.ps1")
@@ -22,9 +26,6 @@ try {
     }
   }
 
-  Step "Compilar aplicacion"
-  javac -cp "lib\xalan-2.7.3.jar;lib\serializer-2.7.3.jar" -d out src\simpleapp\*.java
-
   Step "Validar carga de plugins al arranque"
   $prevErrorAction = $ErrorActionPreference
   $ErrorActionPreference = "Continue"
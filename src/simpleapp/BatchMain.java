@@ -0,0 +1,484 @@
+package simpleapp;
+
+import org.w3c.dom.Document;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Procesado por lotes sin interfaz grafica: extrae cada ZIP de coleccion, la valida, aplica las hojas XSLT
+ * indicadas (encadenadas con {@link XsltPipeline} si hay varias) y exporta el resultado al directorio de salida,
+ * como haria el flujo Elegir ZIP / Transformar / Exportar de {@link Main}.
+ * Las colecciones se procesan en paralelo y al final se imprime un informe de rendimiento.
+ *
+ * <pre>
+ * java -cp out;lib\xalan-2.7.3.jar;lib\serializer-2.7.3.jar simpleapp.BatchMain
+ *      -x samples\collection_to_record_collection.xsl -x samples\record_collection_to_viewer_record.xsl
+ *      -o salida -w 4 samples\movie_collection\collection.zip samples\medical_dataset
+ * </pre>
+ */
+public final class BatchMain {
+    private static final String RECORD_COLLECTION_ROOT = "recordCollection";
+
+    private final List<Path> inputs;
+    private final List<Path> stylesheets;
+    private final Path outputDir;
+    private final int workers;
+    private final boolean zipOutput;
+
+    private BatchMain(List<Path> inputs, List<Path> stylesheets, Path outputDir, int workers, boolean zipOutput) {
+        this.inputs = inputs;
+        this.stylesheets = stylesheets;
+        this.outputDir = outputDir;
+        this.workers = workers;
+        this.zipOutput = zipOutput;
+    }
+
+    public static void main(String[] args) {
+        BatchMain batch;
+        try {
+            batch = parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        if (batch == null) {
+            printUsage();
+            return;
+        }
+        // los XSD se compilan mientras se cargan los plugins
+        SchemaRegistry.getInstance().preloadAsync();
+        PluginRegistryLoader.LoadReport pluginReport = PluginRegistryLoader.ensureDefaultLoaded();
+        System.out.println("[plugins] " + pluginReport.summary());
+        try {
+            boolean ok = batch.run();
+            System.exit(ok ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Error en el procesado por lotes: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static BatchMain parseArgs(String[] args) {
+        List<Path> inputs = new ArrayList<>();
+        List<Path> stylesheets = new ArrayList<>();
+        Path outputDir = null;
+        int workers = Runtime.getRuntime().availableProcessors();
+        boolean zipOutput = true;
+        if (args == null || args.length == 0) {
+            return null;
+        }
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    return null;
+                case "-x":
+                case "--xslt":
+                    stylesheets.add(Paths.get(requireValue(args, ++i, arg)));
+                    break;
+                case "-o":
+                case "--out":
+                    outputDir = Paths.get(requireValue(args, ++i, arg));
+                    break;
+                case "-w":
+                case "--workers":
+                    try {
+                        workers = Integer.parseInt(requireValue(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Numero de workers invalido: " + args[i]);
+                    }
+                    break;
+                case "--format":
+                    String format = requireValue(args, ++i, arg).toLowerCase(Locale.ROOT);
+                    if (!"zip".equals(format) && !"xml".equals(format)) {
+                        throw new IllegalArgumentException("Formato de salida no soportado: " + format);
+                    }
+                    zipOutput = "zip".equals(format);
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("Opcion desconocida: " + arg);
+                    }
+                    inputs.add(Paths.get(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Indica al menos un ZIP o directorio de entrada");
+        }
+        if (stylesheets.isEmpty()) {
+            throw new IllegalArgumentException("Indica al menos una hoja XSLT con -x");
+        }
+        if (outputDir == null) {
+            throw new IllegalArgumentException("Indica el directorio de salida con -o");
+        }
+        for (Path xslt : stylesheets) {
+            if (!Files.isRegularFile(xslt)) {
+                throw new IllegalArgumentException("No existe la hoja XSLT: " + xslt);
+            }
+        }
+        return new BatchMain(inputs, stylesheets, outputDir, Math.max(1, workers), zipOutput);
+    }
+
+    private static String requireValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Falta el valor de " + option);
+        }
+        return args[index];
+    }
+
+    private static void printUsage() {
+        System.out.println("Uso: java simpleapp.BatchMain -x hoja.xsl [-x otra.xsl ...] -o DIR_SALIDA"
+                + " [-w WORKERS] [--format zip|xml] ZIP|DIR...");
+        System.out.println("  -x, --xslt      hoja XSLT; si se repite, se aplican encadenadas en ese orden");
+        System.out.println("  -o, --out       directorio donde se escriben los resultados");
+        System.out.println("  -w, --workers   colecciones procesadas en paralelo (por defecto, numero de CPUs)");
+        System.out.println("  --format        zip (resultado + recursos, como Exportar) o xml (solo el resultado)");
+        System.out.println("Los directorios de entrada se recorren buscando ficheros .zip.");
+    }
+
+    private boolean run() throws Exception {
+        List<Path> zips = collectZips(inputs);
+        if (zips.isEmpty()) {
+            System.out.println("No se encontraron ZIPs en las entradas indicadas");
+            return true;
+        }
+        Files.createDirectories(outputDir);
+        XsltPipeline pipeline = stylesheets.size() > 1 ? XsltPipeline.fromStylesheets(stylesheets) : null;
+        System.out.println("Procesando " + zips.size() + " colecciones con " + workers + " workers");
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, zips.size()));
+        List<Future<CollectionResult>> futures = new ArrayList<>();
+        try {
+            for (Path zip : zips) {
+                futures.add(executor.submit(() -> processCollection(zip, pipeline)));
+            }
+            List<CollectionResult> results = new ArrayList<>();
+            for (Future<CollectionResult> future : futures) {
+                results.add(future.get());
+            }
+            long elapsed = System.nanoTime() - start;
+            printReport(results, elapsed);
+            for (CollectionResult result : results) {
+                if (result.error != null) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CollectionResult processCollection(Path zip, XsltPipeline pipeline) {
+        CollectionResult result = new CollectionResult(zip);
+        Path extractedDir = null;
+        ZipCollection collection = null;
+        try {
+            result.inputBytes = Files.size(zip);
+            long t = System.nanoTime();
+            extractedDir = Files.createTempDirectory("batch_coleccion_");
+            Path xml;
+            boolean streaming;
+            ExtractionCache cache = ExtractionCache.getInstance();
+            if (ZipCollection.isLazyEnabled() && !cache.restore(zip, extractedDir)) {
+                // Sin extraccion completa: el XML se lee del ZIP y los recursos se extraen al necesitarlos
+                collection = ZipCollection.open(zip, extractedDir);
+                if (!collection.hasXml()) {
+                    throw new IllegalStateException("No se encontro ningun XML dentro del ZIP");
+                }
+                streaming = collection.shouldStreamXml();
+                xml = streaming ? collection.extractXml() : collection.getXmlPath();
+            } else {
+                if (!ZipCollection.isLazyEnabled()) {
+                    cache.extract(zip, extractedDir);
+                }
+                // si no, la cache ya enlazo el arbol extraido en extractedDir
+                xml = cache.collectionXml(zip, extractedDir);
+                if (xml == null) {
+                    throw new IllegalStateException("No se encontro ningun XML dentro del ZIP");
+                }
+                streaming = XmlUtils.shouldStream(xml);
+            }
+            t = result.stage(Stage.EXTRACT, t);
+
+            Document doc = null;
+            if (streaming) {
+                XmlUtils.validateCollection(xml);
+            } else {
+                doc = collection != null ? collection.parseCollection() : XmlUtils.parseCollection(xml);
+            }
+            t = result.stage(Stage.LOAD, t);
+
+            // Sesion propia: colecciones procesadas a la vez no comparten ficheros convertidos ni classloader
+            TransformSession session = new TransformSession();
+            Path resultFile = null;
+            String rootName;
+            if (streaming) {
+                resultFile = Files.createTempFile(xml.toAbsolutePath().getParent(), "resultado-", ".xml");
+                if (pipeline != null) {
+                    pipeline.run(xml, resultFile, session);
+                    rootName = XmlUtils.readRootName(resultFile);
+                    XmlUtils.validate(resultFile);
+                } else {
+                    // con una sola hoja la salida se valida mientras se escribe
+                    XmlUtils.transformStreamingValidated(xml, stylesheets.get(0), resultFile, session);
+                    rootName = XmlUtils.readRootName(resultFile);
+                }
+            } else {
+                if (pipeline != null) {
+                    doc = pipeline.run(doc, session);
+                    XmlUtils.validate(doc);
+                } else {
+                    doc = XmlUtils.transformValidated(doc, stylesheets.get(0), session);
+                }
+                rootName = doc.getDocumentElement() != null ? doc.getDocumentElement().getNodeName() : null;
+            }
+            t = result.stage(Stage.TRANSFORM, t);
+
+            if (zipOutput && collection != null) {
+                // la exportacion en ZIP incluye los recursos: se extraen ahora los que falten
+                collection.extractResources();
+                // la proxima vez que se procese este ZIP sin cambios se enlaza ya extraido
+                collection.storeInCache();
+            }
+            result.output = export(zip, extractedDir, rootName, resultFile, doc, session.getConvertedFiles());
+            result.stage(Stage.EXPORT, t);
+        } catch (Exception e) {
+            result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            if (collection != null) {
+                try { collection.close(); } catch (Exception ignored) {}
+            }
+            if (extractedDir != null) {
+                try { XmlUtils.deleteDirectoryRecursively(extractedDir); } catch (Exception ignored) {}
+            }
+        }
+        System.out.println((result.error == null ? "[ok] " : "[error] ") + zip
+                + (result.error == null ? " -> " + result.output.getFileName() : ": " + result.error));
+        return result;
+    }
+
+    private static List<Path> collectZips(List<Path> inputs) throws Exception {
+        Set<Path> zips = new LinkedHashSet<>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> stream = Files.walk(input)) {
+                    stream.filter(Files::isRegularFile)
+                            .filter(p -> p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".zip"))
+                            .sorted()
+                            .forEach(p -> zips.add(p.toAbsolutePath().normalize()));
+                }
+            } else if (Files.isRegularFile(input)) {
+                zips.add(input.toAbsolutePath().normalize());
+            } else {
+                throw new IllegalArgumentException("No existe la entrada: " + input);
+            }
+        }
+        return new ArrayList<>(zips);
+    }
+
+    /**
+     * Escribe la salida de una entrada en un temporal de la carpeta de salida y lo mueve al nombre reservado
+     * al terminar: si la exportacion falla no queda en la salida un fichero vacio o a medias.
+     */
+    private Path export(Path zip, Path extractedDir, String rootName, Path resultFile, Document doc,
+                        List<Path> convertedFiles) throws Exception {
+        String baseName = zip.getFileName().toString().replaceFirst("(?i)\\.zip$", "");
+        String entryName = resultEntryName(rootName);
+        String extension = zipOutput ? ".zip" : entryName.substring(entryName.lastIndexOf('.'));
+        Path target = uniqueTarget(baseName, extension);
+        // nombre derivado del reservado (unico); createTempFile lo dejaria legible solo por el propietario
+        Path partial = target.resolveSibling("." + target.getFileName() + ".part");
+        boolean exported = false;
+        try {
+            if (zipOutput) {
+                writeZip(partial, entryName, extractedDir, resultFile, doc, convertedFiles);
+            } else if (resultFile != null) {
+                Files.copy(resultFile, partial, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                XmlSerializer.serialize(doc, partial, XmlSerializer.Options.forExport());
+            }
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            exported = true;
+            return target;
+        } finally {
+            Files.deleteIfExists(partial);
+            if (!exported) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    private void writeZip(Path target, String entryName, Path extractedDir, Path resultFile, Document doc,
+                          List<Path> convertedFiles) throws Exception {
+        try (ExportZipWriter out = ExportZipWriter.create(target)) {
+            try (OutputStream entry = out.openEntry(entryName, resultFile != null ? Files.size(resultFile) : -1)) {
+                if (resultFile != null) {
+                    Files.copy(resultFile, entry);
+                } else {
+                    XmlSerializer.serialize(doc, entry, XmlSerializer.Options.forExport());
+                }
+            }
+            // Recursos (incluidos los convertidos por las extensiones), igual que Exportar en la interfaz
+            Set<Path> resources = new LinkedHashSet<>();
+            for (Path converted : convertedFiles) {
+                if (converted.startsWith(extractedDir) && Files.isRegularFile(converted)) {
+                    resources.add(converted);
+                }
+            }
+            try (Stream<Path> stream = Files.walk(extractedDir)) {
+                stream.filter(Files::isRegularFile)
+                        .filter(file -> !file.equals(resultFile))
+                        .filter(file -> file.getFileName().toString().toLowerCase(Locale.ROOT).contains("-converted")
+                                || isResourcesPath(extractedDir.relativize(file)))
+                        .sorted()
+                        .forEach(resources::add);
+            }
+            for (Path file : resources) {
+                out.addFile(extractedDir.relativize(file).toString().replace('\\', '/'), file);
+            }
+        }
+    }
+
+    /**
+     * Varias entradas pueden llamarse igual (p. ej. collection.zip en distintas carpetas): no se sobrescriben.
+     * El nombre se reserva creando el fichero vacio; {@link #export} lo sustituye o lo borra al terminar.
+     */
+    private synchronized Path uniqueTarget(String baseName, String extension) throws Exception {
+        Path target = outputDir.resolve(baseName + extension);
+        for (int i = 2; Files.exists(target); i++) {
+            target = outputDir.resolve(baseName + "-" + i + extension);
+        }
+        Files.createFile(target);
+        return target;
+    }
+
+    private static String resultEntryName(String rootName) {
+        if ("html".equalsIgnoreCase(rootName)) {
+            return "transformed.html";
+        }
+        if (RECORD_COLLECTION_ROOT.equalsIgnoreCase(rootName)) {
+            return "record-collection.xml";
+        }
+        if ("record".equalsIgnoreCase(rootName) || "records".equalsIgnoreCase(rootName)) {
+            return "records.xml";
+        }
+        return "transformed.xml";
+    }
+
+    private static boolean isResourcesPath(Path relative) {
+        for (Path part : relative) {
+            if ("resources".equals(part.toString().toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void printReport(List<CollectionResult> results, long elapsedNanos) {
+        int ok = 0;
+        long bytes = 0;
+        Map<Stage, List<Long>> durations = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            durations.put(stage, new ArrayList<>());
+        }
+        for (CollectionResult result : results) {
+            if (result.error == null) {
+                ok++;
+            }
+            bytes += result.inputBytes;
+            for (Map.Entry<Stage, Long> entry : result.stageNanos.entrySet()) {
+                durations.get(entry.getKey()).add(entry.getValue());
+            }
+        }
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        System.out.println();
+        System.out.println("=== Informe del lote ===");
+        System.out.println(String.format(Locale.ROOT, "Colecciones: %d (correctas %d, con error %d) en %.2f s",
+                results.size(), ok, results.size() - ok, seconds));
+        System.out.println(String.format(Locale.ROOT, "Rendimiento: %.2f colecciones/s, %.2f MB/s (ZIP de entrada)",
+                results.size() / seconds, bytes / (1024.0 * 1024.0) / seconds));
+        System.out.println(String.format(Locale.ROOT, "%-12s %8s %10s %10s %10s", "Etapa", "n", "p50 ms", "p99 ms", "max ms"));
+        for (Stage stage : Stage.values()) {
+            List<Long> values = durations.get(stage);
+            if (values.isEmpty()) continue;
+            Collections.sort(values);
+            System.out.println(String.format(Locale.ROOT, "%-12s %8d %10.1f %10.1f %10.1f", stage.label, values.size(),
+                    millis(percentile(values, 50)), millis(percentile(values, 99)), millis(values.get(values.size() - 1))));
+        }
+        System.out.println(TemplatesCache.getInstance().stats());
+        System.out.println(SchemaRegistry.getInstance().stats());
+        System.out.println(ExtractionCache.getInstance().stats());
+        System.out.println(ConversionCache.getInstance().stats());
+        System.out.println(ImageConversionService.getInstance().stats());
+        for (CollectionResult result : results) {
+            if (result.error != null) {
+                System.out.println("Error en " + result.zip + ": " + result.error);
+            }
+        }
+    }
+
+    /**
+     * Percentil por rango mas cercano sobre una lista ya ordenada.
+     */
+    private static long percentile(List<Long> sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private enum Stage {
+        EXTRACT("extraccion"),
+        LOAD("carga"),
+        TRANSFORM("transformar"),
+        EXPORT("exportar");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final class CollectionResult {
+        private final Path zip;
+        private final Map<Stage, Long> stageNanos = new EnumMap<>(Stage.class);
+        private long inputBytes;
+        private Path output;
+        private String error;
+
+        private CollectionResult(Path zip) {
+            this.zip = zip;
+        }
+
+        private long stage(Stage stage, long startNanos) {
+            long now = System.nanoTime();
+            stageNanos.put(stage, now - startNanos);
+            return now;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package simpleapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Genera en memoria el bytecode de la clase puente para Xalan, sin necesidad de javac.
+ * Cada elemento de extension se traduce en un metodo estatico {@code nombre(XSLProcessorContext, ElemExtensionCall)}
+ * que delega en {@link ExtensionComponents#dispatch}. El codigo de los metodos es lineal (sin saltos),
+ * por lo que no requiere StackMapTable y basta con un class file de version 52 (Java 8).
+ */
+public final class BridgeClassGenerator {
+    private static final int CLASS_VERSION = 52;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final String DISPATCH_OWNER = "simpleapp/ExtensionComponents";
+    private static final String DISPATCH_NAME = "dispatch";
+    private static final String DISPATCH_DESCRIPTOR = "(Ljava/lang/String;Lorg/apache/xalan/extensions/XSLProcessorContext;"
+            + "Lorg/apache/xalan/templates/ElemExtensionCall;)V";
+    private static final String HANDLER_DESCRIPTOR = "(Lorg/apache/xalan/extensions/XSLProcessorContext;"
+            + "Lorg/apache/xalan/templates/ElemExtensionCall;)V";
+
+    private BridgeClassGenerator() {
+    }
+
+    /**
+     * Construye el class file de la clase puente.
+     *
+     * @param className nombre binario de la clase (con puntos)
+     * @param elements  local-names de los elementos de extension, usados como nombres de metodo
+     */
+    public static byte[] generate(String className, Collection<String> elements) {
+        for (String name : elements) {
+            checkMethodName(name);
+        }
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(className.replace('.', '/'));
+        int superClass = pool.classRef("java/lang/Object");
+        int dispatch = pool.methodRef(DISPATCH_OWNER, DISPATCH_NAME, DISPATCH_DESCRIPTOR);
+        int codeAttr = pool.utf8("Code");
+        int exceptionsAttr = pool.utf8("Exceptions");
+        int handlerDescriptor = pool.utf8(HANDLER_DESCRIPTOR);
+        int transformerException = pool.classRef("javax/xml/transform/TransformerException");
+        List<int[]> methods = new ArrayList<>();
+        for (String name : elements) {
+            methods.add(new int[]{pool.utf8(name), pool.string(name)});
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (int[] method : methods) {
+                out.writeShort(ACC_PUBLIC | ACC_STATIC);
+                out.writeShort(method[0]);
+                out.writeShort(handlerDescriptor);
+                out.writeShort(2);
+                writeDispatchCode(out, codeAttr, method[1], dispatch);
+                out.writeShort(exceptionsAttr);
+                out.writeInt(4);
+                out.writeShort(1);
+                out.writeShort(transformerException);
+            }
+            out.writeShort(0); // atributos de clase
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo generar la clase puente " + className, e);
+        }
+    }
+
+    /**
+     * ldc_w nombre; aload_0; aload_1; invokestatic ExtensionComponents.dispatch; return
+     */
+    private static void writeDispatchCode(DataOutputStream out, int codeAttr, int nameConstant, int dispatch)
+            throws IOException {
+        byte[] code = {
+                0x13, (byte) (nameConstant >> 8), (byte) nameConstant,
+                0x2a,
+                0x2b,
+                (byte) 0xb8, (byte) (dispatch >> 8), (byte) dispatch,
+                (byte) 0xb1
+        };
+        out.writeShort(codeAttr);
+        out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+        out.writeShort(3); // max_stack
+        out.writeShort(2); // max_locals
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // tabla de excepciones
+        out.writeShort(0); // atributos del codigo
+    }
+
+    private static void checkMethodName(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Nombre de elemento de extension vacio");
+        }
+        for (char c : name.toCharArray()) {
+            if (c == '.' || c == ';' || c == '[' || c == '/' || c == '<' || c == '>') {
+                throw new IllegalArgumentException("El elemento '" + name
+                        + "' no se puede usar como nombre de metodo en la clase puente");
+            }
+        }
+    }
+
+    /**
+     * Pool de constantes minimo: Utf8, Class, String, NameAndType y Methodref, sin duplicados.
+     */
+    private static final class ConstantPool {
+        private static final int UTF8 = 1;
+        private static final int CLASS = 7;
+        private static final int STRING = 8;
+        private static final int METHODREF = 10;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final Map<String, Integer> indexes = new LinkedHashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int next = 1;
+
+        private int utf8(String value) {
+            return entry("U" + value, () -> {
+                out.writeByte(UTF8);
+                out.writeUTF(value);
+            });
+        }
+
+        private int classRef(String internalName) {
+            int name = utf8(internalName);
+            return entry("C" + internalName, () -> {
+                out.writeByte(CLASS);
+                out.writeShort(name);
+            });
+        }
+
+        private int string(String value) {
+            int utf = utf8(value);
+            return entry("S" + value, () -> {
+                out.writeByte(STRING);
+                out.writeShort(utf);
+            });
+        }
+
+        private int methodRef(String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + descriptor, () -> {
+                out.writeByte(NAME_AND_TYPE);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return entry("M" + owner + "." + name + descriptor, () -> {
+                out.writeByte(METHODREF);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, ConstantWriter writer) {
+            Integer existing = indexes.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            int index = next++;
+            indexes.put(key, index);
+            return index;
+        }
+
+        private void writeTo(DataOutputStream target) throws IOException {
+            out.flush();
+            target.writeShort(next);
+            bytes.writeTo(target);
+        }
+    }
+
+    private interface ConstantWriter {
+        void write() throws IOException;
+    }
+
+    /**
+     * Classloader que define las clases puente generadas en memoria. Al ser un classloader normal
+     * (no clases ocultas), Xalan puede localizarlas por nombre a traves del classloader de contexto.
+     */
+    public static final class InMemoryClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        public InMemoryClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+            super(parent);
+            this.classes = new LinkedHashMap<>(classes);
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytecode = classes.get(name);
+            if (bytecode == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package simpleapp;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Envuelve el {@link Result} de una transformacion para que se corte en cuanto se cancela la sesion.
+ * Xalan no comprueba interrupciones ({@code TransformerImpl.stopTransformation()} no hace nada), pero
+ * si propaga las excepciones de su salida: cada elemento emitido o bloque escrito consulta la sesion.
+ * <p>
+ * Un {@link StreamResult} conserva su serializador (y por tanto el {@code xsl:output} de la hoja): solo se
+ * envuelve su stream o writer. Un {@link DOMResult} se construye a traves de un TransformerHandler identidad.
+ */
+final class CancellationGuard {
+    private CancellationGuard() {
+    }
+
+    static Result wrap(Result result, TransformSession session) throws Exception {
+        if (result instanceof SAXResult sax) {
+            SAXResult guarded = new SAXResult(new GuardedHandler(sax.getHandler(), lexicalOf(sax), session));
+            guarded.setLexicalHandler((LexicalHandler) guarded.getHandler());
+            guarded.setSystemId(sax.getSystemId());
+            return guarded;
+        }
+        if (result instanceof StreamResult stream) {
+            if (stream.getOutputStream() != null) {
+                StreamResult guarded = new StreamResult(new GuardedOutputStream(stream.getOutputStream(), session));
+                guarded.setSystemId(stream.getSystemId());
+                return guarded;
+            }
+            if (stream.getWriter() != null) {
+                StreamResult guarded = new StreamResult(new GuardedWriter(stream.getWriter(), session));
+                guarded.setSystemId(stream.getSystemId());
+                return guarded;
+            }
+            return result;
+        }
+        if (result instanceof DOMResult) {
+            SAXTransformerFactory factory = (SAXTransformerFactory) XmlUtils.newXsltFactory(
+                    CancellationGuard.class.getClassLoader());
+            TransformerHandler identity = factory.newTransformerHandler();
+            identity.setResult(result);
+            SAXResult guarded = new SAXResult(new GuardedHandler(identity, identity, session));
+            guarded.setLexicalHandler((LexicalHandler) guarded.getHandler());
+            guarded.setSystemId(result.getSystemId());
+            return guarded;
+        }
+        return result;
+    }
+
+    private static LexicalHandler lexicalOf(SAXResult result) {
+        if (result.getLexicalHandler() != null) {
+            return result.getLexicalHandler();
+        }
+        return result.getHandler() instanceof LexicalHandler lexical ? lexical : null;
+    }
+
+    private static final class GuardedHandler implements ContentHandler, LexicalHandler {
+        private final ContentHandler content;
+        private final LexicalHandler lexical;
+        private final TransformSession session;
+
+        private GuardedHandler(ContentHandler content, LexicalHandler lexical, TransformSession session) {
+            this.content = content;
+            this.lexical = lexical;
+            this.session = session;
+        }
+
+        private void check() throws SAXException {
+            if (session.isCancelled()) {
+                throw new SAXException(TransformSession.CANCELLED_MESSAGE);
+            }
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            content.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            check();
+            content.startDocument();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            check();
+            content.endDocument();
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            content.startPrefixMapping(prefix, uri);
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            content.endPrefixMapping(prefix);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            check();
+            content.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            content.endElement(uri, localName, qName);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            check();
+            content.characters(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            content.ignorableWhitespace(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            content.processingInstruction(target, data);
+        }
+
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+            content.skippedEntity(name);
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId) throws SAXException {
+            if (lexical != null) lexical.startDTD(name, publicId, systemId);
+        }
+
+        @Override
+        public void endDTD() throws SAXException {
+            if (lexical != null) lexical.endDTD();
+        }
+
+        @Override
+        public void startEntity(String name) throws SAXException {
+            if (lexical != null) lexical.startEntity(name);
+        }
+
+        @Override
+        public void endEntity(String name) throws SAXException {
+            if (lexical != null) lexical.endEntity(name);
+        }
+
+        @Override
+        public void startCDATA() throws SAXException {
+            if (lexical != null) lexical.startCDATA();
+        }
+
+        @Override
+        public void endCDATA() throws SAXException {
+            if (lexical != null) lexical.endCDATA();
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            if (lexical != null) lexical.comment(ch, start, length);
+        }
+    }
+
+    private static final class GuardedOutputStream extends FilterOutputStream {
+        private final TransformSession session;
+
+        private GuardedOutputStream(OutputStream out, TransformSession session) {
+            super(out);
+            this.session = session;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // el stream pertenece a quien creo el StreamResult
+            flush();
+        }
+
+        private void check() throws IOException {
+            if (session.isCancelled()) {
+                throw new InterruptedIOException(TransformSession.CANCELLED_MESSAGE);
+            }
+        }
+    }
+
+    private static final class GuardedWriter extends FilterWriter {
+        private final TransformSession session;
+
+        private GuardedWriter(Writer out, TransformSession session) {
+            super(out);
+            this.session = session;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            check();
+            out.write(c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            check();
+            out.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            check();
+            out.write(str, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private void check() throws IOException {
+            if (session.isCancelled()) {
+                throw new InterruptedIOException(TransformSession.CANCELLED_MESSAGE);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package simpleapp;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Compara las rutas de conversion de imagen sobre las carpetas {@code resources} de las colecciones de ejemplo:
+ * ImageIO dentro de la JVM ({@link ImageIOConverter}), un proceso de ImageMagick por imagen y un solo proceso
+ * por lote ({@link MagickBatch}). Sin ImageMagick instalado solo se mide ImageIO.
+ * <p>
+ * Uso: {@code java simpleapp.ConversionBenchmark [-f FORMATO] [-n REPETICIONES] [DIR...]}; sin directorios se
+ * recorre {@code samples/}.
+ */
+public final class ConversionBenchmark {
+    private final List<Path> images;
+    private final String format;
+    private final int repetitions;
+
+    private ConversionBenchmark(List<Path> images, String format, int repetitions) {
+        this.images = images;
+        this.format = format;
+        this.repetitions = repetitions;
+    }
+
+    public static void main(String[] args) {
+        ConversionBenchmark benchmark;
+        try {
+            benchmark = parseArgs(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        if (benchmark == null) {
+            printUsage();
+            return;
+        }
+        try {
+            benchmark.run();
+        } catch (Exception e) {
+            System.err.println("Error en el benchmark: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static ConversionBenchmark parseArgs(String[] args) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        String format = "jpg";
+        int repetitions = 3;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    return null;
+                case "-f":
+                case "--format":
+                    format = requireValue(args, ++i, arg).toLowerCase(Locale.ROOT);
+                    break;
+                case "-n":
+                case "--repeat":
+                    try {
+                        repetitions = Math.max(1, Integer.parseInt(requireValue(args, ++i, arg)));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Numero de repeticiones invalido: " + args[i]);
+                    }
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("Opcion desconocida: " + arg);
+                    }
+                    dirs.add(Paths.get(arg));
+            }
+        }
+        if (dirs.isEmpty()) {
+            dirs.add(Paths.get("samples"));
+        }
+        List<Path> images = collectImages(dirs, format);
+        if (images.isEmpty()) {
+            throw new IllegalArgumentException("No se encontraron imagenes en carpetas resources de " + dirs);
+        }
+        return new ConversionBenchmark(images, format, repetitions);
+    }
+
+    private static String requireValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Falta el valor de " + option);
+        }
+        return args[index];
+    }
+
+    private static void printUsage() {
+        System.out.println("Uso: java simpleapp.ConversionBenchmark [-f FORMATO] [-n REPETICIONES] [DIR...]");
+        System.out.println("  -f, --format    formato destino (por defecto jpg)");
+        System.out.println("  -n, --repeat    repeticiones medidas de cada ruta, tras una de calentamiento (por defecto 3)");
+        System.out.println("Se convierten las imagenes de las carpetas resources bajo cada DIR (por defecto samples/).");
+    }
+
+    /**
+     * Imagenes bajo carpetas {@code resources} que ImageIO sabe convertir al formato, sin las que ya lo tienen.
+     */
+    private static List<Path> collectImages(List<Path> dirs, String format) throws IOException {
+        List<Path> images = new ArrayList<>();
+        for (Path dir : dirs) {
+            if (!Files.isDirectory(dir)) {
+                throw new IllegalArgumentException("No existe el directorio: " + dir);
+            }
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.filter(Files::isRegularFile)
+                        .filter(file -> file.getParent() != null
+                                && "resources".equalsIgnoreCase(String.valueOf(file.getParent().getFileName())))
+                        .filter(file -> !file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith("." + format))
+                        .filter(file -> ImageIOConverter.canConvert(file, format))
+                        .sorted()
+                        .forEach(images::add);
+            }
+        }
+        return images;
+    }
+
+    private void run() throws Exception {
+        long bytes = 0;
+        for (Path image : images) {
+            bytes += Files.size(image);
+        }
+        System.out.println(String.format(Locale.ROOT, "Benchmark de conversion: %d imagenes (%.1f MB) -> %s, %d repeticiones",
+                images.size(), bytes / (1024.0 * 1024.0), format, repetitions));
+        Path work = Files.createTempDirectory("conversion-benchmark");
+        try {
+            Map<String, Conversion> paths = new LinkedHashMap<>();
+            paths.put("ImageIO (en la JVM)", this::convertWithImageIO);
+            String executable = findMagick(work);
+            if (executable != null) {
+                paths.put("ImageMagick por imagen", out -> convertWithMagick(executable, out));
+                paths.put("ImageMagick por lote", this::convertWithMagickBatch);
+            } else {
+                System.out.println("ImageMagick no disponible: solo se mide ImageIO");
+            }
+            System.out.println(String.format(Locale.ROOT, "%-24s %10s %12s %8s", "ruta", "total ms", "ms/imagen", "fallos"));
+            int run = 0;
+            for (Map.Entry<String, Conversion> path : paths.entrySet()) {
+                Path out = Files.createDirectories(work.resolve("run-" + run++));
+                // la primera vuelta carga clases, lectores y la cache de disco del sistema
+                path.getValue().convertAll(out);
+                long elapsed = 0;
+                int failures = 0;
+                for (int i = 0; i < repetitions; i++) {
+                    clear(out);
+                    long start = System.nanoTime();
+                    failures = path.getValue().convertAll(out);
+                    elapsed += System.nanoTime() - start;
+                }
+                double totalMillis = elapsed / 1_000_000.0 / repetitions;
+                System.out.println(String.format(Locale.ROOT, "%-24s %10.1f %12.2f %8d", path.getKey(), totalMillis,
+                        totalMillis / images.size(), failures));
+            }
+        } finally {
+            delete(work);
+        }
+    }
+
+    private int convertWithImageIO(Path out) {
+        int failures = 0;
+        for (int i = 0; i < images.size(); i++) {
+            try {
+                ImageIOConverter.convert(images.get(i), outputFor(out, i), format);
+            } catch (IOException | RuntimeException e) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private int convertWithMagick(String executable, Path out) {
+        int failures = 0;
+        for (int i = 0; i < images.size(); i++) {
+            String[] command = {executable, images.get(i).toString(), outputFor(out, i).toString()};
+            try {
+                ImageConversionService.runMagickCommand(command, format, null, ImageConversionQueue.timeoutSeconds());
+            } catch (TransformerException e) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private int convertWithMagickBatch(Path out) throws TransformerException {
+        int size = ImageConversionQueue.batchSize();
+        int failures = 0;
+        Map<Path, Path> batch = new LinkedHashMap<>();
+        for (int i = 0; i < images.size(); i++) {
+            batch.put(outputFor(out, i), images.get(i));
+            if (batch.size() == size || i == images.size() - 1) {
+                failures += MagickBatch.convert(batch, null).failures().size();
+                batch.clear();
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Primer ejecutable de ImageMagick que convierte la primera imagen, o null si no hay ninguno.
+     */
+    private String findMagick(Path work) {
+        Path probe = work.resolve("probe." + format);
+        for (String executable : ImageConversionService.magickExecutables()) {
+            try {
+                ImageConversionService.runMagickCommand(new String[]{executable, images.get(0).toString(), probe.toString()},
+                        format, null, ImageConversionQueue.timeoutSeconds());
+                return executable;
+            } catch (TransformerException e) {
+                // se prueba el siguiente
+            }
+        }
+        return null;
+    }
+
+    private Path outputFor(Path out, int index) {
+        String name = images.get(index).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return out.resolve(index + "-" + (dot > 0 ? name.substring(0, dot) : name) + "." + format);
+    }
+
+    private static void clear(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Una ruta de conversion: convierte todas las imagenes en la carpeta dada y devuelve cuantas fallaron.
+     */
+    private interface Conversion {
+        int convertAll(Path out) throws Exception;
+    }
+}
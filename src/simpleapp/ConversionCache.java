@@ -0,0 +1,314 @@
+package simpleapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Cache en disco de imagenes convertidas, compartida entre ejecuciones. La clave combina el SHA-256 del
+ * contenido de la imagen de origen, el formato destino y las opciones del conversor que la produjo (ImageIO o
+ * el ejecutable de ImageMagick): repetir una transformacion sobre la misma coleccion no vuelve a convertir nada, y la
+ * imagen convertida se enlaza (o se copia) en la ruta de salida.
+ * <p>
+ * La salida anterior nunca se escribe ni se borra antes de tiempo: puede ser el propio origen o un enlace a
+ * la cache. La imagen se enlaza (o se convierte) en un temporal de la misma carpeta que luego se renombra
+ * encima de la salida. Al superar {@code -Dxslt.convert.cache.mb} (por defecto
+ * 1024; 0 la desactiva) se expulsan en segundo plano las imagenes usadas hace mas tiempo.
+ */
+public final class ConversionCache {
+    private static final String DIR_PROP = "xslt.convert.cache.dir";
+    private static final String MAX_MB_PROP = "xslt.convert.cache.mb";
+    private static final long DEFAULT_MAX_MB = 1024;
+    private static final String STAGING_PREFIX = ".tmp-";
+    private static final ConversionCache INSTANCE = new ConversionCache();
+
+    private final Path root;
+    private final long maxBytes;
+    // imagenes de la cache y su tamano, de la usada hace mas tiempo a la mas reciente; null hasta el primer recorrido
+    private Map<String, Long> index;
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "conversion-cache-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean linksUnsupported;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ConversionCache() {
+        String configured = System.getProperty(DIR_PROP);
+        this.root = (configured != null && !configured.isBlank()
+                ? Paths.get(configured.trim())
+                : Paths.get(System.getProperty("java.io.tmpdir"), "xslt-convert-cache")).toAbsolutePath().normalize();
+        this.maxBytes = Math.max(0, Long.getLong(MAX_MB_PROP, DEFAULT_MAX_MB)) * 1024 * 1024;
+    }
+
+    public static ConversionCache getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Clave de una conversion: contenido de origen, formato destino y opciones del conversor.
+     */
+    public String keyOf(Path input, String format, String options) throws IOException {
+        MessageDigest digest = sha256();
+        // FileStamp recuerda el hash por fecha y tamano: no se relee una imagen que no ha cambiado
+        String source = FileStamp.of(input).getHash();
+        digest.update((source + "\n" + format + "\n" + (options != null ? options : ""))
+                .getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest()) + "." + format.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Deja en {@code output} la imagen convertida de la cache, si existe. Devuelve false si no esta (o la
+     * cache esta desactivada); en ese caso no toca {@code output}.
+     */
+    public boolean restore(String key, Path output) throws IOException {
+        return restoreAny(List.of(key), output);
+    }
+
+    /**
+     * Igual que {@link #restore(String, Path)} con la primera clave que este en la cache (por ejemplo, la
+     * misma conversion hecha por distintos conversores). Cuenta un solo acierto o fallo.
+     */
+    public boolean restoreAny(List<String> keys, Path output) throws IOException {
+        if (!isEnabled()) return false;
+        for (String key : keys) {
+            if (link(key, output)) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    private boolean link(String key, Path output) throws IOException {
+        Path cached = root.resolve(key);
+        if (!Files.isRegularFile(cached)) {
+            return false;
+        }
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path staging = output.resolveSibling(STAGING_PREFIX + key + "-" + System.nanoTime());
+        try {
+            linkOrCopy(cached, staging);
+            Files.move(staging, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // expulsada entre la comprobacion y el enlace
+            return false;
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+        // la fecha marca el ultimo uso (orden LRU tambien entre ejecuciones)
+        try {
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // sin permiso para tocarla: solo afecta al orden de expulsion
+        }
+        synchronized (this) {
+            if (index != null) index.get(key);
+        }
+        return true;
+    }
+
+    /**
+     * Guarda la imagen recien convertida. Se publica con un renombrado atomico, asi que otra ejecucion nunca
+     * ve una imagen a medias.
+     */
+    public void store(String key, Path output) throws IOException {
+        if (!isEnabled() || !Files.isRegularFile(output)) return;
+        long size = Files.size(output);
+        if (size > maxBytes) return;
+        Path cached = root.resolve(key);
+        if (Files.isRegularFile(cached)) return;
+        Files.createDirectories(root);
+        Path staging = root.resolve(STAGING_PREFIX + key + "-" + System.nanoTime());
+        try {
+            linkOrCopy(output, staging);
+            Files.move(staging, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+        synchronized (this) {
+            if (index != null) index.put(key, size);
+        }
+        scheduleEviction();
+    }
+
+    public Stats stats() {
+        long used;
+        int size;
+        synchronized (this) {
+            used = index != null ? index.values().stream().mapToLong(Long::longValue).sum() : -1;
+            size = index != null ? index.size() : -1;
+        }
+        return new Stats(hits.get(), misses.get(), evictions.get(), size, used, maxBytes);
+    }
+
+    private void linkOrCopy(Path source, Path target) throws IOException {
+        if (!linksUnsupported) {
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (FileAlreadyExistsException e) {
+                // otra sesion dejo la misma salida a la vez: se sustituye por una copia
+            } catch (UnsupportedOperationException | IOException e) {
+                // otro sistema de ficheros o sin permiso: a partir de aqui se copia
+                linksUnsupported = true;
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void scheduleEviction() {
+        try {
+            cleaner.execute(() -> {
+                try {
+                    evict();
+                } catch (IOException e) {
+                    System.err.println("[convert-cache] Error al limpiar la cache: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // la JVM se esta cerrando: se hara en la proxima ejecucion
+        }
+    }
+
+    /**
+     * Expulsa las imagenes usadas hace mas tiempo hasta quedar dentro del presupuesto. Una salida ya enlazada
+     * no se pierde: borrar la entrada de la cache solo quita uno de los enlaces.
+     */
+    private void evict() throws IOException {
+        loadIndex();
+        while (true) {
+            String eldest;
+            synchronized (this) {
+                long used = index.values().stream().mapToLong(Long::longValue).sum();
+                if (used <= maxBytes || index.isEmpty()) return;
+                Iterator<String> keys = index.keySet().iterator();
+                eldest = keys.next();
+                keys.remove();
+            }
+            if (Files.deleteIfExists(root.resolve(eldest))) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Primer recorrido de la carpeta (en el hilo de limpieza): tamano y fecha de ultimo uso de cada imagen.
+     * Se borran de paso los temporales antiguos de guardados interrumpidos.
+     */
+    private synchronized void loadIndex() throws IOException {
+        // con el cerrojo tomado: un guardado que termina durante el recorrido se anota despues en el indice
+        if (index != null) return;
+        Map<String, Long> loaded = new LinkedHashMap<>(16, 0.75f, true);
+        if (Files.isDirectory(root)) {
+            List<Path> files = new ArrayList<>();
+            long staleBefore = System.currentTimeMillis() - 24L * 60 * 60 * 1000;
+            try (Stream<Path> children = Files.list(root)) {
+                for (Path child : (Iterable<Path>) children::iterator) {
+                    if (child.getFileName().toString().startsWith(STAGING_PREFIX)) {
+                        if (Files.getLastModifiedTime(child).toMillis() < staleBefore) Files.deleteIfExists(child);
+                    } else if (Files.isRegularFile(child)) {
+                        files.add(child);
+                    }
+                }
+            }
+            files.sort(Comparator.comparingLong(ConversionCache::lastUsed));
+            for (Path file : files) {
+                loaded.put(file.getFileName().toString(), Files.size(file));
+            }
+        }
+        index = loaded;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long lastUsed(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int size;
+        private final long usedBytes;
+        private final long maxBytes;
+
+        private Stats(long hits, long misses, long evictions, int size, long usedBytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.usedBytes = usedBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        public long hits() {
+            return hits;
+        }
+
+        public long misses() {
+            return misses;
+        }
+
+        public long evictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            if (maxBytes <= 0) {
+                return "Cache de imagenes convertidas: desactivada";
+            }
+            // sin recorrido de la carpeta aun no se conoce el espacio ocupado
+            String used = usedBytes < 0 ? "?" : String.format(Locale.ROOT, "%.1f", usedBytes / (1024.0 * 1024.0));
+            return "Cache de imagenes convertidas: hits=" + hits + ", misses=" + misses + ", expulsiones=" + evictions
+                    + ", entradas=" + (size < 0 ? "?" : String.valueOf(size))
+                    + ", ocupado=" + used + "/" + (maxBytes / (1024 * 1024)) + " MB";
+        }
+    }
+}
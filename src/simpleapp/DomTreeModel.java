@@ -0,0 +1,313 @@
+package simpleapp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Modelo de arbol que lee directamente del DOM, sin copiarlo a {@code DefaultMutableTreeNode}.
+ * Los hijos de un nodo se buscan la primera vez que el JTree los pide (al expandirlo) y cada entrada se crea
+ * y etiqueta solo cuando se pinta su fila: abrir una coleccion de 100.000 objetos cuesta lo mismo que abrir
+ * una pequena. El modelo es de solo lectura y debe usarse desde el hilo de eventos. El DOM de la coleccion se
+ * parsea ya expandido ({@link XmlUtils#parseCollection(java.nio.file.Path)}), de modo que pintar filas mientras
+ * una tarea lo transforma no cambia su estado interno.
+ * <p>
+ * Para colecciones {@code dc} se mantiene la vista agrupada (objetos, metadatos, recursos y relaciones);
+ * para cualquier otro documento, un nodo por elemento con sus atributos identificativos en la etiqueta.
+ */
+public final class DomTreeModel implements TreeModel {
+    private final Entry root;
+    private final EventListenerList listeners = new EventListenerList();
+
+    private DomTreeModel(Entry root) {
+        this.root = root;
+    }
+
+    public static DomTreeModel forDocument(Document doc) {
+        Element element = doc.getDocumentElement();
+        Kind kind = XmlUtils.isCollectionDocument(doc) ? Kind.COLLECTION : Kind.ELEMENT;
+        return new DomTreeModel(new Entry(kind, element, element));
+    }
+
+    @Override
+    public Object getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        return ((Entry) parent).child(index);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        return ((Entry) parent).childCount();
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return ((Entry) node).isLeaf();
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (!(parent instanceof Entry) || !(child instanceof Entry)) {
+            return -1;
+        }
+        return ((Entry) parent).indexOf((Entry) child);
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // arbol de solo lectura
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener listener) {
+        listeners.add(TreeModelListener.class, listener);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener listener) {
+        listeners.remove(TreeModelListener.class, listener);
+    }
+
+    private enum Kind {
+        COLLECTION, OBJECT, METADATA, RESOURCES, RELATIONS, METADATA_FIELD, RESOURCE, RELATION, ELEMENT
+    }
+
+    /**
+     * Nodo del arbol. {@link #getNode()} es el nodo DOM cuyo XML se muestra en el detalle (null en el grupo
+     * de metadatos, que no tiene elemento propio).
+     */
+    public static final class Entry {
+        private final Kind kind;
+        private final Node node;
+        private final Node owner;
+        private String label;
+        private Node[] childNodes;
+        private Entry[] children;
+
+        private Entry(Kind kind, Node node, Node owner) {
+            this.kind = kind;
+            this.node = node;
+            this.owner = owner;
+        }
+
+        public Node getNode() {
+            return node;
+        }
+
+        private boolean isLeaf() {
+            switch (kind) {
+                case METADATA_FIELD:
+                case RESOURCE:
+                case RELATION:
+                    return true;
+                case ELEMENT:
+                    // evita materializar la lista de hijos solo para pintar el icono
+                    return childNodes == null ? firstChildElement(owner) == null : childNodes.length == 0;
+                default:
+                    return childCount() == 0;
+            }
+        }
+
+        private int childCount() {
+            return childNodes().length;
+        }
+
+        private Entry child(int index) {
+            Node[] nodes = childNodes();
+            if (children == null) {
+                children = new Entry[nodes.length];
+            }
+            Entry child = children[index];
+            if (child == null) {
+                child = createChild(nodes[index]);
+                children[index] = child;
+            }
+            return child;
+        }
+
+        private int indexOf(Entry child) {
+            // solo puede ser hijo si ya se creo con child(index)
+            if (children == null) {
+                return -1;
+            }
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == child) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Node[] childNodes() {
+            if (childNodes == null) {
+                childNodes = collectChildNodes();
+            }
+            return childNodes;
+        }
+
+        private Node[] collectChildNodes() {
+            List<Node> nodes = new ArrayList<>();
+            switch (kind) {
+                case COLLECTION:
+                    for (Node child = owner.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        if (child.getNodeType() == Node.ELEMENT_NODE && "o".equals(localName(child))) {
+                            nodes.add(child);
+                        }
+                    }
+                    break;
+                case OBJECT:
+                    // grupos: el o (metadatos), su rs y su rels; cada uno solo si tiene contenido
+                    if (hasMetadata(owner)) nodes.add(owner);
+                    Element rs = firstDescendant((Element) owner, "rs");
+                    if (rs != null) nodes.add(rs);
+                    Element rels = firstDescendant((Element) owner, "rels");
+                    if (rels != null) nodes.add(rels);
+                    break;
+                case METADATA:
+                    for (Node child = owner.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        if (child.getNodeType() == Node.ELEMENT_NODE && isMetadata(child)) {
+                            nodes.add(child);
+                        }
+                    }
+                    break;
+                case RELATIONS:
+                    for (Node child = owner.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        if (child.getNodeType() == Node.ELEMENT_NODE && "rel".equals(child.getNodeName())) {
+                            nodes.add(child);
+                        }
+                    }
+                    break;
+                case RESOURCES:
+                case ELEMENT:
+                    for (Node child = owner.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        if (child.getNodeType() == Node.ELEMENT_NODE) {
+                            nodes.add(child);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return nodes.toArray(new Node[0]);
+        }
+
+        private Entry createChild(Node child) {
+            switch (kind) {
+                case COLLECTION:
+                    return new Entry(Kind.OBJECT, child, child);
+                case OBJECT:
+                    if (child == owner) return new Entry(Kind.METADATA, null, owner);
+                    if ("rs".equals(localName(child))) return new Entry(Kind.RESOURCES, child, child);
+                    return new Entry(Kind.RELATIONS, child, child);
+                case METADATA:
+                    return new Entry(Kind.METADATA_FIELD, child, child);
+                case RESOURCES:
+                    return new Entry(Kind.RESOURCE, child, child);
+                case RELATIONS:
+                    return new Entry(Kind.RELATION, child, child);
+                default:
+                    return new Entry(Kind.ELEMENT, child, child);
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (label == null) {
+                label = buildLabel();
+            }
+            return label;
+        }
+
+        private String buildLabel() {
+            switch (kind) {
+                case COLLECTION:
+                case METADATA_FIELD:
+                    return node.getNodeName();
+                case OBJECT: {
+                    String id = ((Element) node).getAttribute("id");
+                    return "o:" + (id.isEmpty() ? "(sin id)" : id);
+                }
+                case METADATA:
+                    return "metadatos";
+                case RESOURCES:
+                    return "recursos";
+                case RELATIONS:
+                    return "relaciones";
+                case RESOURCE: {
+                    Element el = (Element) node;
+                    String name = el.getAttribute("name");
+                    return el.getTagName() + (name.isEmpty() ? "" : ("(" + name + ")"));
+                }
+                case RELATION: {
+                    Element el = (Element) node;
+                    String ref = el.getAttribute("ref");
+                    String name = el.getAttribute("name");
+                    if (ref.isEmpty()) {
+                        // tolerar ejemplo con atributo id en lugar de ref
+                        ref = el.getAttribute("id");
+                    }
+                    return "rel:" + (name.isEmpty() ? "?" : name) + "->" + (ref.isEmpty() ? "?" : ref);
+                }
+                default:
+                    return buildGenericLabel((Element) node);
+            }
+        }
+    }
+
+    private static String buildGenericLabel(Element element) {
+        StringBuilder label = new StringBuilder(element.getTagName());
+        appendAttributeLabel(label, "id", element.getAttribute("id"));
+        appendAttributeLabel(label, "name", element.getAttribute("name"));
+        appendAttributeLabel(label, "type", element.getAttribute("type"));
+        appendAttributeLabel(label, "ref", element.getAttribute("ref"));
+        return label.toString();
+    }
+
+    private static void appendAttributeLabel(StringBuilder label, String name, String value) {
+        if (value == null || value.isBlank()) return;
+        label.append(" [").append(name).append('=').append(value).append(']');
+    }
+
+    private static boolean hasMetadata(Node object) {
+        for (Node child = object.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && isMetadata(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // metadatos: hijos del objeto distintos de rs/rels
+    private static boolean isMetadata(Node child) {
+        String name = child.getNodeName();
+        return !"rs".equals(name) && !"rels".equals(name);
+    }
+
+    private static Element firstDescendant(Element element, String name) {
+        return (Element) element.getElementsByTagName(name).item(0);
+    }
+
+    private static Node firstChildElement(Node parent) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static String localName(Node node) {
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+}
@@ -0,0 +1,577 @@
+package simpleapp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Escritor de los ZIP de exportacion. Las imagenes y demas formatos ya comprimidos se guardan sin comprimir
+ * ({@code STORED}, con el CRC calculado antes de escribir la cabecera): desinflarlos otra vez gasta CPU sin
+ * reducir apenas el tamano. El resto (XML, HTML, texto) se comprime como pigz: el contenido se parte en
+ * bloques de 128 KB que se comprimen en paralelo en un pool acotado ({@code -Dxslt.export.zip.threads}, por
+ * defecto numero de CPUs), cada uno con los ultimos 32 KB del anterior como diccionario, y se escriben en
+ * orden formando un unico flujo deflate valido.
+ * <p>
+ * El nivel de compresion se configura con {@code -Dxslt.export.zip.level} (0-9, por defecto 6). El ZIP
+ * resultante se lee con cualquier herramienta; se usa ZIP64 solo cuando los tamanos lo exigen. Una entrada
+ * comprimida no sabe su tamano al escribir la cabecera: si quien la abre anuncia un tamano cercano a 4 GB
+ * ({@link #openEntry(String, long)}), la cabecera local lleva el campo ZIP64 y el descriptor lleva tamanos de 8 bytes;
+ * si no, el descriptor es el clasico de 4 bytes (el que esperan lectores como {@code ZipInputStream}) y una
+ * entrada que acabe pasando de 4 GB falla en lugar de dejar un ZIP ilegible.
+ */
+public final class ExportZipWriter implements Closeable {
+    private static final String LEVEL_PROP = "xslt.export.zip.level";
+    private static final String THREADS_PROP = "xslt.export.zip.threads";
+    private static final int DEFAULT_LEVEL = 6;
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    // margen para lo que deflate anade a datos que no se comprimen
+    private static final long ZIP64_THRESHOLD = ZIP64_MAGIC - 64L * 1024 * 1024;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "avif", "heic", "heif", "jxl", "jp2",
+            "mp3", "mp4", "m4a", "m4v", "mov", "mkv", "webm", "ogg", "opus", "flac",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "docx", "xlsx", "pptx", "odt", "ods", "epub");
+    // un Deflater por hilo y nivel: cambiar el nivel de uno ya creado no combina bien con el diccionario
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(
+            () -> new Deflater[Deflater.BEST_COMPRESSION + 1]);
+    private static ForkJoinPool pool;
+
+    private final CountingOutputStream out;
+    private final int level;
+    private final int threads;
+    private final long dosTime;
+    private final List<CentralEntry> central = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final long start = System.nanoTime();
+    private DeflatedEntry current;
+    private long inputBytes;
+    private int storedEntries;
+    private boolean closed;
+
+    private ExportZipWriter(OutputStream target, int level) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(target, 1024 * 1024));
+        this.level = level;
+        this.threads = threadCount();
+        this.dosTime = toDosTime(LocalDateTime.now());
+    }
+
+    /**
+     * Crea (o sobrescribe) el ZIP de exportacion con el nivel configurado.
+     */
+    public static ExportZipWriter create(Path target) throws IOException {
+        return new ExportZipWriter(Files.newOutputStream(target), configuredLevel());
+    }
+
+    /**
+     * Indica si un fichero se guarda sin comprimir por su extension (formatos ya comprimidos).
+     */
+    public static boolean isCompressedFormat(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Anade un fichero: sin comprimir si su formato ya esta comprimido, comprimido en paralelo si no.
+     */
+    public void addFile(String entryName, Path file) throws IOException {
+        if (!isCompressedFormat(entryName)) {
+            try (OutputStream entry = openEntry(entryName, Files.size(file))) {
+                Files.copy(file, entry);
+            }
+            return;
+        }
+        closeCurrent();
+        checkName(entryName);
+        // Una entrada STORED necesita el CRC y el tamano en la cabecera: una pasada previa solo para el CRC
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = new byte[BLOCK_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                checkInterrupted();
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        CentralEntry entry = new CentralEntry(entryName, METHOD_STORED, FLAG_UTF8, out.count);
+        entry.crc = crc.getValue();
+        entry.size = size;
+        entry.compressedSize = size;
+        writeLocalHeader(entry, size >= ZIP64_MAGIC);
+        long copied = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                checkInterrupted();
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+        }
+        if (copied != size) {
+            throw new IOException("El fichero cambio mientras se exportaba: " + file);
+        }
+        central.add(entry);
+        inputBytes += size;
+        storedEntries++;
+    }
+
+    /**
+     * Abre una entrada comprimida en paralelo y devuelve el flujo donde escribir su contenido; la entrada
+     * termina al cerrar el flujo (o al abrir la siguiente). Sin tamano previsto no puede pasar de 4 GB.
+     */
+    public OutputStream openEntry(String entryName) throws IOException {
+        return openEntry(entryName, -1);
+    }
+
+    /**
+     * Igual que {@link #openEntry(String)} anunciando el tamano sin comprimir previsto (-1 si no se sabe):
+     * cerca de 4 GB o mas, la entrada se escribe en formato ZIP64.
+     */
+    public OutputStream openEntry(String entryName, long expectedSize) throws IOException {
+        closeCurrent();
+        checkName(entryName);
+        CentralEntry entry = new CentralEntry(entryName, METHOD_DEFLATED, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR, out.count);
+        boolean zip64 = expectedSize >= ZIP64_THRESHOLD;
+        // con ZIP64 el campo extra va a cero en la cabecera local: los tamanos reales van en el descriptor
+        writeLocalHeader(entry, zip64);
+        current = new DeflatedEntry(entry, zip64);
+        return current;
+    }
+
+    public Stats stats() {
+        return new Stats(central.size(), storedEntries, inputBytes, out.count, level, threads,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Escribe el directorio central y cierra el fichero.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            closeCurrent();
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void closeCurrent() throws IOException {
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void checkName(String entryName) throws IOException {
+        if (closed) {
+            throw new IOException("El ZIP de exportacion ya esta cerrado");
+        }
+        if (!names.add(entryName)) {
+            throw new ZipException("duplicate entry: " + entryName);
+        }
+    }
+
+    private void writeLocalHeader(CentralEntry entry, boolean zip64) throws IOException {
+        writeInt(0x04034b50L);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(dosTime);
+        if (entry.method == METHOD_STORED) {
+            writeInt(entry.crc);
+            writeInt(zip64 ? ZIP64_MAGIC : entry.compressedSize);
+            writeInt(zip64 ? ZIP64_MAGIC : entry.size);
+        } else {
+            // tamanos y CRC van en el descriptor que sigue a los datos
+            writeInt(0);
+            writeInt(0);
+            writeInt(0);
+        }
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(entry.name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralStart = out.count;
+        for (CentralEntry entry : central) {
+            boolean sizes64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            boolean offset64 = entry.offset >= ZIP64_MAGIC;
+            int extra = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+            writeInt(0x02014b50L);
+            writeShort(extra > 0 ? 45 : 20);
+            writeShort(extra > 0 ? 45 : 20);
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(dosTime);
+            writeInt(entry.crc);
+            writeInt(sizes64 ? ZIP64_MAGIC : entry.compressedSize);
+            writeInt(sizes64 ? ZIP64_MAGIC : entry.size);
+            writeShort(entry.name.length);
+            writeShort(extra > 0 ? extra + 4 : 0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(offset64 ? ZIP64_MAGIC : entry.offset);
+            out.write(entry.name);
+            if (extra > 0) {
+                writeShort(0x0001);
+                writeShort(extra);
+                if (sizes64) {
+                    writeLong(entry.size);
+                    writeLong(entry.compressedSize);
+                }
+                if (offset64) {
+                    writeLong(entry.offset);
+                }
+            }
+        }
+        long centralEnd = out.count;
+        long centralSize = centralEnd - centralStart;
+        if (central.size() >= 0xFFFF || centralSize >= ZIP64_MAGIC || centralStart >= ZIP64_MAGIC) {
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(central.size());
+            writeLong(central.size());
+            writeLong(centralSize);
+            writeLong(centralStart);
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(centralEnd);
+            writeInt(1);
+        }
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(central.size(), 0xFFFF));
+        writeShort(Math.min(central.size(), 0xFFFF));
+        writeInt(Math.min(centralSize, ZIP64_MAGIC));
+        writeInt(Math.min(centralStart, ZIP64_MAGIC));
+        writeShort(0);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & ZIP64_MAGIC);
+        writeInt(value >>> 32);
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Exportacion cancelada");
+        }
+    }
+
+    private static long toDosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (time.getYear() - 1980) << 25) | ((long) time.getMonthValue() << 21)
+                | ((long) time.getDayOfMonth() << 16) | ((long) time.getHour() << 11)
+                | ((long) time.getMinute() << 5) | (time.getSecond() >> 1);
+    }
+
+    private static int configuredLevel() {
+        int configured = Integer.getInteger(LEVEL_PROP, DEFAULT_LEVEL);
+        return Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, configured));
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount());
+        }
+        return pool;
+    }
+
+    private static int threadCount() {
+        return Math.max(1, Integer.getInteger(THREADS_PROP, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Comprime un bloque con un flujo deflate sin cabecera. Los bloques intermedios terminan con un
+     * SYNC_FLUSH (alineados a byte, sin marca de final) para poder concatenarlos; el ultimo cierra el flujo.
+     */
+    private static byte[] deflateBlock(byte[] data, int length, byte[] dictionary, int level, boolean last) {
+        Deflater[] byLevel = DEFLATERS.get();
+        if (byLevel[level] == null) {
+            byLevel[level] = new Deflater(level, true);
+        }
+        Deflater deflater = byLevel[level];
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data, 0, length);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 2));
+        byte[] buffer = new byte[64 * 1024];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int written = deflater.deflate(buffer);
+                compressed.write(buffer, 0, written);
+            }
+        } else {
+            int written;
+            do {
+                written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, written);
+            } while (written == buffer.length);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Contenido de una entrada comprimida: acumula bloques, los manda al pool y escribe en orden los que ya
+     * estan comprimidos. Como mucho hay dos bloques por hilo en vuelo, asi que la memoria queda acotada.
+     */
+    private final class DeflatedEntry extends OutputStream {
+        private final CentralEntry entry;
+        private final boolean zip64;
+        private final CRC32 crc = new CRC32();
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int filled;
+        private byte[] dictionary;
+        private boolean finished;
+
+        private DeflatedEntry(CentralEntry entry, boolean zip64) {
+            this.entry = entry;
+            this.zip64 = zip64;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            if (finished) throw new IOException("La entrada " + new String(entry.name, StandardCharsets.UTF_8) + " ya esta cerrada");
+            while (len > 0) {
+                int chunk = Math.min(len, block.length - filled);
+                System.arraycopy(data, off, block, filled, chunk);
+                filled += chunk;
+                off += chunk;
+                len -= chunk;
+                if (filled == block.length) {
+                    submit(false);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) return;
+            finished = true;
+            try {
+                submit(true);
+                while (!pending.isEmpty()) {
+                    drainOne();
+                }
+            } finally {
+                current = null;
+            }
+            entry.crc = crc.getValue();
+            if (!zip64 && (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC)) {
+                // el descriptor de 4 bytes no puede llevar estos tamanos y la cabecera ya esta escrita
+                throw new ZipException("La entrada " + new String(entry.name, StandardCharsets.UTF_8)
+                        + " supera 4 GB sin haberlo anunciado al abrirla");
+            }
+            writeInt(0x08074b50L);
+            writeInt(entry.crc);
+            if (zip64) {
+                writeLong(entry.compressedSize);
+                writeLong(entry.size);
+            } else {
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+            }
+            central.add(entry);
+            inputBytes += entry.size;
+        }
+
+        private void submit(boolean last) throws IOException {
+            checkInterrupted();
+            byte[] data = block;
+            int length = filled;
+            byte[] previous = dictionary;
+            crc.update(data, 0, length);
+            entry.size += length;
+            if (!last) {
+                // los ultimos 32 KB sin comprimir son el diccionario del bloque siguiente
+                dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+                block = new byte[BLOCK_SIZE];
+                filled = 0;
+            }
+            if (threads > 1) {
+                pending.add(getPool().submit(() -> deflateBlock(data, length, previous, level, last)));
+            } else {
+                pending.add(CompletableFuture.completedFuture(deflateBlock(data, length, previous, level, last)));
+            }
+            while (pending.size() > threads * 2) {
+                drainOne();
+            }
+        }
+
+        private void drainOne() throws IOException {
+            Future<byte[]> next = pending.removeFirst();
+            byte[] compressed;
+            try {
+                compressed = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.forEach(future -> future.cancel(true));
+                pending.clear();
+                throw new InterruptedIOException("Exportacion cancelada");
+            } catch (ExecutionException e) {
+                pending.clear();
+                throw new IOException("No se pudo comprimir la entrada: " + e.getCause(), e.getCause());
+            }
+            out.write(compressed);
+            entry.compressedSize += compressed.length;
+        }
+    }
+
+    private static final class CentralEntry {
+        private final byte[] name;
+        private final int method;
+        private final int flags;
+        private final long offset;
+        private long crc;
+        private long size;
+        private long compressedSize;
+
+        private CentralEntry(String name, int method, int flags, long offset) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.flags = flags;
+            this.offset = offset;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            out.write(data, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Resumen de una exportacion: entradas, bytes antes y despues de comprimir y rendimiento.
+     */
+    public static final class Stats {
+        private final int entries;
+        private final int storedEntries;
+        private final long inputBytes;
+        private final long outputBytes;
+        private final int level;
+        private final int threads;
+        private final long nanos;
+
+        private Stats(int entries, int storedEntries, long inputBytes, long outputBytes, int level, int threads,
+                      long nanos) {
+            this.entries = entries;
+            this.storedEntries = storedEntries;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.level = level;
+            this.threads = threads;
+            this.nanos = nanos;
+        }
+
+        public int entries() {
+            return entries;
+        }
+
+        public int storedEntries() {
+            return storedEntries;
+        }
+
+        public long inputBytes() {
+            return inputBytes;
+        }
+
+        public long outputBytes() {
+            return outputBytes;
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format(Locale.ROOT,
+                    "ZIP exportado: %d entradas (%d sin comprimir), %.1f MB -> %.1f MB en %.1f ms (%.1f MB/s, nivel %d, %d hilos)",
+                    entries, storedEntries, inputBytes / (1024.0 * 1024.0), outputBytes / (1024.0 * 1024.0),
+                    nanos / 1_000_000.0, inputBytes / (1024.0 * 1024.0) / seconds, level, threads);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package simpleapp;
 
+import org.apache.xalan.extensions.XSLProcessorContext;
+import org.apache.xalan.templates.ElemExtensionCall;
+
+import javax.xml.transform.TransformerException;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -28,6 +32,23 @@ public final class ExtensionComponents {
         return HANDLERS.get(name);
     }
 
+    /**
+     * Punto de entrada comun de las clases puente: localiza el handler por local-name y lo invoca,
+     * salvo que la sesion de la transformacion se haya cancelado.
+     */
+    public static void dispatch(String name, XSLProcessorContext context, ElemExtensionCall element)
+            throws TransformerException {
+        ExtensionElementHandler handler = get(name);
+        if (handler == null) {
+            throw new TransformerException("No hay handler para " + name);
+        }
+        TransformSession session = TransformSession.from(context);
+        if (session != null) {
+            session.checkCancelled();
+        }
+        handler.invoke(context, element);
+    }
+
     public static synchronized Map<String, ExtensionElementHandler> snapshot() {
         return Collections.unmodifiableMap(new LinkedHashMap<>(HANDLERS));
     }
@@ -0,0 +1,547 @@
+package simpleapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Cache en disco de ZIPs ya extraidos. La clave es el SHA-256 del directorio central (nombre, CRC y tamanos
+ * de cada entrada) junto con el tamano del ZIP: se calcula sin leer los datos comprimidos, asi que volver a
+ * abrir un ZIP sin cambios (aunque este en otra ruta o se haya copiado) cuesta lo mismo que abrirlo y
+ * reutiliza el arbol ya extraido: la carpeta de trabajo se rellena con enlaces duros a los ficheros de la
+ * cache (copias si el sistema de ficheros no los admite), sin descomprimir nada.
+ * <p>
+ * La cache solo se llena cuando el ZIP se extrae entero de todos modos: la carga con
+ * {@code -Dxslt.zip.lazy=false} ({@link #extract(Path, Path)}) o la exportacion de una coleccion abierta sin
+ * extraer, que ya tiene los recursos en disco ({@link ZipCollection#storeInCache()}). Un ZIP que no cabe
+ * se recuerda y no se vuelve a intentar. La cache solo contiene lo que trae el ZIP; los ficheros convertidos
+ * y los resultados se escriben en la carpeta de trabajo como ficheros nuevos y no llegan a ella. Al superar
+ * {@code -Dxslt.zip.cache.mb} (por defecto 2048; 0 la desactiva) se expulsan en segundo plano los arboles
+ * usados hace mas tiempo. En ese mismo hilo se borran las carpetas de trabajo que ya no hacen falta
+ * ({@link #deleteAsync(Path)}).
+ */
+public final class ExtractionCache {
+    private static final String DIR_PROP = "xslt.zip.cache.dir";
+    private static final String MAX_MB_PROP = "xslt.zip.cache.mb";
+    private static final long DEFAULT_MAX_MB = 2048;
+    private static final String STAGING_PREFIX = ".tmp-";
+    private static final String TRASH_PREFIX = ".trash-";
+    private static final ExtractionCache INSTANCE = new ExtractionCache();
+
+    private final Path root;
+    private final long maxBytes;
+    // arboles de la cache y su tamano, del usado hace mas tiempo al mas reciente; null hasta el primer recorrido
+    private Map<String, Long> index;
+    // huellas ya calculadas por ruta, fecha y tamano: reabrir el mismo fichero no relee su directorio central
+    private final Map<Path, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    // claves de ZIPs que no caben en la cache: no se vuelven a extraer para descartarlos
+    private final Set<String> oversized = ConcurrentHashMap.newKeySet();
+    private final Map<String, Object> keyLocks = new ConcurrentHashMap<>();
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "zip-cache-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean linksUnsupported;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ExtractionCache() {
+        String configured = System.getProperty(DIR_PROP);
+        this.root = (configured != null && !configured.isBlank()
+                ? Paths.get(configured.trim())
+                : Paths.get(System.getProperty("java.io.tmpdir"), "xslt-zip-cache")).toAbsolutePath().normalize();
+        this.maxBytes = Math.max(0, Long.getLong(MAX_MB_PROP, DEFAULT_MAX_MB)) * 1024 * 1024;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "zip-cache-shutdown"));
+    }
+
+    public static ExtractionCache getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Rellena {@code workDir} con el arbol en cache del ZIP si existe. Devuelve false si no esta (o la cache
+     * esta desactivada) y la carpeta queda como estaba.
+     */
+    public boolean restore(Path zipPath, Path workDir) throws IOException {
+        if (!isEnabled()) return false;
+        String key = fingerprint(zipPath).key;
+        if (link(key, workDir)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * XML de la coleccion dentro de {@code workDir}: el primer {@code .xml} del directorio central, la misma
+     * regla que {@link ZipCollection}, tanto si el arbol viene de la cache como de una extraccion. Null si el
+     * ZIP no trae ninguno.
+     */
+    public Path collectionXml(Path zipPath, Path workDir) throws IOException {
+        String name = fingerprint(zipPath).xmlEntry;
+        return name != null ? ZipUtils.entryTarget(workDir.toAbsolutePath().normalize(), name) : null;
+    }
+
+    /**
+     * Extrae el ZIP en {@code workDir} pasando por la cache: si ya esta, se enlaza; si no, se extrae una vez
+     * con {@link ZipUtils#extractZip} en la cache y se enlaza desde alli. Un ZIP mayor que toda la cache se
+     * extrae directamente en {@code workDir}.
+     */
+    public void extract(Path zipPath, Path workDir) throws IOException {
+        if (!isEnabled()) {
+            ZipUtils.extractZip(zipPath, workDir);
+            return;
+        }
+        String key = fingerprint(zipPath).key;
+        if (link(key, workDir)) {
+            hits.incrementAndGet();
+            return;
+        }
+        misses.incrementAndGet();
+        if (!accepts(zipPath) || !store(zipPath, key)) {
+            ZipUtils.extractZip(zipPath, workDir);
+            return;
+        }
+        if (!link(key, workDir)) {
+            // expulsado entre medias por otro proceso: se extrae sin cache
+            ZipUtils.extractZip(zipPath, workDir);
+        }
+    }
+
+    /**
+     * Indica si merece la pena guardar el ZIP: la cache esta activa, aun no lo tiene y el tamano descomprimido
+     * que declara el directorio central cabe en ella (y no se comprobo ya que no cabia).
+     */
+    boolean accepts(Path zipPath) throws IOException {
+        if (!isEnabled()) return false;
+        Fingerprint fingerprint = fingerprint(zipPath);
+        return fingerprint.declaredBytes <= maxBytes && !oversized.contains(fingerprint.key)
+                && !Files.isDirectory(root.resolve(fingerprint.key));
+    }
+
+    /**
+     * Guarda como arbol del ZIP los ficheros ya extraidos por una coleccion abierta sin extraccion completa
+     * (ruta relativa dentro del ZIP a fichero en la carpeta de trabajo). Se enlazan (o copian) y se
+     * publican con un renombrado atomico como en {@link #extract(Path, Path)}.
+     */
+    void storeTree(Path zipPath, Map<Path, Path> files) throws IOException {
+        if (!accepts(zipPath)) return;
+        String key = fingerprint(zipPath).key;
+        Path entry = root.resolve(key);
+        synchronized (keyLocks.computeIfAbsent(key, k -> new Object())) {
+            if (Files.isDirectory(entry)) return;
+            Files.createDirectories(root);
+            Path staging = Files.createTempDirectory(root, STAGING_PREFIX + key + "-");
+            try {
+                long bytes = 0;
+                for (Map.Entry<Path, Path> file : files.entrySet()) {
+                    Path target = staging.resolve(file.getKey().toString());
+                    Files.createDirectories(target.getParent());
+                    linkOrCopy(file.getValue(), target);
+                    bytes += Files.size(target);
+                }
+                try {
+                    Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // otro proceso lo guardo antes
+                    if (Files.isDirectory(entry)) return;
+                    throw e;
+                }
+                stored.incrementAndGet();
+                synchronized (this) {
+                    if (index != null) index.put(key, bytes);
+                }
+            } finally {
+                deleteQuietly(staging);
+            }
+        }
+        scheduleEviction();
+    }
+
+    /**
+     * Borra una carpeta en segundo plano (la de trabajo de una coleccion que se cierra). Los enlaces a la
+     * cache solo se desvinculan: los arboles de la cache no se tocan.
+     */
+    public void deleteAsync(Path dir) {
+        if (dir == null) return;
+        try {
+            cleaner.execute(new Deletion(dir));
+        } catch (RejectedExecutionException e) {
+            // la JVM ya se esta cerrando
+            deleteQuietly(dir);
+        }
+    }
+
+    public Stats stats() {
+        long used;
+        int size;
+        synchronized (this) {
+            used = index != null ? index.values().stream().mapToLong(Long::longValue).sum() : -1;
+            size = index != null ? index.size() : -1;
+        }
+        return new Stats(hits.get(), misses.get(), stored.get(), evictions.get(), size, used, maxBytes);
+    }
+
+    /**
+     * Extrae el ZIP a una carpeta temporal de la cache y la publica con un renombrado atomico: un arbol de
+     * la cache siempre esta completo. Devuelve false si no cabe en la cache.
+     */
+    private boolean store(Path zipPath, String key) throws IOException {
+        Path entry = root.resolve(key);
+        synchronized (keyLocks.computeIfAbsent(key, k -> new Object())) {
+            if (Files.isDirectory(entry)) return true;
+            Files.createDirectories(root);
+            Path staging = Files.createTempDirectory(root, STAGING_PREFIX + key + "-");
+            try {
+                // la extraccion se corta al superar la cache entera: ese ZIP se extrae fuera de ella
+                long zipLimit = ZipUtils.defaultMaxBytes();
+                boolean cacheIsTighter = zipLimit <= 0 || maxBytes < zipLimit;
+                ZipUtils.ExtractionStats extracted;
+                try {
+                    extracted = ZipUtils.extractZip(zipPath, staging, cacheIsTighter ? maxBytes : zipLimit,
+                            ZipUtils.defaultMaxEntries());
+                } catch (ZipUtils.ZipLimitException e) {
+                    if (cacheIsTighter) {
+                        // el directorio central mentia sobre el tamano: no se vuelve a intentar
+                        oversized.add(key);
+                        return false;
+                    }
+                    throw e;
+                }
+                try {
+                    Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // otro proceso lo guardo antes
+                    if (Files.isDirectory(entry)) return true;
+                    throw e;
+                }
+                stored.incrementAndGet();
+                synchronized (this) {
+                    if (index != null) index.put(key, extracted.bytes());
+                }
+            } finally {
+                deleteQuietly(staging);
+            }
+        }
+        scheduleEviction();
+        return true;
+    }
+
+    /**
+     * Enlaza el arbol de la cache en {@code workDir}. Bajo el cerrojo de la clave, para que una expulsion no
+     * lo borre a mitad.
+     */
+    private boolean link(String key, Path workDir) throws IOException {
+        Path entry = root.resolve(key);
+        synchronized (keyLocks.computeIfAbsent(key, k -> new Object())) {
+            if (!Files.isDirectory(entry)) return false;
+            Path base = workDir.toAbsolutePath().normalize();
+            try (Stream<Path> walk = Files.walk(entry)) {
+                for (Path source : (Iterable<Path>) walk::iterator) {
+                    Path target = base.resolve(entry.relativize(source).toString());
+                    if (Files.isDirectory(source)) {
+                        Files.createDirectories(target);
+                    } else {
+                        linkOrCopy(source, target);
+                    }
+                }
+            }
+            // la fecha de la carpeta marca el ultimo uso (orden LRU tambien entre ejecuciones)
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            synchronized (this) {
+                if (index != null) index.get(key);
+            }
+            return true;
+        }
+    }
+
+    private void linkOrCopy(Path source, Path target) throws IOException {
+        if (!linksUnsupported) {
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (UnsupportedOperationException | IOException e) {
+                // otro sistema de ficheros o sin permiso: a partir de aqui se copia
+                linksUnsupported = !(e instanceof FileAlreadyExistsException);
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void scheduleEviction() {
+        submit(() -> {
+            try {
+                evict();
+            } catch (IOException e) {
+                System.err.println("[zip-cache] Error al limpiar la cache: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Expulsa los arboles usados hace mas tiempo hasta quedar dentro del presupuesto. Cada uno se renombra
+     * antes de borrarlo, asi que una apertura concurrente lo ve entero o no lo ve.
+     */
+    private void evict() throws IOException {
+        loadIndex();
+        while (true) {
+            String eldest;
+            synchronized (this) {
+                long used = index.values().stream().mapToLong(Long::longValue).sum();
+                if (used <= maxBytes || index.isEmpty()) return;
+                Iterator<String> keys = index.keySet().iterator();
+                eldest = keys.next();
+                keys.remove();
+            }
+            Path trash;
+            synchronized (keyLocks.computeIfAbsent(eldest, k -> new Object())) {
+                Path entry = root.resolve(eldest);
+                if (!Files.isDirectory(entry)) continue;
+                trash = root.resolve(TRASH_PREFIX + eldest + "-" + System.nanoTime());
+                Files.move(entry, trash, StandardCopyOption.ATOMIC_MOVE);
+            }
+            evictions.incrementAndGet();
+            deleteQuietly(trash);
+        }
+    }
+
+    /**
+     * Primer recorrido de la carpeta de la cache (en el hilo de limpieza): tamano de cada arbol y orden por
+     * fecha de ultimo uso. Se borran de paso los restos de extracciones o expulsiones interrumpidas.
+     */
+    private void loadIndex() throws IOException {
+        synchronized (this) {
+            if (index != null) return;
+        }
+        Map<String, Long> loaded = new LinkedHashMap<>(16, 0.75f, true);
+        if (Files.isDirectory(root)) {
+            List<Path> dirs = new ArrayList<>();
+            long staleBefore = System.currentTimeMillis() - 24L * 60 * 60 * 1000;
+            try (Stream<Path> children = Files.list(root)) {
+                for (Path child : (Iterable<Path>) children::iterator) {
+                    String name = child.getFileName().toString();
+                    if (name.startsWith(TRASH_PREFIX) || name.startsWith(STAGING_PREFIX)) {
+                        // una extraccion en curso de otro proceso es reciente: solo se borra lo antiguo
+                        if (Files.getLastModifiedTime(child).toMillis() < staleBefore) deleteQuietly(child);
+                    } else if (Files.isDirectory(child)) {
+                        dirs.add(child);
+                    }
+                }
+            }
+            dirs.sort(Comparator.comparingLong(ExtractionCache::lastUsed));
+            for (Path dir : dirs) {
+                loaded.put(dir.getFileName().toString(), sizeOf(dir));
+            }
+        }
+        synchronized (this) {
+            if (index == null) {
+                index = loaded;
+            }
+        }
+    }
+
+    /**
+     * Huella del ZIP a partir de su directorio central: clave (SHA-256 de nombre, CRC y tamanos de cada
+     * entrada, mas el tamano del ZIP), tamano descomprimido declarado y XML de la coleccion. No se leen los
+     * datos comprimidos; se recalcula solo si cambia la fecha o el tamano del fichero. Como en
+     * {@link FileStamp}, un ZIP escrito hace muy poco no se recuerda.
+     */
+    private Fingerprint fingerprint(Path zipPath) throws IOException {
+        Path path = zipPath.toAbsolutePath().normalize();
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        long size = Files.size(path);
+        Fingerprint known = fingerprints.get(path);
+        if (known != null && known.lastModified == lastModified && known.size == size) {
+            return known;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long declared = 0;
+        String xmlEntry = null;
+        try (ZipFile zip = new ZipFile(path.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                digest.update((entry.getName() + "\n" + entry.getCrc() + "\n" + entry.getSize() + "\n"
+                        + entry.getCompressedSize() + "\n").getBytes(StandardCharsets.UTF_8));
+                if (entry.isDirectory()) continue;
+                // sin tamano declarado no se puede saber si cabe: se intenta y el limite de extraccion decide
+                declared += Math.max(0, entry.getSize());
+                if (xmlEntry == null && ZipCollection.isCollectionXml(entry)) {
+                    xmlEntry = entry.getName();
+                }
+            }
+        }
+        String key = HexFormat.of().formatHex(digest.digest()) + "-" + size;
+        Fingerprint fingerprint = new Fingerprint(lastModified, size, key, declared, xmlEntry);
+        if (FileStamp.isSettled(lastModified)) {
+            fingerprints.put(path, fingerprint);
+        } else {
+            fingerprints.remove(path);
+        }
+        return fingerprint;
+    }
+
+    private static long lastUsed(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            return walk.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            cleaner.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // la JVM se esta cerrando: se hara en la proxima ejecucion
+        }
+    }
+
+    /**
+     * Al salir no se espera a guardar nada en la cache (la extraccion a medias se descarta), pero si se
+     * borran las carpetas de trabajo pendientes para no dejar restos en el temporal.
+     */
+    private void shutdown() {
+        for (Runnable pending : cleaner.shutdownNow()) {
+            if (pending instanceof Deletion) {
+                pending.run();
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path dir) {
+        try {
+            if (Files.exists(dir)) XmlUtils.deleteDirectoryRecursively(dir);
+        } catch (Exception ignored) {
+            // restos temporales: no impiden seguir trabajando
+        }
+    }
+
+    private static final class Deletion implements Runnable {
+        private final Path dir;
+
+        private Deletion(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public void run() {
+            deleteQuietly(dir);
+        }
+    }
+
+    private static final class Fingerprint {
+        private final long lastModified;
+        private final long size;
+        private final String key;
+        private final long declaredBytes;
+        private final String xmlEntry;
+
+        private Fingerprint(long lastModified, long size, String key, long declaredBytes, String xmlEntry) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.key = Objects.requireNonNull(key);
+            this.declaredBytes = declaredBytes;
+            this.xmlEntry = xmlEntry;
+        }
+    }
+
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long stored;
+        private final long evictions;
+        private final int size;
+        private final long usedBytes;
+        private final long maxBytes;
+
+        private Stats(long hits, long misses, long stored, long evictions, int size, long usedBytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.stored = stored;
+            this.evictions = evictions;
+            this.size = size;
+            this.usedBytes = usedBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        public long hits() {
+            return hits;
+        }
+
+        public long misses() {
+            return misses;
+        }
+
+        public long stored() {
+            return stored;
+        }
+
+        public long evictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            if (maxBytes <= 0) {
+                return "Cache de ZIP extraidos: desactivada";
+            }
+            // sin recorrido de la carpeta aun no se conoce el espacio ocupado
+            String used = usedBytes < 0 ? "?" : String.format(Locale.ROOT, "%.1f", usedBytes / (1024.0 * 1024.0));
+            return "Cache de ZIP extraidos: hits=" + hits + ", misses=" + misses + ", guardados=" + stored
+                    + ", expulsiones=" + evictions + ", entradas=" + (size < 0 ? "?" : String.valueOf(size))
+                    + ", ocupado=" + used + "/" + (maxBytes / (1024 * 1024)) + " MB";
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package simpleapp;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Vista previa paginada de un fichero UTF-8 (el XML cargado o el resultado de la transformacion).
+ * Solo se lee y se pinta la pagina visible (unos 64 KB cortados en fin de linea); ir a una posicion y buscar
+ * trabajan sobre el fichero, sin cargarlo entero, asi que un resultado de cientos de MB no pasa por el heap
+ * ni por un JTextArea gigante.
+ * <p>
+ * Las lecturas son posicionales sobre un {@link FileChannel} que se abre y se cierra en cada operacion: el
+ * fichero no queda bloqueado y se puede borrar en cualquier momento (en Windows, un fichero mapeado en memoria
+ * no se puede borrar hasta que el recolector libera el mapeo).
+ */
+public final class FilePreviewPanel extends JPanel {
+    private static final int PAGE_BYTES = 64 * 1024;
+    private static final int LINE_ALIGN_BYTES = 4 * 1024;
+    private static final int SEARCH_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private final JTextArea textArea = new JTextArea();
+    private final JButton prevBtn = new JButton("< Anterior");
+    private final JButton nextBtn = new JButton("Siguiente >");
+    private final JTextField gotoField = new JTextField(8);
+    private final JButton gotoBtn = new JButton("Ir a");
+    private final JTextField findField = new JTextField(14);
+    private final JButton findBtn = new JButton("Buscar");
+    private final JLabel positionLabel = new JLabel(" ");
+
+    private Path file;
+    private long fileSize;
+    private long pageStart;
+    private long pageEnd;
+    private long searchFrom;
+    private SwingWorker<Long, Void> search;
+
+    public FilePreviewPanel() {
+        super(new BorderLayout(4, 4));
+        textArea.setEditable(false);
+        textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        add(new JScrollPane(textArea), BorderLayout.CENTER);
+
+        JPanel nav = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        nav.add(prevBtn);
+        nav.add(nextBtn);
+        nav.add(gotoBtn);
+        nav.add(gotoField);
+        nav.add(findField);
+        nav.add(findBtn);
+        nav.add(positionLabel);
+        gotoField.setToolTipText("Byte del fichero o porcentaje (por ejemplo, 50%)");
+        add(nav, BorderLayout.SOUTH);
+
+        prevBtn.addActionListener(e -> showPage(Math.max(0, pageStart - PAGE_BYTES)));
+        nextBtn.addActionListener(e -> showPage(pageEnd));
+        gotoBtn.addActionListener(e -> goTo());
+        gotoField.addActionListener(e -> goTo());
+        findBtn.addActionListener(e -> find());
+        findField.addActionListener(e -> find());
+        updateControls();
+    }
+
+    /**
+     * Muestra la primera pagina del fichero. El fichero no se copia: debe seguir existiendo mientras se muestre.
+     */
+    public void showFile(Path file) throws IOException {
+        cancelSearch();
+        this.file = file;
+        this.fileSize = Files.size(file);
+        this.searchFrom = 0;
+        showPage(0);
+    }
+
+    /**
+     * Sustituye la vista por un texto fijo (sin fichero asociado).
+     */
+    public void showMessage(String text) {
+        cancelSearch();
+        file = null;
+        fileSize = 0;
+        pageStart = 0;
+        pageEnd = 0;
+        textArea.setText(text);
+        textArea.setCaretPosition(0);
+        positionLabel.setText(" ");
+        updateControls();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private void showPage(long requestedStart) {
+        if (file == null) return;
+        try {
+            loadPage(requestedStart);
+            textArea.setCaretPosition(0);
+        } catch (IOException ex) {
+            textArea.setText("No se pudo leer la vista previa: " + ex.getMessage());
+        }
+        updateControls();
+    }
+
+    /**
+     * Lee la pagina que contiene {@code requestedStart}: empieza al principio de su linea y termina en el
+     * ultimo salto de linea antes de {@link #PAGE_BYTES}. Sin saltos cercanos se corta en un limite de caracter.
+     */
+    private void loadPage(long requestedStart) throws IOException {
+        long from = Math.max(0, requestedStart - LINE_ALIGN_BYTES);
+        int length = (int) Math.min(fileSize - from, (requestedStart - from) + PAGE_BYTES + LINE_ALIGN_BYTES);
+        byte[] bytes = read(from, length);
+
+        int requested = (int) (requestedStart - from);
+        int start = requested;
+        while (start > 0 && bytes[start - 1] != '\n') {
+            start--;
+        }
+        if (start == 0 && from > 0) {
+            // linea mas larga que el margen: se empieza en la posicion pedida, en limite de caracter
+            start = requested;
+            while (start < bytes.length && isContinuation(bytes[start])) start++;
+        }
+
+        int end;
+        if (from + bytes.length >= fileSize && bytes.length - start <= PAGE_BYTES) {
+            end = bytes.length;
+        } else {
+            int limit = Math.min(bytes.length, start + PAGE_BYTES);
+            end = limit;
+            while (end > start + PAGE_BYTES / 2 && bytes[end - 1] != '\n') {
+                end--;
+            }
+            if (bytes[end - 1] != '\n') {
+                end = limit;
+                while (end > start && end < bytes.length && isContinuation(bytes[end])) end--;
+            }
+        }
+
+        pageStart = from + start;
+        pageEnd = from + end;
+        textArea.setText(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    private void goTo() {
+        if (file == null) return;
+        String value = gotoField.getText().trim();
+        try {
+            long target = value.endsWith("%")
+                    ? (long) (fileSize * (Double.parseDouble(value.substring(0, value.length() - 1).replace(',', '.')) / 100.0))
+                    : Long.parseLong(value.replace(".", "").replace(",", ""));
+            target = Math.max(0, Math.min(target, Math.max(0, fileSize - 1)));
+            searchFrom = target;
+            showPage(target);
+        } catch (NumberFormatException ex) {
+            positionLabel.setText("Posicion no valida: " + gotoField.getText());
+        }
+    }
+
+    /**
+     * Busca el texto (distingue mayusculas) desde la ultima coincidencia hasta el final y despues desde el
+     * principio. Recorre el fichero por bloques en segundo plano.
+     */
+    private void find() {
+        if (file == null || findField.getText().isEmpty() || search != null) return;
+        byte[] pattern = findField.getText().getBytes(StandardCharsets.UTF_8);
+        Path searched = file;
+        long size = fileSize;
+        long from = searchFrom;
+        findBtn.setEnabled(false);
+        positionLabel.setText("Buscando...");
+        search = new SwingWorker<>() {
+            @Override
+            protected Long doInBackground() throws Exception {
+                long found = indexOf(searched, size, pattern, from, size);
+                if (found < 0 && from > 0) {
+                    found = indexOf(searched, size, pattern, 0, from);
+                }
+                return found;
+            }
+
+            @Override
+            protected void done() {
+                if (search != this) return;
+                search = null;
+                if (isCancelled() || file != searched) {
+                    updateControls();
+                    return;
+                }
+                try {
+                    long found = get();
+                    if (found < 0) {
+                        updateControls();
+                        positionLabel.setText("No se encontro \"" + findField.getText() + "\"");
+                        return;
+                    }
+                    searchFrom = found + 1;
+                    showMatch(found, pattern);
+                } catch (InterruptedException | ExecutionException ex) {
+                    updateControls();
+                    positionLabel.setText("Error al buscar: " + ex.getMessage());
+                }
+            }
+        };
+        search.execute();
+    }
+
+    private void showMatch(long offset, byte[] pattern) {
+        try {
+            // algo de contexto por encima de la coincidencia
+            loadPage(Math.max(0, offset - PAGE_BYTES / 4));
+            int prefix = (int) (offset - pageStart);
+            byte[] bytes = read(pageStart, (int) Math.min(pageEnd - pageStart, prefix + pattern.length));
+            int startChar = new String(bytes, 0, prefix, StandardCharsets.UTF_8).length();
+            int endChar = new String(bytes, 0, bytes.length, StandardCharsets.UTF_8).length();
+            textArea.setCaretPosition(startChar);
+            textArea.moveCaretPosition(endChar);
+            textArea.getCaret().setSelectionVisible(true);
+        } catch (IOException ex) {
+            textArea.setText("No se pudo leer la vista previa: " + ex.getMessage());
+        }
+        updateControls();
+    }
+
+    private void cancelSearch() {
+        if (search != null) {
+            search.cancel(true);
+            search = null;
+        }
+    }
+
+    private void updateControls() {
+        boolean hasFile = file != null;
+        prevBtn.setEnabled(hasFile && pageStart > 0);
+        nextBtn.setEnabled(hasFile && pageEnd < fileSize);
+        gotoBtn.setEnabled(hasFile);
+        gotoField.setEnabled(hasFile);
+        findField.setEnabled(hasFile);
+        findBtn.setEnabled(hasFile && search == null);
+        if (hasFile) {
+            long percent = fileSize > 0 ? pageEnd * 100 / fileSize : 100;
+            positionLabel.setText(String.format("Bytes %,d-%,d de %,d (%d%%)", pageStart, pageEnd, fileSize, percent));
+        }
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    private static byte[] read(Path file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        if (buffer.hasRemaining()) {
+            // el fichero se acorto mientras se leia
+            byte[] partial = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, partial, 0, partial.length);
+            return partial;
+        }
+        return buffer.array();
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        return read(file, position, length);
+    }
+
+    /**
+     * Primera aparicion de {@code pattern} que empieza en [from, to), o -1. Los bloques se solapan en
+     * {@code pattern.length - 1} bytes para no perder coincidencias partidas entre dos lecturas.
+     */
+    private static long indexOf(Path file, long size, byte[] pattern, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SEARCH_CHUNK_BYTES + pattern.length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = from;
+            while (position < to) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return -1;
+                }
+                buffer.clear();
+                int length = (int) Math.min(buffer.capacity(), size - position);
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                byte[] bytes = buffer.array();
+                int read = buffer.position();
+                int lastStart = (int) Math.min(read - pattern.length, to - 1 - position);
+                for (int i = 0; i <= lastStart; i++) {
+                    if (bytes[i] != pattern[0]) continue;
+                    int j = 1;
+                    while (j < pattern.length && bytes[i + j] == pattern[j]) j++;
+                    if (j == pattern.length) {
+                        return position + i;
+                    }
+                }
+                if (read < pattern.length || position + read >= size) {
+                    return -1;
+                }
+                position += read - pattern.length + 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,105 @@
+package simpleapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Version de un fichero: fecha de modificacion, tamano y SHA-256 del contenido.
+ * Se usa como clave de los caches que dependen del contenido de una hoja XSLT o de una imagen de origen
+ * ({@link ConversionCache}).
+ * <p>
+ * El hash solo se calcula cuando cambian la fecha o el tamano: cada fichero recuerda su ultima version y,
+ * si ambos coinciden, se devuelve sin releer el contenido. Un fichero modificado hace menos de
+ * {@link #RACY_MILLIS} ms no se recuerda, porque otra escritura en el mismo instante podria conservar fecha y
+ * tamano.
+ */
+public final class FileStamp {
+    private static final long RACY_MILLIS = 2000;
+    // hojas e imagenes de origen de las colecciones recientes
+    private static final int MAX_KNOWN = 4096;
+    private static final Map<Path, FileStamp> KNOWN = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, FileStamp> eldest) {
+            return size() > MAX_KNOWN;
+        }
+    };
+
+    private final long lastModified;
+    private final long size;
+    private final String hash;
+
+    private FileStamp(long lastModified, long size, String hash) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    public static FileStamp of(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        synchronized (KNOWN) {
+            FileStamp known = KNOWN.get(key);
+            if (known != null && known.lastModified == lastModified && known.size == attributes.size()) {
+                return known;
+            }
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long size = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(key)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        FileStamp stamp = new FileStamp(lastModified, size, HexFormat.of().formatHex(digest.digest()));
+        synchronized (KNOWN) {
+            if (isSettled(lastModified)) {
+                KNOWN.put(key, stamp);
+            } else {
+                KNOWN.remove(key);
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Indica si un fichero con esa fecha de modificacion puede recordarse por fecha y tamano; lo usan tambien
+     * las huellas de {@link ExtractionCache}.
+     */
+    static boolean isSettled(long lastModified) {
+        return System.currentTimeMillis() - lastModified >= RACY_MILLIS;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof FileStamp stamp)) return false;
+        return lastModified == stamp.lastModified && size == stamp.size && hash.equals(stamp.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(lastModified, size, hash);
+    }
+}
@@ -0,0 +1,408 @@
+package simpleapp;
+
+import javax.xml.transform.TransformerException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Conversiones de imagen pendientes de una {@link TransformSession}. La ruta de salida de
+ * {@code changeImageFormat} es determinista, asi que la extension la escribe en el resultado en el acto y
+ * deja la conversion en esta cola: la hoja sigue recorriendo el documento mientras ImageMagick trabaja.
+ * La transformacion espera a todas antes de devolver el resultado ({@link #awaitAll()}) e informa de todos
+ * los fallos juntos.
+ * <p>
+ * Todas las sesiones comparten un pool acotado ({@code -Dxslt.convert.threads}, por defecto numero de CPUs),
+ * que limita los procesos de ImageMagick simultaneos. Cada conversion tiene {@code -Dxslt.convert.timeout.s}
+ * segundos (por defecto 60) desde que empieza; con {@code -Dxslt.convert.async=false} se convierte dentro
+ * de la plantilla, como antes.
+ * <p>
+ * Las conversiones que lo admiten ({@link BatchableConversion}) se agrupan en lotes de hasta
+ * {@code -Dxslt.convert.batch} imagenes (por defecto 32; 1 lo desactiva) que se convierten con un solo proceso
+ * ({@link MagickBatch}). Un lote sale al llenarse o cuando la transformacion espera; las imagenes que fallan
+ * en el lote se convierten despues una a una. El lote entero tiene como mucho el triple del tiempo de una
+ * conversion, asi que una imagen que cuelga a ImageMagick no retiene a las demas.
+ */
+public final class ImageConversionQueue {
+    private static final String THREADS_PROP = "xslt.convert.threads";
+    private static final String TIMEOUT_PROP = "xslt.convert.timeout.s";
+    private static final String ASYNC_PROP = "xslt.convert.async";
+    private static final String BATCH_PROP = "xslt.convert.batch";
+    private static final long DEFAULT_TIMEOUT_SECONDS = 60;
+    private static final int DEFAULT_BATCH_SIZE = 32;
+    private static ForkJoinPool pool;
+
+    private final TransformSession session;
+    // una conversion por fichero de salida: dos objetos que piden la misma imagen comparten el trabajo
+    private final Map<Path, Job> jobs = new LinkedHashMap<>();
+    // lote en formacion y lotes lanzados, todo bajo el cerrojo de jobs
+    private List<Job> batch = new ArrayList<>();
+    private final List<Future<Void>> batches = new ArrayList<>();
+
+    ImageConversionQueue(TransformSession session) {
+        this.session = session;
+    }
+
+    public static boolean isAsyncEnabled() {
+        return Boolean.parseBoolean(System.getProperty(ASYNC_PROP, "true"));
+    }
+
+    /**
+     * Segundos que puede tardar una conversion (cada intento con un comando externo).
+     */
+    public static long timeoutSeconds() {
+        return Math.max(1, Long.getLong(TIMEOUT_PROP, DEFAULT_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Imagenes por proceso de ImageMagick en los lotes; 1 convierte cada imagen por separado.
+     */
+    public static int batchSize() {
+        return Math.max(1, Integer.getInteger(BATCH_PROP, DEFAULT_BATCH_SIZE));
+    }
+
+    /**
+     * Encola la conversion que produce {@code output}. Si ya hay una para ese fichero en la sesion, no se
+     * repite. Con la cola desactivada se ejecuta aqui mismo y su error se propaga.
+     */
+    public void submit(Path input, Path output, Conversion conversion) throws TransformerException {
+        Path key = output.toAbsolutePath().normalize();
+        if (!isAsyncEnabled()) {
+            runLocked(key, conversion);
+            return;
+        }
+        synchronized (jobs) {
+            if (jobs.containsKey(key)) {
+                return;
+            }
+            Job job = new Job(input, key);
+            jobs.put(key, job);
+            if (conversion instanceof BatchableConversion && ((BatchableConversion) conversion).usesExternalProcess()
+                    && batchSize() > 1 && MagickBatch.isAvailable()) {
+                job.batchable = (BatchableConversion) conversion;
+                job.result = new CompletableFuture<>();
+                job.future = job.result;
+                batch.add(job);
+                if (batch.size() >= batchSize()) {
+                    flushBatch();
+                }
+                return;
+            }
+            job.future = getPool().submit(() -> {
+                // una sesion cancelada no arranca las que aun esperaban turno
+                session.checkCancelled();
+                runLocked(key, conversion);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Espera a que terminen todas las conversiones encoladas. Si alguna fallo, lanza una excepcion con la
+     * lista completa; la cola queda vacia en cualquier caso.
+     */
+    public void awaitAll() throws TransformerException {
+        synchronized (jobs) {
+            flushBatch();
+        }
+        List<Job> pending = drain();
+        List<String> failures = new ArrayList<>();
+        Throwable firstCause = null;
+        for (Job job : pending) {
+            Throwable cause = await(job.future);
+            if (cause != null) {
+                failures.add(job.output.getFileName() + " (" + job.input + "): " + describe(cause));
+                if (firstCause == null) firstCause = cause;
+            }
+        }
+        for (Future<Void> running : drainBatches()) {
+            await(running);
+        }
+        session.checkCancelled();
+        if (failures.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(String.format(Locale.ROOT,
+                "No se pudieron convertir %d de %d imagenes", failures.size(), pending.size()));
+        for (String failure : failures) {
+            message.append(System.lineSeparator()).append("  ").append(failure);
+        }
+        throw new TransformerException(message.toString(), firstCause);
+    }
+
+    /**
+     * La transformacion fallo: se descartan las conversiones que no han empezado y se espera a las que estan
+     * en marcha, sin informar de sus errores, para no dejar procesos escribiendo en la carpeta de trabajo.
+     */
+    public void discard() {
+        List<Job> pending = drain();
+        for (Job job : pending) {
+            job.future.cancel(false);
+        }
+        for (Job job : pending) {
+            await(job.future);
+        }
+        // un lote sigue escribiendo aunque sus conversiones se hayan descartado
+        for (Future<Void> running : drainBatches()) {
+            await(running);
+        }
+    }
+
+    public int pendingCount() {
+        synchronized (jobs) {
+            return jobs.size();
+        }
+    }
+
+    private List<Job> drain() {
+        synchronized (jobs) {
+            List<Job> pending = new ArrayList<>(jobs.values());
+            jobs.clear();
+            // un lote sin lanzar se descarta con sus conversiones (discard cancela sus futuros)
+            batch = new ArrayList<>();
+            return pending;
+        }
+    }
+
+    private List<Future<Void>> drainBatches() {
+        synchronized (jobs) {
+            List<Future<Void>> running = new ArrayList<>(batches);
+            batches.clear();
+            return running;
+        }
+    }
+
+    /**
+     * Lanza el lote en formacion como una sola tarea del pool. Se llama con el cerrojo de jobs.
+     */
+    private void flushBatch() {
+        if (batch.isEmpty()) return;
+        List<Job> items = batch;
+        batch = new ArrayList<>();
+        batches.removeIf(Future::isDone);
+        batches.add(getPool().submit(() -> {
+            runBatch(items);
+            return null;
+        }));
+    }
+
+    /**
+     * Convierte un lote: primero cada conversion se resuelve si puede sin ImageMagick (cache), luego el resto
+     * va a un solo proceso y las que este no produjo se convierten una a una. Cada conversion termina con su
+     * propio resultado, para que {@link #awaitAll()} informe de cada imagen.
+     */
+    private void runBatch(List<Job> items) {
+        List<Job> live = new ArrayList<>();
+        for (Job job : items) {
+            // discard cancela los futuros de las que aun no habian empezado
+            if (!job.future.isDone()) live.add(job);
+        }
+        if (live.isEmpty()) return;
+        live.sort(Comparator.comparing(job -> job.output));
+        try {
+            session.checkCancelled();
+            runLocked(live, 0, () -> convertBatch(live));
+        } catch (TransformerException | RuntimeException e) {
+            for (Job job : live) {
+                job.finish(e);
+            }
+        }
+    }
+
+    private void convertBatch(List<Job> live) throws TransformerException {
+        Map<Path, Path> inputsByOutput = new LinkedHashMap<>();
+        List<Job> toConvert = new ArrayList<>();
+        for (Job job : live) {
+            try {
+                if (job.batchable.prepare()) {
+                    job.finish(null);
+                } else {
+                    toConvert.add(job);
+                    inputsByOutput.put(job.batchable.batchOutput(), job.input);
+                }
+            } catch (TransformerException | RuntimeException e) {
+                job.finish(e);
+            }
+        }
+        if (toConvert.isEmpty()) return;
+        MagickBatch.Result batch;
+        try {
+            batch = ImageConversionService.getInstance().convertBatch(inputsByOutput, session);
+        } catch (TransformerException | RuntimeException e) {
+            for (Job job : toConvert) {
+                job.batchable.discardStaging();
+            }
+            throw e;
+        }
+        for (Job job : toConvert) {
+            try {
+                if (batch.failures().containsKey(job.batchable.batchOutput())) {
+                    session.checkCancelled();
+                    job.batchable.convertAlone();
+                } else {
+                    job.batchable.convertedInBatch(batch.executable());
+                }
+                job.batchable.completed();
+                job.finish(null);
+            } catch (TransformerException | RuntimeException e) {
+                job.finish(e);
+            }
+        }
+    }
+
+    /**
+     * Toma los cerrojos de salida de todo el lote, en orden de ruta, antes de convertir.
+     */
+    private void runLocked(List<Job> items, int from, Conversion conversion) throws TransformerException {
+        if (from == items.size()) {
+            conversion.run();
+            return;
+        }
+        synchronized (session.outputLock(items.get(from).output)) {
+            runLocked(items, from + 1, conversion);
+        }
+    }
+
+    private void runLocked(Path output, Conversion conversion) throws TransformerException {
+        // una conversion descartada que aun escribe y la misma imagen pedida por la siguiente transformacion
+        synchronized (session.outputLock(output)) {
+            conversion.run();
+        }
+    }
+
+    /**
+     * Espera a una conversion sin dejarse interrumpir (la conversion sigue escribiendo aunque quien espera
+     * se canse) y devuelve su error, o null si termino bien o no llego a empezar.
+     */
+    private static Throwable await(Future<Void> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (CancellationException e) {
+                    return null;
+                } catch (ExecutionException e) {
+                    // ForkJoinPool envuelve las excepciones comprobadas en RuntimeException
+                    Throwable cause = e.getCause();
+                    while (cause instanceof RuntimeException && cause.getCause() != null) {
+                        cause = cause.getCause();
+                    }
+                    return cause;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String describe(Throwable cause) {
+        return cause.getMessage() != null ? cause.getMessage() : cause.toString();
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount());
+        }
+        return pool;
+    }
+
+    static int threadCount() {
+        return Math.max(1, Integer.getInteger(THREADS_PROP, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Trabajo de conversion; se ejecuta en un hilo del pool.
+     */
+    public interface Conversion {
+        void run() throws TransformerException;
+    }
+
+    /**
+     * Conversion que puede ir en un lote de ImageMagick. Por separado equivale a {@link #prepare()},
+     * {@link #convertAlone()} si hace falta y {@link #completed()}.
+     */
+    public interface BatchableConversion extends Conversion {
+        /**
+         * Indica si la conversion lanzara ImageMagick; las que se hacen en la JVM no se agrupan, se reparten
+         * por el pool.
+         */
+        boolean usesExternalProcess();
+
+        /**
+         * Resuelve la conversion sin ImageMagick si puede (por ejemplo, desde la cache) y devuelve true; si no,
+         * prepara la carpeta de salida para el lote y devuelve false.
+         */
+        boolean prepare() throws TransformerException;
+
+        /**
+         * Ruta donde el lote debe escribir la imagen: un temporal que no existe todavia y que
+         * {@link #convertedInBatch(String)} mueve a la salida.
+         */
+        Path batchOutput();
+
+        /**
+         * Borra lo que el lote haya dejado en {@link #batchOutput()} si la imagen no llega a la salida.
+         */
+        void discardStaging();
+
+        /**
+         * Convierte solo esta imagen; se usa si el lote no la produjo.
+         */
+        void convertAlone() throws TransformerException;
+
+        /**
+         * El lote produjo la imagen con el ejecutable indicado (en lugar de {@link #convertAlone()}); se mueve
+         * de {@link #batchOutput()} a la salida.
+         */
+        void convertedInBatch(String executable) throws TransformerException;
+
+        /**
+         * La imagen ya esta en la ruta de salida.
+         */
+        void completed() throws TransformerException;
+
+        @Override
+        default void run() throws TransformerException {
+            if (!prepare()) {
+                convertAlone();
+                completed();
+            }
+        }
+    }
+
+    private static final class Job {
+        private final Path input;
+        private final Path output;
+        private Future<Void> future;
+        private BatchableConversion batchable;
+        private CompletableFuture<Void> result;
+
+        private Job(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        private void finish(Throwable error) {
+            if (error == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package simpleapp;
+
+import org.apache.xalan.extensions.XSLProcessorContext;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Servicio de conversion de imagenes del host, compartido por {@code app:changeImageFormat} y por los plugins
+ * que carga {@link PluginRegistryLoader}: su classloader delega en el de la app, asi que un plugin lo obtiene
+ * con {@link #getInstance()} en lugar de lanzar sus propios procesos. Todas las conversiones siguen el mismo
+ * camino: cache en disco ({@link ConversionCache}), ImageIO dentro de la JVM ({@link ImageIOConverter}) y
+ * ImageMagick para el resto, en lotes si van por la cola de la sesion ({@link MagickBatch}).
+ * <p>
+ * Un limite global (bulkhead) deja como mucho {@code -Dxslt.convert.threads} conversiones en marcha en toda
+ * la JVM, vengan de la cola o de un plugin que convierte en el acto. Los procesos se registran en la
+ * {@link TransformSession}, que los termina al cancelar, y quien espera turno abandona si la sesion se cancela.
+ * {@link #stats()} resume la actividad.
+ */
+public final class ImageConversionService {
+    private static final ImageConversionService INSTANCE = new ImageConversionService();
+    private static final AtomicLong STAGING_COUNTER = new AtomicLong();
+
+    private final int permits = ImageConversionQueue.threadCount();
+    private final Semaphore bulkhead = new Semaphore(permits, true);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong inProcessConversions = new AtomicLong();
+    private final AtomicLong externalConversions = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedImages = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private ImageConversionService() {
+    }
+
+    public static ImageConversionService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Pide la conversion desde un elemento de extension. Dentro de una transformacion de la app la salida se
+     * anota en la sesion (la exportacion la incluye) y la conversion se encola: la ruta puede escribirse ya en
+     * el resultado y la transformacion espera a la imagen antes de terminar. Sin sesion se convierte en el acto.
+     */
+    public void submit(XSLProcessorContext context, Path input, Path output, String format)
+            throws TransformerException {
+        submit(TransformSession.from(context), input, output, format);
+    }
+
+    public void submit(TransformSession session, Path input, Path output, String format)
+            throws TransformerException {
+        ImageConversion conversion = request(input, output, format, session);
+        if (session != null) {
+            session.addConvertedFile(output);
+            session.conversions().submit(input, output, conversion);
+        } else {
+            conversion.run();
+        }
+    }
+
+    /**
+     * Convierte en el acto, dentro del limite global, y vuelve con la imagen ya escrita en {@code output}.
+     */
+    public void convert(XSLProcessorContext context, Path input, Path output, String format)
+            throws TransformerException {
+        convert(TransformSession.from(context), input, output, format);
+    }
+
+    public void convert(TransformSession session, Path input, Path output, String format)
+            throws TransformerException {
+        ImageConversion conversion = request(input, output, format, session);
+        if (session != null) {
+            session.addConvertedFile(output);
+            // misma salida que una conversion encolada en la sesion: no se escriben a la vez
+            synchronized (session.outputLock(output)) {
+                conversion.run();
+            }
+        } else {
+            conversion.run();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(requests.get(), cacheHits.get(), inProcessConversions.get(), externalConversions.get(),
+                batches.get(), batchedImages.get(), failures.get(), peak.get(), permits,
+                waitNanos.get(), busyNanos.get());
+    }
+
+    private ImageConversion request(Path input, Path output, String format, TransformSession session)
+            throws TransformerException {
+        if (input == null || output == null || format == null || format.isBlank()) {
+            throw new TransformerException("La conversion de imagen necesita origen, destino y formato");
+        }
+        try {
+            // Con el ZIP abierto sin extraer, la imagen se extrae ahora que hace falta
+            if (!ZipCollection.ensureExtracted(input)) {
+                throw new TransformerException("No se encontro el fichero de imagen: " + input);
+            }
+        } catch (IOException e) {
+            throw new TransformerException("No se pudo extraer la imagen del ZIP: " + input, e);
+        }
+        requests.incrementAndGet();
+        String normalized = format.trim().toLowerCase(Locale.ROOT);
+        return new ImageConversion(input, output, normalized, Boolean.getBoolean("xslt.ext.debug"), session);
+    }
+
+    /**
+     * Lote de ImageMagick de la cola ({@link MagickBatch}); ocupa un solo puesto del limite global.
+     */
+    MagickBatch.Result convertBatch(Map<Path, Path> inputsByOutput, TransformSession session)
+            throws TransformerException {
+        return bounded(session, () -> {
+            MagickBatch.Result result = MagickBatch.convert(inputsByOutput, session);
+            batches.incrementAndGet();
+            batchedImages.addAndGet(inputsByOutput.size() - result.failures().size());
+            return result;
+        });
+    }
+
+    /**
+     * Ejecuta el trabajo con un puesto del limite global. La espera se interrumpe si la sesion se cancela.
+     */
+    private <T> T bounded(TransformSession session, Work<T> work) throws TransformerException {
+        long requested = System.nanoTime();
+        try {
+            while (!bulkhead.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (session != null) {
+                    session.checkCancelled();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransformerException("La conversion de imagen fue interrumpida", e);
+        }
+        long started = System.nanoTime();
+        waitNanos.addAndGet(started - requested);
+        peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+        try {
+            if (session != null) {
+                session.checkCancelled();
+            }
+            return work.run();
+        } finally {
+            active.decrementAndGet();
+            busyNanos.addAndGet(System.nanoTime() - started);
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Conversion de una imagen pasando por {@link ConversionCache}: si la misma imagen ya se convirtio al mismo
+     * formato con el mismo conversor, se enlaza el resultado guardado y no se lanza ImageMagick. Los formatos
+     * que ImageIO entiende se convierten dentro de la JVM ({@link ImageIOConverter}); el resto va a ImageMagick
+     * y, dentro de la cola, se agrupa con otras en un solo proceso ({@link MagickBatch}). Un fallo de la cache
+     * no impide la conversion.
+     * <p>
+     * La imagen se guarda con la clave del conversor que la produjo de verdad ({@link #engine}), que puede ser
+     * {@code convert} o ImageIO si el preferido fallo; al buscar solo se prueban los conversores de la ruta
+     * preferida.
+     * <p>
+     * La salida anterior no se borra antes de convertir: puede ser el propio origen (conversion en el sitio) o
+     * un enlace a la cache. La imagen se escribe en un temporal de la misma carpeta ({@link #staging}) y se
+     * mueve encima de la salida al terminar.
+     */
+    private final class ImageConversion implements ImageConversionQueue.BatchableConversion {
+        private final Path input;
+        private final Path output;
+        private final String format;
+        private final boolean debug;
+        private final TransformSession session;
+        private final boolean inProcess;
+        private final Path staging;
+        // opciones de cache del conversor que dejo la imagen en la salida; null hasta entonces
+        private String engine;
+
+        private ImageConversion(Path input, Path output, String format, boolean debug, TransformSession session) {
+            this.input = input;
+            this.output = output;
+            this.format = format;
+            this.debug = debug;
+            this.session = session;
+            this.inProcess = ImageIOConverter.isPreferred() && ImageIOConverter.canConvert(input, format);
+            this.staging = stagingFor(output);
+        }
+
+        @Override
+        public boolean usesExternalProcess() {
+            return !inProcess;
+        }
+
+        @Override
+        public boolean prepare() throws TransformerException {
+            ConversionCache cache = ConversionCache.getInstance();
+            try {
+                if (cache.isEnabled()) {
+                    List<String> keys = new ArrayList<>();
+                    for (String candidate : preferredEngines()) {
+                        keys.add(cache.keyOf(input, format, candidate));
+                    }
+                    if (cache.restoreAny(keys, output)) {
+                        cacheHits.incrementAndGet();
+                        if (debug) {
+                            System.out.println("[xslt.ext] conversion cache hit: " + output);
+                        }
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[convert-cache] No se pudo usar la cache: " + e.getMessage());
+            }
+            try {
+                Path parent = output.getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+            } catch (IOException e) {
+                throw new TransformerException("No se pudo preparar la carpeta destino para la imagen", e);
+            }
+            return false;
+        }
+
+        @Override
+        public void convertAlone() throws TransformerException {
+            try {
+                bounded(session, () -> {
+                    if (inProcess && convertInProcess()) {
+                        inProcessConversions.incrementAndGet();
+                    } else {
+                        engine = convertImageWithMagick(input, staging, format, debug, session, !inProcess);
+                        externalConversions.incrementAndGet();
+                    }
+                    return null;
+                });
+                publish();
+            } catch (TransformerException e) {
+                failures.incrementAndGet();
+                throw e;
+            } finally {
+                discardStaging();
+            }
+        }
+
+        @Override
+        public Path batchOutput() {
+            return staging;
+        }
+
+        @Override
+        public void discardStaging() {
+            try {
+                Files.deleteIfExists(staging);
+            } catch (IOException ignored) {
+                // un temporal oculto que sobra no impide la conversion
+            }
+        }
+
+        /**
+         * Mueve la imagen del temporal a la salida; el renombrado sustituye la entrada de la carpeta sin
+         * escribir en el fichero anterior (el origen o un enlace a la cache).
+         */
+        private void publish() throws TransformerException {
+            try {
+                Files.move(staging, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new TransformerException("No se pudo dejar la imagen convertida en " + output, e);
+            }
+        }
+
+        private boolean convertInProcess() {
+            try {
+                ImageIOConverter.convert(input, staging, format);
+                engine = ImageIOConverter.cacheOptions(format);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                // variantes que ImageIO no lee (JPEG CMYK, PNG de 16 bits raros...): ImageMagick
+                if (debug) {
+                    System.out.println("[xslt.ext] ImageIO failed, trying ImageMagick: " + e.getMessage());
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Conversores de la ruta preferida, cuyas imagenes guardadas sirven: ImageIO dentro de la JVM, o los
+         * ejecutables de ImageMagick en el orden en que se prueban.
+         */
+        private List<String> preferredEngines() {
+            if (inProcess) {
+                return List.of(ImageIOConverter.cacheOptions(format));
+            }
+            List<String> engines = new ArrayList<>();
+            for (String executable : magickExecutables()) {
+                engines.add(magickEngine(executable));
+            }
+            return engines;
+        }
+
+        @Override
+        public void convertedInBatch(String executable) throws TransformerException {
+            engine = magickEngine(executable);
+            try {
+                publish();
+            } finally {
+                discardStaging();
+            }
+        }
+
+        @Override
+        public void completed() {
+            ConversionCache cache = ConversionCache.getInstance();
+            if (engine == null || !cache.isEnabled()) return;
+            try {
+                cache.store(cache.keyOf(input, format, engine), output);
+            } catch (IOException e) {
+                System.err.println("[convert-cache] No se pudo guardar en la cache: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Convierte con el primer ejecutable de ImageMagick que funcione y, si se permite, con ImageIO como ultimo
+     * recurso. Devuelve las opciones de cache del conversor que produjo la imagen.
+     */
+    private static String convertImageWithMagick(Path input, Path output, String format, boolean debug,
+                                                 TransformSession session, boolean imageIoFallback)
+            throws TransformerException {
+        try {
+            Path parent = output.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+        } catch (Exception e) {
+            throw new TransformerException("No se pudo preparar la carpeta destino para la imagen", e);
+        }
+
+        List<String[]> commands = buildMagickCommands(input, output);
+        TransformerException lastError = null;
+        String lastLog = null;
+        for (String[] command : commands) {
+            try {
+                if (debug) {
+                    System.out.println("[xslt.ext] trying command: " + String.join(" ", command));
+                }
+                lastLog = runMagickCommand(command, format, session);
+                if (debug && lastLog != null && !lastLog.isBlank()) {
+                    System.out.println("[xslt.ext] magick output: " + lastLog.trim());
+                }
+                return magickEngine(command[0]);
+            } catch (TransformerException e) {
+                if (session != null) {
+                    session.checkCancelled();
+                }
+                lastError = e;
+                if (debug) {
+                    System.out.println("[xslt.ext] command failed: " + e.getMessage());
+                    if (lastLog != null && !lastLog.isBlank()) {
+                        System.out.println("[xslt.ext] magick output: " + lastLog.trim());
+                    }
+                }
+            }
+        }
+        if (lastError != null) {
+            if (!imageIoFallback) {
+                throw lastError;
+            }
+            // Fallback: intento con ImageIO (sin ImageMagick)
+            try {
+                ImageIOConverter.convert(input, output, format);
+                return ImageIOConverter.cacheOptions(format);
+            } catch (Exception e) {
+                throw lastError;
+            }
+        }
+        throw new TransformerException("No se encontro un comando valido de ImageMagick para convertir la imagen.");
+    }
+
+    private static List<String[]> buildMagickCommands(Path input, Path output) {
+        List<String[]> commands = new ArrayList<>();
+        for (String magickExe : magickExecutables()) {
+            commands.add(new String[]{magickExe, input.toString(), output.toString()});
+        }
+        return commands;
+    }
+
+    /**
+     * Ejecutables de ImageMagick que se prueban, en orden: {@code magick} (o {@code -Dxslt.magick}) y, fuera
+     * de Windows, {@code convert} de ImageMagick 6.
+     */
+    static List<String> magickExecutables() {
+        List<String> executables = new ArrayList<>();
+        executables.add(resolveMagickExecutable());
+        if (!isWindows()) {
+            executables.add("convert");
+        }
+        return executables;
+    }
+
+    /**
+     * Temporal oculto junto a la salida, con su mismo nombre al final para que ImageMagick deduzca el formato
+     * de la extension.
+     */
+    private static Path stagingFor(Path output) {
+        String name = ".convert-" + ProcessHandle.current().pid() + "-" + STAGING_COUNTER.incrementAndGet()
+                + "-" + output.getFileName();
+        return output.resolveSibling(name);
+    }
+
+    private static String magickEngine(String executable) {
+        return "magick=" + executable;
+    }
+
+    private static String runMagickCommand(String[] command, String format, TransformSession session)
+            throws TransformerException {
+        return runMagickCommand(command, format, session, ImageConversionQueue.timeoutSeconds());
+    }
+
+    /**
+     * Ejecuta ImageMagick registrando el proceso en la sesion, para que una cancelacion lo termine.
+     * Si el ejecutable no se puede lanzar, la causa de la excepcion es la {@link IOException} original.
+     * La salida va a un fichero temporal: leerla del proceso hasta el final bloquearia antes de empezar a
+     * contar el tiempo maximo si ImageMagick se queda colgado.
+     */
+    static String runMagickCommand(String[] command, String format, TransformSession session, long timeoutSeconds)
+            throws TransformerException {
+        Path logFile;
+        try {
+            logFile = Files.createTempFile("magick-", ".log");
+        } catch (IOException e) {
+            throw new TransformerException("No se pudo crear el registro de ImageMagick", e);
+        }
+        try {
+            return runMagickCommand(command, format, session, timeoutSeconds, logFile);
+        } finally {
+            try {
+                Files.deleteIfExists(logFile);
+            } catch (IOException ignored) {
+                // queda un registro en la carpeta temporal
+            }
+        }
+    }
+
+    private static String runMagickCommand(String[] command, String format, TransformSession session,
+                                           long timeoutSeconds, Path logFile) throws TransformerException {
+        Process process;
+        try {
+            process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(logFile.toFile())
+                    .start();
+        } catch (IOException e) {
+            throw new TransformerException("No se pudo ejecutar ImageMagick (comando '" + command[0]
+                    + "'). Asegura que esta instalado y en PATH.", e);
+        } catch (Exception e) {
+            throw new TransformerException("Error al lanzar ImageMagick (comando '" + command[0] + "')", e);
+        }
+
+        if (session != null) {
+            session.registerProcess(process);
+        }
+        try {
+            try {
+                boolean finished = process.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+                if (!finished) {
+                    process.destroyForcibly();
+                    throw new TransformerException("ImageMagick tardo demasiado en convertir la imagen");
+                }
+                String log;
+                try {
+                    log = new String(Files.readAllBytes(logFile), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    // sin registro se sigue: solo sirve para explicar un fallo
+                    log = "";
+                }
+                int exitCode = process.exitValue();
+                if (exitCode != 0) {
+                    throw new TransformerException("ImageMagick devolvio codigo " + exitCode
+                            + " al convertir a '" + format + "': " + log);
+                }
+                return log;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+                throw new TransformerException("La conversion de imagen fue interrumpida", e);
+            }
+        } finally {
+            if (session != null) {
+                session.unregisterProcess(process);
+            }
+        }
+    }
+
+    private static boolean isWindows() {
+        String os = System.getProperty("os.name");
+        return os != null && os.toLowerCase(Locale.ROOT).contains("win");
+    }
+
+    private static String resolveMagickExecutable() {
+        String configured = System.getProperty("xslt.magick");
+        if (configured != null && !configured.trim().isEmpty()) {
+            return configured.trim();
+        }
+        return "magick";
+    }
+
+    private interface Work<T> {
+        T run() throws TransformerException;
+    }
+
+    public static final class Stats {
+        private final long requests;
+        private final long cacheHits;
+        private final long inProcess;
+        private final long external;
+        private final long batches;
+        private final long batchedImages;
+        private final long failures;
+        private final int peak;
+        private final int permits;
+        private final long waitNanos;
+        private final long busyNanos;
+
+        private Stats(long requests, long cacheHits, long inProcess, long external, long batches, long batchedImages,
+                      long failures, int peak, int permits, long waitNanos, long busyNanos) {
+            this.requests = requests;
+            this.cacheHits = cacheHits;
+            this.inProcess = inProcess;
+            this.external = external;
+            this.batches = batches;
+            this.batchedImages = batchedImages;
+            this.failures = failures;
+            this.peak = peak;
+            this.permits = permits;
+            this.waitNanos = waitNanos;
+            this.busyNanos = busyNanos;
+        }
+
+        public long requests() {
+            return requests;
+        }
+
+        public long cacheHits() {
+            return cacheHits;
+        }
+
+        public long failures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Conversiones de imagen: pedidas=%d, cache=%d, imageio=%d, imagemagick=%d,"
+                            + " lotes=%d (%d imagenes), fallos=%d, simultaneas max=%d/%d, espera=%.1f ms, trabajo=%.1f ms",
+                    requests, cacheHits, inProcess, external, batches, batchedImages, failures, peak, permits,
+                    waitNanos / 1_000_000.0, busyNanos / 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package simpleapp;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Conversion de imagenes dentro de la JVM con ImageIO: para PNG, JPEG, BMP o GIF arrancar ImageMagick cuesta
+ * mucho mas que la propia conversion. {@link #canConvert(Path, String)} decide la ruta: si hay un lector
+ * registrado para la extension de origen y un escritor para el formato destino (los de la JDK y cualquier
+ * {@link ImageWriterSpi} del classpath), la imagen se convierte aqui; si no, se deja a ImageMagick.
+ * <p>
+ * Lectores y escritores se reutilizan por hilo, y la imagen se lee de un {@link ImageInputStream} sobre el
+ * fichero. Los formatos sin transparencia (JPEG, BMP) reciben la imagen sobre fondo blanco, como hace
+ * ImageMagick. Los JPEG se escriben con calidad {@code -Dxslt.convert.jpeg.quality} (por defecto 0.92, la de
+ * ImageMagick; la de ImageIO seria 0.75). Con {@code -Dxslt.convert.engine=magick} ImageMagick vuelve a ir
+ * primero.
+ */
+public final class ImageIOConverter {
+    private static final String ENGINE_PROP = "xslt.convert.engine";
+    private static final String JPEG_QUALITY_PROP = "xslt.convert.jpeg.quality";
+    private static final float DEFAULT_JPEG_QUALITY = 0.92f;
+    private static final Map<String, Boolean> READABLE_SUFFIXES = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> WRITABLE_FORMATS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Map<ImageReaderSpi, ImageReader>> READERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+
+    private ImageIOConverter() {
+    }
+
+    /**
+     * Indica si las conversiones van primero a ImageIO (por defecto) o a ImageMagick.
+     */
+    public static boolean isPreferred() {
+        return !"magick".equalsIgnoreCase(System.getProperty(ENGINE_PROP, "imageio").trim());
+    }
+
+    /**
+     * Indica si ImageIO sabe leer el origen (por su extension) y escribir el formato destino.
+     */
+    public static boolean canConvert(Path input, String format) {
+        String name = input.getFileName() != null ? input.getFileName().toString() : "";
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) {
+            return false;
+        }
+        String suffix = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        String target = writerFormat(format);
+        return READABLE_SUFFIXES.computeIfAbsent(suffix, s -> ImageIO.getImageReadersBySuffix(s).hasNext())
+                && WRITABLE_FORMATS.computeIfAbsent(target, f -> ImageIO.getImageWritersByFormatName(f).hasNext());
+    }
+
+    /**
+     * Opciones de escritura que cambian el resultado, para la clave de {@link ConversionCache}: con otra
+     * calidad de JPEG la imagen guardada no sirve.
+     */
+    static String cacheOptions(String format) {
+        String target = writerFormat(format);
+        return "jpeg".equals(target) ? "imageio;quality=" + jpegQuality() : "imageio";
+    }
+
+    /**
+     * Convierte la primera imagen de {@code input} al formato indicado. Si falla, no deja {@code output}.
+     */
+    public static void convert(Path input, Path output, String format) throws IOException {
+        BufferedImage image = read(input);
+        String target = writerFormat(format);
+        ImageWriter writer = writer(target);
+        BufferedImage encodable = encodable(image, writer.getOriginatingProvider());
+        if (encodable == null) {
+            throw new IOException("ImageIO no puede escribir la imagen en formato " + target + ": " + input);
+        }
+        Files.deleteIfExists(output);
+        boolean written = false;
+        try (ImageOutputStream out = new FileImageOutputStream(output.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpeg".equals(target) && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality());
+            }
+            writer.write(null, new IIOImage(encodable, null, null), param);
+            written = true;
+        } finally {
+            writer.reset();
+            if (!written) {
+                Files.deleteIfExists(output);
+            }
+        }
+    }
+
+    private static BufferedImage read(Path input) throws IOException {
+        try (ImageInputStream in = new FileImageInputStream(input.toFile())) {
+            ImageReader reader = reader(in);
+            if (reader == null) {
+                throw new IOException("ImageIO no reconoce el formato de la imagen: " + input);
+            }
+            try {
+                // solo hace falta la primera imagen y sin metadatos: lectura hacia delante
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                return reader.read(0, param);
+            } finally {
+                reader.reset();
+            }
+        }
+    }
+
+    /**
+     * Lector del hilo para el formato del flujo, elegido por su contenido y no por la extension.
+     */
+    private static ImageReader reader(ImageInputStream in) throws IOException {
+        Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance()
+                .getServiceProviders(ImageReaderSpi.class, true);
+        while (providers.hasNext()) {
+            ImageReaderSpi spi = providers.next();
+            // canDecodeInput marca y restaura la posicion del flujo
+            if (spi.canDecodeInput(in)) {
+                Map<ImageReaderSpi, ImageReader> readers = READERS.get();
+                ImageReader reader = readers.get(spi);
+                if (reader == null) {
+                    reader = spi.createReaderInstance();
+                    readers.put(spi, reader);
+                }
+                return reader;
+            }
+        }
+        return null;
+    }
+
+    private static ImageWriter writer(String format) throws IOException {
+        Map<String, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> available = ImageIO.getImageWritersByFormatName(format);
+            if (!available.hasNext()) {
+                throw new IOException("ImageIO no soporta escribir formato: " + format);
+            }
+            writer = available.next();
+            writers.put(format, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * La imagen tal cual si el escritor la acepta; si no, redibujada en RGB sobre blanco (o en ARGB, para
+     * escritores que exigen transparencia). Null si ninguna sirve.
+     */
+    private static BufferedImage encodable(BufferedImage image, ImageWriterSpi spi) {
+        if (spi.canEncodeImage(image)) {
+            return image;
+        }
+        for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}) {
+            if (image.getType() == type
+                    || !spi.canEncodeImage(ImageTypeSpecifier.createFromBufferedImageType(type))) {
+                continue;
+            }
+            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+            Graphics2D graphics = converted.createGraphics();
+            try {
+                if (type == BufferedImage.TYPE_INT_RGB) {
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+                }
+                graphics.drawImage(image, 0, 0, null);
+            } finally {
+                graphics.dispose();
+            }
+            return converted;
+        }
+        return null;
+    }
+
+    private static float jpegQuality() {
+        String configured = System.getProperty(JPEG_QUALITY_PROP);
+        if (configured == null || configured.isBlank()) {
+            return DEFAULT_JPEG_QUALITY;
+        }
+        try {
+            float quality = Float.parseFloat(configured.trim());
+            return quality >= 0f && quality <= 1f ? quality : DEFAULT_JPEG_QUALITY;
+        } catch (NumberFormatException e) {
+            return DEFAULT_JPEG_QUALITY;
+        }
+    }
+
+    private static String writerFormat(String format) {
+        String fmt = format == null ? "" : format.trim().toLowerCase(Locale.ROOT);
+        return "jpg".equals(fmt) ? "jpeg" : fmt;
+    }
+}
@@ -0,0 +1,159 @@
+package simpleapp;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conversion de varias imagenes con un solo proceso de ImageMagick: arrancar {@code magick} cuesta mas que
+ * convertir una imagen pequena. El comando lee, escribe y descarta cada imagen por turno
+ * ({@code magick a.jpg -write a.png +delete b.jpg -write b.png +delete null:}), asi que un error en una no
+ * impide las demas. Al terminar se comprueba cada salida: las que faltan se devuelven con la linea del
+ * registro que menciona su origen y se convierten una a una.
+ * <p>
+ * El lote tiene como mucho {@link #TIMEOUT_FACTOR} veces el tiempo de una conversion suelta: una imagen que
+ * cuelga a ImageMagick no retiene los cerrojos de salida del lote ni un puesto del limite global durante
+ * minutos. Al agotarse, lo que no llego a producirse cuenta como fallo y pasa a la conversion una a una, con
+ * su propio tiempo maximo.
+ */
+final class MagickBatch {
+    static final int TIMEOUT_FACTOR = 3;
+    // ningun ejecutable se pudo lanzar: no se vuelve a intentar el lote en esta JVM
+    private static volatile boolean unavailable;
+
+    private MagickBatch() {
+    }
+
+    static boolean isAvailable() {
+        return !unavailable;
+    }
+
+    /**
+     * Convierte cada salida a partir de su origen (el formato lo decide la extension de la salida). Las salidas
+     * deben no existir antes de llamar. Devuelve el ejecutable que se uso y las salidas que no se produjeron,
+     * con el motivo conocido.
+     */
+    static Result convert(Map<Path, Path> inputsByOutput, TransformSession session)
+            throws TransformerException {
+        boolean debug = Boolean.getBoolean("xslt.ext.debug");
+        long timeout = ImageConversionQueue.timeoutSeconds() * Math.min(inputsByOutput.size(), TIMEOUT_FACTOR);
+        String log = null;
+        String used = null;
+        boolean started = false;
+        boolean failed = false;
+        for (String executable : ImageConversionService.magickExecutables()) {
+            String[] command = buildCommand(executable, inputsByOutput);
+            if (debug) {
+                System.out.println("[xslt.ext] batch of " + inputsByOutput.size() + " images with " + executable);
+            }
+            try {
+                log = ImageConversionService.runMagickCommand(command, "lote", session, timeout);
+                started = true;
+                used = executable;
+                break;
+            } catch (TransformerException e) {
+                if (session != null) {
+                    session.checkCancelled();
+                }
+                if (e.getCause() instanceof IOException) {
+                    // ejecutable no instalado: se prueba el siguiente
+                    continue;
+                }
+                started = true;
+                used = executable;
+                failed = true;
+                log = e.getMessage();
+                break;
+            }
+        }
+
+        Map<Path, String> failures = new LinkedHashMap<>();
+        if (!started) {
+            unavailable = true;
+            for (Path output : inputsByOutput.keySet()) {
+                failures.put(output, "ImageMagick no disponible");
+            }
+            return new Result(null, failures);
+        }
+        List<Path> produced = new ArrayList<>();
+        for (Map.Entry<Path, Path> item : inputsByOutput.entrySet()) {
+            if (isProduced(item.getKey())) {
+                produced.add(item.getKey());
+            } else {
+                failures.put(item.getKey(), reasonFor(item.getValue(), log));
+            }
+        }
+        if (failed && !produced.isEmpty()) {
+            // si el proceso se corto (tiempo agotado), la ultima salida escrita puede estar a medias
+            Path last = produced.get(produced.size() - 1);
+            failures.put(last, "ImageMagick termino con error durante el lote");
+        }
+        if (debug && !failures.isEmpty()) {
+            System.out.println("[xslt.ext] batch failures: " + failures);
+        }
+        return new Result(used, failures);
+    }
+
+    private static String[] buildCommand(String executable, Map<Path, Path> inputsByOutput) {
+        List<String> command = new ArrayList<>();
+        command.add(executable);
+        for (Map.Entry<Path, Path> item : inputsByOutput.entrySet()) {
+            command.add(item.getValue().toString());
+            command.add("-write");
+            command.add(item.getKey().toString());
+            command.add("+delete");
+        }
+        command.add("null:");
+        return command.toArray(new String[0]);
+    }
+
+    private static boolean isProduced(Path output) {
+        try {
+            return Files.isRegularFile(output) && Files.size(output) > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Primera linea del registro de ImageMagick que menciona el fichero de origen.
+     */
+    private static String reasonFor(Path input, String log) {
+        if (log != null) {
+            String name = input.getFileName().toString();
+            for (String line : log.split("\\R")) {
+                if (line.contains(name)) {
+                    return line.trim();
+                }
+            }
+        }
+        return "ImageMagick no genero la imagen";
+    }
+
+    static final class Result {
+        private final String executable;
+        private final Map<Path, String> failures;
+
+        private Result(String executable, Map<Path, String> failures) {
+            this.executable = executable;
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Ejecutable que produjo las imagenes del lote; null si no se pudo lanzar ninguno.
+         */
+        String executable() {
+            return executable;
+        }
+
+        Map<Path, String> failures() {
+            return failures;
+        }
+    }
+}
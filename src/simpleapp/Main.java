@@ -1,9 +1,6 @@
 package simpleapp;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -11,33 +8,51 @@ import javax.swing.tree.DefaultTreeModel;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.prefs.Preferences;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class Main {
     private static final String PREF_LAST_DIR = "lastChooserDir";
     private static final String RECORD_COLLECTION_ROOT = "recordCollection";
+    private static final int INITIAL_EXPANDED_ROWS = 200;
     private final JFrame frame = new JFrame("Procesador XML/XSLT - Colecciones");
     private final JLabel status = new JLabel("Listo");
-    private final JTextArea previewArea = new JTextArea();
+    private final FilePreviewPanel preview = new FilePreviewPanel();
     private final JTextArea nodeDetailArea = new JTextArea();
     private final JTree tree = new JTree(new DefaultMutableTreeNode("Colección"));
+    private final JButton openZipBtn = new JButton("Elegir ZIP");
+    private final JButton openXsltBtn = new JButton("Elegir XSLT");
+    private final JButton transformBtn = new JButton("Transformar");
     private final JButton exportBtn = new JButton("Exportar");
+    private final JButton clearBtn = new JButton("Limpiar");
+    private final JProgressBar progressBar = new JProgressBar();
+    private final JButton cancelBtn = new JButton("Cancelar");
 
     private File selectedZip;
     private File selectedXslt;
+    private List<Path> selectedPipeline;
     private Path extractedDir;
+    // ZIP abierto sin extraer (modo por defecto): las entradas se extraen a extractedDir cuando hacen falta
+    private ZipCollection zipCollection;
     private Document collectionDoc;
-    private String lastResultText;
+    private Path streamingSource;
+    private Path lastResultFile;
+    // Resultado DOM de la ultima transformacion: se exporta serializandolo directamente al destino
+    private Document lastResultDoc;
+    private TransformSession session = new TransformSession();
+    private Path previewFile;
     private String lastResultRootName;
     private File lastChooserDir;
+    private BackgroundTask currentTask;
     private final Preferences prefs = Preferences.userNodeForPackage(Main.class);
 
     public Main() {
@@ -48,10 +63,6 @@ public class Main {
         // Top toolbar
         JToolBar toolbar = new JToolBar();
         toolbar.setFloatable(false);
-        JButton openZipBtn = new JButton("Elegir ZIP");
-        JButton openXsltBtn = new JButton("Elegir XSLT");
-        JButton transformBtn = new JButton("Transformar");
-        JButton clearBtn = new JButton("Limpiar");
         toolbar.add(openZipBtn);
         toolbar.add(openXsltBtn);
         toolbar.add(transformBtn);
@@ -61,9 +72,6 @@ public class Main {
         content.add(toolbar, BorderLayout.NORTH);
 
         // Split: left tree + detail, right preview
-        previewArea.setEditable(false);
-        previewArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-        JScrollPane right = new JScrollPane(previewArea);
         JScrollPane treeScroll = new JScrollPane(tree);
         nodeDetailArea.setEditable(false);
         nodeDetailArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
@@ -73,13 +81,22 @@ public class Main {
         detailScroll.setBorder(BorderFactory.createTitledBorder("Detalle del nodo"));
         JSplitPane leftSplit = new JSplitPane(JSplitPane.VERTICAL_SPLIT, treeScroll, detailScroll);
         leftSplit.setResizeWeight(0.7);
-        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftSplit, right);
+        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftSplit, preview);
         split.setResizeWeight(0.35);
         content.add(split, BorderLayout.CENTER);
 
-        // Status bar
+        // Status bar: texto de estado y, mientras hay una tarea en curso, su etapa y el boton de cancelar
         status.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
-        content.add(status, BorderLayout.SOUTH);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        cancelBtn.setVisible(false);
+        JPanel taskPanel = new JPanel(new BorderLayout(4, 0));
+        taskPanel.add(progressBar, BorderLayout.CENTER);
+        taskPanel.add(cancelBtn, BorderLayout.EAST);
+        JPanel statusBar = new JPanel(new BorderLayout(8, 0));
+        statusBar.add(status, BorderLayout.CENTER);
+        statusBar.add(taskPanel, BorderLayout.EAST);
+        content.add(statusBar, BorderLayout.SOUTH);
 
         // Menu
         JMenuBar menuBar = new JMenuBar();
@@ -99,7 +116,16 @@ public class Main {
         clearBtn.addActionListener(e -> clearState());
         exportBtn.setEnabled(false);
         exportBtn.addActionListener(e -> export());
-        tree.addTreeSelectionListener(e -> showSelectedNodeDetails());
+        cancelBtn.addActionListener(e -> cancelTask());
+        tree.addTreeSelectionListener(e -> {
+            // durante una tarea el hilo de fondo puede estar leyendo el mismo DOM: no se serializa el detalle
+            if (currentTask == null) showSelectedNodeDetails();
+        });
+        // Con altura de fila fija y largeModel, el JTree solo guarda estado de las filas expandidas y visibles
+        if (tree.getRowHeight() <= 0) {
+            tree.setRowHeight(tree.getFontMetrics(tree.getFont()).getHeight() + 4);
+        }
+        tree.setLargeModel(true);
 
         frame.setContentPane(content);
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
@@ -122,16 +148,83 @@ public class Main {
 
     private void chooseXslt() {
         JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Seleccionar hoja XSLT");
+        chooser.setDialogTitle("Seleccionar hoja XSLT (varias para encadenarlas)");
         chooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("XSL/XSLT", "xsl", "xslt"));
+        chooser.setMultiSelectionEnabled(true);
         applyLastChooserDir(chooser);
         if (chooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
-            selectedXslt = chooser.getSelectedFile();
+            File[] files = chooser.getSelectedFiles();
+            if (files.length > 1) {
+                List<Path> ordered = askPipelineOrder(files);
+                if (ordered == null) return;
+                selectedPipeline = ordered;
+                selectedXslt = ordered.get(0).toFile();
+                rememberChooserDir(selectedXslt);
+                StringBuilder names = new StringBuilder();
+                for (Path step : ordered) {
+                    if (names.length() > 0) names.append(" -> ");
+                    names.append(step.getFileName());
+                }
+                status.setText("Cadena XSLT seleccionada: " + names);
+                return;
+            }
+            selectedPipeline = null;
+            selectedXslt = files.length == 1 ? files[0] : chooser.getSelectedFile();
             rememberChooserDir(selectedXslt);
             status.setText("XSLT seleccionado: " + selectedXslt.getName());
         }
     }
 
+    /**
+     * Permite ordenar las hojas elegidas antes de encadenarlas. Devuelve null si se cancela.
+     */
+    private List<Path> askPipelineOrder(File[] files) {
+        DefaultListModel<File> model = new DefaultListModel<>();
+        for (File file : files) {
+            model.addElement(file);
+        }
+        JList<File> list = new JList<>(model);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> l, Object value, int index,
+                                                          boolean selected, boolean focus) {
+                return super.getListCellRendererComponent(l, (index + 1) + ". " + ((File) value).getName(),
+                        index, selected, focus);
+            }
+        });
+        JButton up = new JButton("Subir");
+        JButton down = new JButton("Bajar");
+        up.addActionListener(e -> moveSelected(list, model, -1));
+        down.addActionListener(e -> moveSelected(list, model, 1));
+        JPanel buttons = new JPanel(new GridLayout(2, 1, 4, 4));
+        buttons.add(up);
+        buttons.add(down);
+        JPanel panel = new JPanel(new BorderLayout(8, 8));
+        panel.add(new JLabel("Orden de aplicacion de las hojas:"), BorderLayout.NORTH);
+        panel.add(new JScrollPane(list), BorderLayout.CENTER);
+        panel.add(buttons, BorderLayout.EAST);
+        int option = JOptionPane.showConfirmDialog(frame, panel, "Cadena XSLT",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (option != JOptionPane.OK_OPTION) {
+            return null;
+        }
+        List<Path> ordered = new ArrayList<>();
+        for (int i = 0; i < model.size(); i++) {
+            ordered.add(model.get(i).toPath());
+        }
+        return ordered;
+    }
+
+    private static void moveSelected(JList<File> list, DefaultListModel<File> model, int delta) {
+        int index = list.getSelectedIndex();
+        int target = index + delta;
+        if (index < 0 || target < 0 || target >= model.size()) return;
+        File moved = model.remove(index);
+        model.add(target, moved);
+        list.setSelectedIndex(target);
+    }
+
     private void loadLastChooserDir() {
         String saved = prefs.get(PREF_LAST_DIR, null);
         if (saved == null || saved.isBlank()) return;
@@ -161,38 +254,180 @@ public class Main {
     }
 
     private void loadZip(File zip) {
-        try {
-            clearExtractedDir();
-            XsltExtensions.resetConvertedFiles();
-            extractedDir = Files.createTempDirectory("coleccion_zip_");
-            ZipUtils.extractZip(zip.toPath(), extractedDir);
-            // Heurística: buscar el primer .xml como descripción de colección
-            Path xml = Files.walk(extractedDir)
-                    .filter(p -> p.getFileName().toString().toLowerCase().endsWith(".xml"))
-                    .findFirst()
-                    .orElse(null);
-            if (xml == null) {
-                setError("No se encontró ningún XML dentro del ZIP");
-                return;
+        clearExtractedDir();
+        session = new TransformSession();
+        startTask(new BackgroundTask("Carga del ZIP", 4) {
+            private Path dir;
+            private ZipCollection opened;
+            private Path xml;
+            private Document doc;
+            private Path formatted;
+
+            @Override
+            protected void work() throws Exception {
+                boolean lazy = ZipCollection.isLazyEnabled();
+                stage(lazy ? "Abriendo ZIP" : "Extrayendo ZIP");
+                dir = Files.createTempDirectory("coleccion_zip_");
+                ExtractionCache cache = ExtractionCache.getInstance();
+                if (!lazy) {
+                    cache.extract(zip.toPath(), dir);
+                } else if (cache.restore(zip.toPath(), dir)) {
+                    // ZIP ya abierto antes y sin cambios: el arbol extraido se enlaza desde la cache
+                    lazy = false;
+                } else {
+                    // Solo el directorio central: los recursos se extraen cuando una extension o la exportacion los piden
+                    opened = ZipCollection.open(zip.toPath(), dir);
+                }
+                stage("Buscando XML de la coleccion");
+                // Heurística: el primer .xml del directorio central describe la colección, venga o no de la cache
+                xml = lazy ? opened.getXmlPath() : cache.collectionXml(zip.toPath(), dir);
+                if (xml == null) {
+                    return;
+                }
+                stage("Leyendo y validando segun XSD");
+                if (lazy ? opened.shouldStreamXml() : XmlUtils.shouldStream(xml)) {
+                    // Coleccion grande: se valida en streaming y se deja en disco, sin DOM, arbol ni vista previa
+                    if (lazy) {
+                        xml = opened.extractXml();
+                    }
+                    XmlUtils.validateCollection(xml);
+                    return;
+                }
+                // Una sola pasada: el parser valida mientras construye el DOM (del ZIP, sin extraer el XML)
+                doc = lazy ? opened.parseCollection() : XmlUtils.parseCollection(xml);
+                stage("Generando vista previa");
+                formatted = writePreviewFile(doc);
             }
-            collectionDoc = XmlUtils.parse(xml);
-            XmlUtils.validateCollection(collectionDoc);
-            previewArea.setText(XmlUtils.toPrettyString(collectionDoc));
-            buildTree(collectionDoc);
-            lastResultText = null;
-            lastResultRootName = null;
-            exportBtn.setEnabled(false);
-            status.setText("Coleccion valida: " + xml.getFileName());
-        } catch (Exception ex) {
-            setError("Error al cargar ZIP: " + ex.getMessage());
-            lastResultText = null;
-            lastResultRootName = null;
-            exportBtn.setEnabled(false);
-            nodeDetailArea.setText("Selecciona un nodo para ver su detalle XML.");
-        }
+
+            @Override
+            protected void succeeded() {
+                extractedDir = dir;
+                zipCollection = opened;
+                lastResultFile = null;
+                lastResultDoc = null;
+                lastResultRootName = null;
+                if (xml == null) {
+                    setError("No se encontró ningún XML dentro del ZIP");
+                    return;
+                }
+                if (doc == null) {
+                    collectionDoc = null;
+                    streamingSource = xml;
+                    showStreamingDocument(xml, "dc");
+                    status.setText("Coleccion valida (modo streaming): " + xml.getFileName());
+                    return;
+                }
+                streamingSource = null;
+                collectionDoc = doc;
+                showPreviewFile(formatted);
+                buildTree(collectionDoc);
+                status.setText("Coleccion valida: " + xml.getFileName());
+            }
+
+            @Override
+            protected void failed(Exception error) {
+                extractedDir = dir;
+                zipCollection = opened;
+                deleteQuietly(formatted);
+                resetLoadedState();
+                setError("Error al cargar ZIP: " + error.getMessage());
+            }
+
+            @Override
+            protected void cancelled() {
+                closeQuietly(opened);
+                ExtractionCache.getInstance().deleteAsync(dir);
+                deleteQuietly(formatted);
+                resetLoadedState();
+            }
+        });
+    }
+
+    private void resetLoadedState() {
+        streamingSource = null;
+        lastResultFile = null;
+        lastResultDoc = null;
+        lastResultRootName = null;
+        nodeDetailArea.setText("Selecciona un nodo para ver su detalle XML.");
+    }
+
+    /**
+     * Modo streaming: la vista previa pagina directamente el fichero en disco, que no se copia ni se reformatea.
+     */
+    private void showStreamingDocument(Path xml, String rootName) {
+        showPreviewFile(null);
+        showPreview(xml);
+        tree.setModel(new DefaultTreeModel(new DefaultMutableTreeNode(rootName + " (streaming)")));
+        nodeDetailArea.setText("Vista de nodos no disponible en modo streaming.");
+    }
+
+    private void transformStreaming() {
+        TransformSession previous = session;
+        TransformSession taskSession = new TransformSession();
+        session = taskSession;
+        Path source = streamingSource;
+        List<Path> pipeline = selectedPipeline;
+        Path xslt = selectedXslt.toPath();
+        startTask(new BackgroundTask("Transformacion en streaming", 2) {
+            private Path output;
+            private String sourceRootName;
+            private String rootName;
+            private boolean validated;
+
+            @Override
+            protected void work() throws Exception {
+                stage("Aplicando XSLT");
+                sourceRootName = XmlUtils.readRootName(source);
+                String baseName = source.getFileName().toString().replaceFirst("\\.[^.]+$", "");
+                // El resultado se deja junto al origen para que las rutas relativas de los recursos sigan resolviendo
+                output = Files.createTempFile(source.toAbsolutePath().getParent(), baseName + "-resultado-", ".xml");
+                if (pipeline == null) {
+                    // Una sola hoja: la salida se valida mientras se escribe
+                    validated = XmlUtils.transformStreamingValidated(source, xslt, output, taskSession);
+                    rootName = XmlUtils.readRootName(output);
+                    return;
+                }
+                XsltPipeline.fromStylesheets(pipeline).run(source, output, taskSession);
+                stage("Validando resultado");
+                rootName = XmlUtils.readRootName(output);
+                validated = XmlUtils.validate(output);
+            }
+
+            @Override
+            protected void succeeded() {
+                streamingSource = output;
+                lastResultFile = output;
+                lastResultDoc = null;
+                lastResultRootName = rootName;
+                showStreamingDocument(output, rootName != null ? rootName : "desconocido");
+                status.setText("Transformacion en streaming aplicada sobre " + sourceRootName + " -> "
+                        + (rootName != null ? rootName : "desconocido")
+                        + (validated ? " (validada segun XSD)" : " (sin validacion)"));
+            }
+
+            @Override
+            protected void failed(Exception error) {
+                deleteQuietly(output);
+                lastResultFile = null;
+                lastResultDoc = null;
+                lastResultRootName = null;
+                setError("Error al transformar: " + error.getMessage());
+            }
+
+            @Override
+            protected void cancelled() {
+                // Se conserva el resultado anterior, con los ficheros convertidos de su sesion
+                deleteQuietly(output);
+                session = previous;
+            }
+        });
     }
 
     private void transform() {
+        if (streamingSource != null && selectedXslt != null) {
+            transformStreaming();
+            return;
+        }
         if (collectionDoc == null) {
             setError("Primero carga un ZIP con la colección");
             return;
@@ -201,181 +436,239 @@ public class Main {
             setError("Selecciona una hoja de transformación XSLT");
             return;
         }
-        XsltExtensions.resetConvertedFiles();
-        try {
-            String sourceRootName = collectionDoc.getDocumentElement() != null
-                    ? collectionDoc.getDocumentElement().getNodeName()
-                    : "desconocido";
-            Document result = XmlUtils.transform(collectionDoc, selectedXslt.toPath());
-            boolean validated = false;
-            if (XmlUtils.isCollectionDocument(result)) {
-                XmlUtils.validateCollection(result);
-                validated = true;
+        TransformSession previous = session;
+        TransformSession taskSession = new TransformSession();
+        session = taskSession;
+        Document source = collectionDoc;
+        List<Path> pipeline = selectedPipeline;
+        Path xslt = selectedXslt.toPath();
+        startTask(new BackgroundTask("Transformacion", 3) {
+            private Document result;
+            private boolean validated;
+            private Path formatted;
+
+            @Override
+            protected void work() throws Exception {
+                stage("Aplicando XSLT");
+                if (pipeline != null) {
+                    result = XsltPipeline.fromStylesheets(pipeline).run(source, taskSession);
+                    stage("Validando resultado");
+                    validated = XmlUtils.validate(result);
+                } else {
+                    // Una sola hoja: el resultado se valida mientras se construye
+                    result = XmlUtils.transformValidated(source, xslt, taskSession);
+                    stage("Validando resultado");
+                    validated = XmlUtils.hasSchema(result);
+                }
+                stage("Generando vista previa");
+                formatted = writePreviewFile(result);
             }
-            String formatted = XmlUtils.toPrettyString(result);
-            collectionDoc = result;
-            previewArea.setText(formatted);
-            buildTree(collectionDoc);
-            lastResultText = formatted;
-            lastResultRootName = collectionDoc.getDocumentElement() != null
-                    ? collectionDoc.getDocumentElement().getNodeName()
-                    : null;
-            exportBtn.setEnabled(true);
-            String rootName = lastResultRootName != null ? lastResultRootName : "desconocido";
-            if (validated) {
-                status.setText("Transformacion aplicada sobre " + sourceRootName + " -> " + rootName
-                        + " (validada segun XSD)");
-            } else {
-                status.setText("Transformacion aplicada sobre " + sourceRootName + " -> " + rootName
-                        + " (sin validacion)");
+
+            @Override
+            protected void succeeded() {
+                String sourceRootName = source.getDocumentElement() != null
+                        ? source.getDocumentElement().getNodeName()
+                        : "desconocido";
+                collectionDoc = result;
+                // El texto formateado es la vista previa; la exportacion serializa el DOM (compacto por defecto)
+                lastResultFile = formatted;
+                lastResultDoc = result;
+                showPreviewFile(formatted);
+                buildTree(collectionDoc);
+                lastResultRootName = collectionDoc.getDocumentElement() != null
+                        ? collectionDoc.getDocumentElement().getNodeName()
+                        : null;
+                String rootName = lastResultRootName != null ? lastResultRootName : "desconocido";
+                if (validated) {
+                    status.setText("Transformacion aplicada sobre " + sourceRootName + " -> " + rootName
+                            + " (validada segun XSD)");
+                } else {
+                    status.setText("Transformacion aplicada sobre " + sourceRootName + " -> " + rootName
+                            + " (sin validacion)");
+                }
+
+                Path bridgeDir = taskSession.getBridgeDir();
+                if (bridgeDir != null) {
+                    JOptionPane.showMessageDialog(frame,
+                            "Puente generado en:\n" + bridgeDir.toAbsolutePath(),
+                            "Puente XSLT",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
             }
 
-            Path bridgeDir = XmlUtils.getLastBridgeDir();
-            if (bridgeDir != null) {
-                JOptionPane.showMessageDialog(frame,
-                        "Puente generado en:\n" + bridgeDir.toAbsolutePath(),
-                        "Puente XSLT",
-                        JOptionPane.INFORMATION_MESSAGE);
+            @Override
+            protected void failed(Exception error) {
+                deleteQuietly(formatted);
+                lastResultFile = null;
+                lastResultDoc = null;
+                lastResultRootName = null;
+                setError("Error al transformar: " + error.getMessage());
             }
-        } catch (Exception ex) {
-            setError("Error al transformar: " + ex.getMessage());
-            lastResultText = null;
-            lastResultRootName = null;
-            exportBtn.setEnabled(false);
-        }
+
+            @Override
+            protected void cancelled() {
+                deleteQuietly(formatted);
+                session = previous;
+            }
+        });
     }
 
     private void clearState() {
         selectedZip = null;
         selectedXslt = null;
+        selectedPipeline = null;
         collectionDoc = null;
-        lastResultText = null;
+        streamingSource = null;
+        lastResultFile = null;
+        lastResultDoc = null;
         lastResultRootName = null;
-        previewArea.setText("");
+        showPreviewFile(null);
         tree.setModel(new DefaultTreeModel(new DefaultMutableTreeNode("Colección")));
         clearExtractedDir();
-        XsltExtensions.resetConvertedFiles();
+        session = new TransformSession();
         exportBtn.setEnabled(false);
         nodeDetailArea.setText("Selecciona un nodo para ver su detalle XML.");
         status.setText("Listo");
     }
 
     private void clearExtractedDir() {
+        closeQuietly(zipCollection);
+        zipCollection = null;
         if (extractedDir != null) {
-            try { XmlUtils.deleteDirectoryRecursively(extractedDir); } catch (Exception ignored) {}
+            // en segundo plano: una coleccion grande tarda en borrarse y esto corre en el hilo de eventos
+            ExtractionCache.getInstance().deleteAsync(extractedDir);
             extractedDir = null;
         }
     }
 
-    private void buildTree(Document doc) {
-        if (doc == null || doc.getDocumentElement() == null) {
-            tree.setModel(new DefaultTreeModel(new DefaultMutableTreeNode("Colección")));
-            nodeDetailArea.setText("Selecciona un nodo para ver su detalle XML.");
-            return;
+    /**
+     * Vuelca el documento formateado a un fichero temporal: la vista previa lo pagina desde disco en lugar de
+     * mantener el texto completo en memoria.
+     */
+    private static Path writePreviewFile(Document doc) throws Exception {
+        Path file = Files.createTempFile("vista-previa-", ".xml");
+        file.toFile().deleteOnExit();
+        try {
+            XmlUtils.writePrettyTo(doc, file);
+        } catch (Exception ex) {
+            deleteQuietly(file);
+            throw ex;
         }
-        if (!XmlUtils.isCollectionDocument(doc)) {
-            DefaultMutableTreeNode rootNode = buildGenericTreeNode(doc.getDocumentElement());
-            tree.setModel(new DefaultTreeModel(rootNode));
-            for (int i = 0; i < tree.getRowCount(); i++) tree.expandRow(i);
-            if (tree.getRowCount() > 0) {
-                tree.setSelectionRow(0);
-                showSelectedNodeDetails();
-            }
+        return file;
+    }
+
+    /**
+     * Muestra un fichero temporal propio de la vista previa (null para vaciarla), borrando el anterior.
+     */
+    private void showPreviewFile(Path file) {
+        Path old = previewFile;
+        previewFile = file;
+        showPreview(file);
+        if (old != null && !old.equals(file)) {
+            deleteQuietly(old);
+        }
+    }
+
+    private void showPreview(Path file) {
+        if (file == null) {
+            preview.showMessage("");
             return;
         }
-        Element root = doc.getDocumentElement();
-        DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode(new NodeInfo(root.getTagName(), root));
-
-        NodeList objects = root.getElementsByTagName("o");
-        for (int i = 0; i < objects.getLength(); i++) {
-            Element o = (Element) objects.item(i);
-            String id = o.getAttribute("id");
-            DefaultMutableTreeNode oNode = new DefaultMutableTreeNode(
-                    new NodeInfo("o:" + (id.isEmpty() ? "(sin id)" : id), o));
-
-            // metadatos: primer hijo distinto de rs/rels
-            DefaultMutableTreeNode metaNode = new DefaultMutableTreeNode("metadatos");
-            for (Node child = o.getFirstChild(); child != null; child = child.getNextSibling()) {
-                if (child.getNodeType() == Node.ELEMENT_NODE) {
-                    String name = child.getNodeName();
-                    if (!"rs".equals(name) && !"rels".equals(name)) {
-                        metaNode.add(new DefaultMutableTreeNode(new NodeInfo(name, child)));
-                    }
-                }
-            }
-            if (metaNode.getChildCount() > 0) oNode.add(metaNode);
-
-            // recursos
-            NodeList rsList = o.getElementsByTagName("rs");
-            if (rsList.getLength() > 0) {
-                Element rs = (Element) rsList.item(0);
-                DefaultMutableTreeNode rsNode = new DefaultMutableTreeNode(new NodeInfo("recursos", rs));
-                for (Node child = rs.getFirstChild(); child != null; child = child.getNextSibling()) {
-                    if (child.getNodeType() == Node.ELEMENT_NODE) {
-                        Element el = (Element) child;
-                        String name = el.getAttribute("name");
-                        String label = el.getTagName() + (name.isEmpty() ? "" : ("(" + name + ")"));
-                        rsNode.add(new DefaultMutableTreeNode(new NodeInfo(label, el)));
-                    }
-                }
-                oNode.add(rsNode);
-            }
+        try {
+            preview.showFile(file);
+        } catch (Exception ex) {
+            preview.showMessage("No se pudo mostrar la vista previa: " + ex.getMessage());
+        }
+    }
 
-            // relaciones
-            NodeList relsList = o.getElementsByTagName("rels");
-            if (relsList.getLength() > 0) {
-                Element rels = (Element) relsList.item(0);
-                DefaultMutableTreeNode relsNode = new DefaultMutableTreeNode(new NodeInfo("relaciones", rels));
-                for (Node child = rels.getFirstChild(); child != null; child = child.getNextSibling()) {
-                    if (child.getNodeType() == Node.ELEMENT_NODE && "rel".equals(child.getNodeName())) {
-                        Element el = (Element) child;
-                        String ref = el.getAttribute("ref");
-                        String name = el.getAttribute("name");
-                        if (ref.isEmpty()) {
-                            // tolerar ejemplo con atributo id en lugar de ref
-                            ref = el.getAttribute("id");
-                        }
-                        String label = "rel:" + (name.isEmpty() ? "?" : name) + "->" + (ref.isEmpty() ? "?" : ref);
-                        relsNode.add(new DefaultMutableTreeNode(new NodeInfo(label, el)));
-                    }
-                }
-                oNode.add(relsNode);
+    private static void deleteQuietly(Path path) {
+        if (path == null) return;
+        try {
+            if (Files.isDirectory(path)) {
+                XmlUtils.deleteDirectoryRecursively(path);
+            } else {
+                Files.deleteIfExists(path);
             }
-
-            rootNode.add(oNode);
+        } catch (Exception ignored) {
+            // restos temporales: no impiden seguir trabajando
         }
+    }
 
-        tree.setModel(new DefaultTreeModel(rootNode));
-        for (int i = 0; i < tree.getRowCount(); i++) tree.expandRow(i);
-        if (tree.getRowCount() > 0) {
-            tree.setSelectionRow(0);
-            showSelectedNodeDetails();
+    private static void closeQuietly(ZipCollection collection) {
+        if (collection == null) return;
+        try {
+            collection.close();
+        } catch (Exception ignored) {
+            // el ZIP solo se leia
         }
     }
 
-    private DefaultMutableTreeNode buildGenericTreeNode(Element element) {
-        DefaultMutableTreeNode treeNode = new DefaultMutableTreeNode(
-                new NodeInfo(buildGenericLabel(element), element));
-        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
-            if (child.getNodeType() == Node.ELEMENT_NODE) {
-                treeNode.add(buildGenericTreeNode((Element) child));
-            }
-        }
-        return treeNode;
+    private void startTask(BackgroundTask task) {
+        currentTask = task;
+        updateActions();
+        progressBar.setMaximum(task.totalStages);
+        progressBar.setValue(0);
+        progressBar.setString(task.title);
+        progressBar.setVisible(true);
+        cancelBtn.setEnabled(true);
+        cancelBtn.setVisible(true);
+        status.setText(task.title + " en curso...");
+        task.execute();
+    }
+
+    private void endTask(BackgroundTask task) {
+        if (currentTask != task) return;
+        currentTask = null;
+        progressBar.setVisible(false);
+        cancelBtn.setVisible(false);
+        updateActions();
     }
 
-    private String buildGenericLabel(Element element) {
-        StringBuilder label = new StringBuilder(element.getTagName());
-        appendAttributeLabel(label, "id", element.getAttribute("id"));
-        appendAttributeLabel(label, "name", element.getAttribute("name"));
-        appendAttributeLabel(label, "type", element.getAttribute("type"));
-        appendAttributeLabel(label, "ref", element.getAttribute("ref"));
-        return label.toString();
+    /**
+     * Interrumpe el hilo de la tarea y cancela la sesion (corta Xalan y termina ImageMagick). Los plugins
+     * convierten a traves de {@link ImageConversionService}, que registra sus procesos en la misma sesion,
+     * asi que no queda ningun proceso de la tarea fuera de ella.
+     */
+    private void cancelTask() {
+        if (currentTask == null) return;
+        cancelBtn.setEnabled(false);
+        status.setText(currentTask.title + ": cancelando...");
+        currentTask.cancel(true);
+        session.cancel();
     }
 
-    private void appendAttributeLabel(StringBuilder label, String name, String value) {
-        if (value == null || value.isBlank()) return;
-        label.append(" [").append(name).append('=').append(value).append(']');
+    /**
+     * Con una tarea en marcha solo queda activo Cancelar. El arbol se desactiva: la tarea transforma, valida o
+     * exporta el mismo DOM que muestra, asi que no se expanden nodos ni se cambia el detalle hasta que termine.
+     */
+    private void updateActions() {
+        boolean idle = currentTask == null;
+        tree.setEnabled(idle);
+        openZipBtn.setEnabled(idle);
+        openXsltBtn.setEnabled(idle);
+        transformBtn.setEnabled(idle);
+        clearBtn.setEnabled(idle);
+        exportBtn.setEnabled(idle && lastResultFile != null);
+    }
+
+    /**
+     * El arbol lee del DOM bajo demanda ({@link DomTreeModel}); solo se expanden de entrada las primeras
+     * filas, de modo que un resultado enorme se abre igual de rapido que uno pequeno.
+     */
+    private void buildTree(Document doc) {
+        if (doc == null || doc.getDocumentElement() == null) {
+            tree.setModel(new DefaultTreeModel(new DefaultMutableTreeNode("Colección")));
+            nodeDetailArea.setText("Selecciona un nodo para ver su detalle XML.");
+            return;
+        }
+        tree.setModel(DomTreeModel.forDocument(doc));
+        for (int i = 0; i < tree.getRowCount() && tree.getRowCount() < INITIAL_EXPANDED_ROWS; i++) {
+            tree.expandRow(i);
+        }
+        if (tree.getRowCount() > 0) {
+            tree.setSelectionRow(0);
+            showSelectedNodeDetails();
+        }
     }
 
     private void showSelectedNodeDetails() {
@@ -383,11 +676,13 @@ public class Main {
             nodeDetailArea.setText("Selecciona un nodo para ver su detalle XML.");
             return;
         }
-        DefaultMutableTreeNode node = (DefaultMutableTreeNode) tree.getSelectionPath().getLastPathComponent();
-        Object userObject = node.getUserObject();
-        if (userObject instanceof NodeInfo info && info.node != null) {
+        Object selected = tree.getSelectionPath().getLastPathComponent();
+        Object userObject = selected instanceof DefaultMutableTreeNode
+                ? ((DefaultMutableTreeNode) selected).getUserObject()
+                : selected;
+        if (userObject instanceof DomTreeModel.Entry entry && entry.getNode() != null) {
             try {
-                nodeDetailArea.setText(XmlUtils.nodeToPrettyString(info.node));
+                nodeDetailArea.setText(XmlUtils.nodeToPrettyString(entry.getNode()));
             } catch (Exception ex) {
                 nodeDetailArea.setText("No se pudo mostrar el nodo: " + ex.getMessage());
             }
@@ -404,7 +699,7 @@ public class Main {
     }
 
     private void export() {
-        if (lastResultText == null) {
+        if (lastResultFile == null) {
             setError("No hay ningún resultado transformado para exportar");
             return;
         }
@@ -435,39 +730,73 @@ public class Main {
             chooser.setSelectedFile(new File("resultado.zip"));
             chooser.setFileFilter(zipFilter);
         }
-        if (chooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
-            File target = chooser.getSelectedFile();
-            try {
-                Path targetPath = target.toPath();
-                String lower = targetPath.getFileName().toString().toLowerCase(Locale.ROOT);
-                boolean zipSelected = chooser.getFileFilter() == zipFilter;
-                boolean htmlSelected = chooser.getFileFilter() == htmlFilter;
-                boolean asZip = lower.endsWith(".zip") || (zipSelected && !lower.endsWith(".xml")
-                        && !lower.endsWith(".html") && !lower.endsWith(".htm") && !lower.endsWith(".xhtml"));
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path targetPath = chooser.getSelectedFile().toPath();
+        String lower = targetPath.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean zipSelected = chooser.getFileFilter() == zipFilter;
+        boolean htmlSelected = chooser.getFileFilter() == htmlFilter;
+        boolean asZip = lower.endsWith(".zip") || (zipSelected && !lower.endsWith(".xml")
+                && !lower.endsWith(".html") && !lower.endsWith(".htm") && !lower.endsWith(".xhtml"));
+        if (asZip) {
+            if (!lower.endsWith(".zip")) {
+                targetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".zip");
+            }
+        } else if ((isHtml || htmlSelected) && !(lower.endsWith(".html") || lower.endsWith(".htm") || lower.endsWith(".xhtml"))) {
+            targetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".html");
+        } else if (!isHtml && !lower.endsWith(".xml")) {
+            targetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".xml");
+        }
+        rememberChooserDir(targetPath.toFile());
+        Path target = targetPath;
+        startTask(new BackgroundTask("Exportacion", asZip ? 2 : 1) {
+            private ExportZipWriter.Stats zipStats;
+
+            @Override
+            protected void work() throws Exception {
                 if (asZip) {
-                    if (!lower.endsWith(".zip")) {
-                        targetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".zip");
-                    }
-                    exportAsZip(targetPath);
+                    zipStats = exportAsZip(target, this);
+                    return;
+                }
+                stage("Escribiendo resultado");
+                if (lastResultDoc != null) {
+                    XmlSerializer.serialize(lastResultDoc, target, XmlSerializer.Options.forExport());
                 } else {
-                    if ((isHtml || htmlSelected) && !(lower.endsWith(".html") || lower.endsWith(".htm") || lower.endsWith(".xhtml"))) {
-                        targetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".html");
-                    } else if (!isHtml && !lower.endsWith(".xml")) {
-                        targetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".xml");
-                    }
-                    Files.write(targetPath, lastResultText.getBytes(StandardCharsets.UTF_8));
+                    Files.copy(lastResultFile, target, StandardCopyOption.REPLACE_EXISTING);
                 }
-                rememberChooserDir(targetPath.toFile());
-                status.setText("Resultado exportado: " + targetPath.getFileName());
-            } catch (Exception ex) {
-                setError("No se pudo exportar: " + ex.getMessage());
             }
-        }
+
+            @Override
+            protected void succeeded() {
+                // el resumen del ZIP (tamano, tiempo y ritmo) se muestra en la barra de estado
+                status.setText("Resultado exportado: " + target.getFileName()
+                        + (zipStats != null ? " - " + zipStats : ""));
+            }
+
+            @Override
+            protected void failed(Exception error) {
+                deleteQuietly(target);
+                setError("No se pudo exportar: " + error.getMessage());
+            }
+
+            @Override
+            protected void cancelled() {
+                deleteQuietly(target);
+            }
+        });
     }
 
-    private void exportAsZip(Path target) throws Exception {
-        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(target))) {
+    /**
+     * Se ejecuta en segundo plano: los campos que lee no cambian mientras la tarea esta en curso,
+     * porque las acciones de la interfaz quedan deshabilitadas hasta que termina. Devuelve el resumen del ZIP
+     * escrito.
+     */
+    private ExportZipWriter.Stats exportAsZip(Path target, BackgroundTask task) throws Exception {
+        ExportZipWriter zip = ExportZipWriter.create(target);
+        try (zip) {
             // Resultado transformado
+            task.stage("Escribiendo resultado");
             String transformedName = "html".equalsIgnoreCase(lastResultRootName)
                     ? "transformed.html"
                     : (RECORD_COLLECTION_ROOT.equalsIgnoreCase(lastResultRootName)
@@ -475,15 +804,28 @@ public class Main {
                     : ("record".equalsIgnoreCase(lastResultRootName) || "records".equalsIgnoreCase(lastResultRootName)
                     ? "records.xml"
                     : "transformed.xml"));
-            zos.putNextEntry(new ZipEntry(transformedName));
-            zos.write(lastResultText.getBytes(StandardCharsets.UTF_8));
-            zos.closeEntry();
+            long expectedSize = lastResultDoc != null ? -1 : Files.size(lastResultFile);
+            try (OutputStream entry = zip.openEntry(transformedName, expectedSize)) {
+                if (lastResultDoc != null) {
+                    XmlSerializer.serialize(lastResultDoc, entry, XmlSerializer.Options.forExport());
+                } else {
+                    Files.copy(lastResultFile, entry);
+                }
+            }
 
             // Recursos convertidos para inspeccionar el cambio de formato
+            task.stage("Empaquetando recursos");
+            if (zipCollection != null) {
+                // ZIP abierto sin extraer: los recursos que se exportan se extraen ahora
+                zipCollection.extractResources();
+                // con los recursos ya en disco, la proxima apertura del mismo ZIP los enlaza desde la cache
+                zipCollection.storeInCache();
+            }
             if (extractedDir != null && Files.isDirectory(extractedDir)) {
-                Set<Path> filesToZip = new LinkedHashSet<>(XsltExtensions.snapshotConvertedFiles());
+                Set<Path> filesToZip = new LinkedHashSet<>(session.getConvertedFiles());
                 try (var stream = Files.walk(extractedDir)) {
                     for (Path file : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                        if (file.equals(lastResultFile)) continue;
                         String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
                         if (name.contains("-converted") || isResourcesPath(file)) {
                             filesToZip.add(file);
@@ -494,15 +836,15 @@ public class Main {
                     if (file == null || !Files.exists(file)) continue;
                     String entryName = buildZipEntryName(file);
                     if (entryName.isEmpty()) continue;
-                    ZipEntry entry = new ZipEntry(entryName);
-                    zos.putNextEntry(entry);
-                    try (var in = Files.newInputStream(file)) {
-                        in.transferTo(zos);
+                    if (task.isCancelled()) {
+                        throw new InterruptedIOException("Exportacion cancelada");
                     }
-                    zos.closeEntry();
+                    // las imagenes ya comprimidas se guardan tal cual; el resto se comprime en paralelo
+                    zip.addFile(entryName, file);
                 }
             }
         }
+        return zip.stats();
     }
 
     private boolean isResourcesPath(Path file) {
@@ -536,23 +878,79 @@ public class Main {
 
     private void showUI() { frame.setVisible(true); }
 
-    private static class NodeInfo {
-        private final String label;
-        private final Node node;
+    /**
+     * Tarea larga fuera del hilo de eventos (extraccion, validacion, transformacion, exportacion).
+     * {@link #work()} se ejecuta en segundo plano y anuncia cada etapa con {@link #stage(String)}; el
+     * resultado se aplica en el hilo de eventos con succeeded/failed/cancelled cuando el trabajo ha
+     * terminado de verdad, tambien si se cancelo a mitad, para no solapar dos tareas sobre el mismo estado.
+     */
+    private abstract class BackgroundTask extends SwingWorker<Void, String> {
+        private final String title;
+        private final int totalStages;
+        private int stagesStarted;
+
+        private BackgroundTask(String title, int totalStages) {
+            this.title = title;
+            this.totalStages = totalStages;
+        }
+
+        protected abstract void work() throws Exception;
+
+        protected abstract void succeeded();
+
+        protected abstract void failed(Exception error);
 
-        private NodeInfo(String label, Node node) {
-            this.label = label;
-            this.node = node;
+        protected void cancelled() {
+        }
+
+        protected final void stage(String name) throws InterruptedException {
+            if (isCancelled() || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException(title + " cancelada");
+            }
+            publish(name);
         }
 
         @Override
-        public String toString() {
-            return label;
+        protected final Void doInBackground() {
+            Exception error = null;
+            try {
+                work();
+            } catch (Exception ex) {
+                error = ex;
+            }
+            Exception failure = error;
+            SwingUtilities.invokeLater(() -> finish(failure));
+            return null;
+        }
+
+        @Override
+        protected final void process(List<String> stages) {
+            if (currentTask != this) return;
+            for (String name : stages) {
+                stagesStarted++;
+                progressBar.setValue(stagesStarted - 1);
+                progressBar.setString(name + " (" + stagesStarted + "/" + totalStages + ")");
+            }
+        }
+
+        private void finish(Exception failure) {
+            endTask(this);
+            if (isCancelled()) {
+                cancelled();
+                status.setText(title + " cancelada");
+            } else if (failure != null) {
+                failed(failure);
+            } else {
+                succeeded();
+            }
+            updateActions();
         }
     }
 
     public static void main(String[] args) {
         //System.out.println(System.getProperty("java.io.tmpdir")); System.exit(1);
+        // los XSD se compilan en segundo plano mientras arranca la interfaz
+        SchemaRegistry.getInstance().preloadAsync();
         PluginRegistryLoader.LoadReport pluginReport = PluginRegistryLoader.ensureDefaultLoaded();
         System.out.println("[plugins] " + pluginReport.summary());
         if (pluginReport.isLoaded()) {
@@ -0,0 +1,693 @@
+package simpleapp;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Validacion XSD de colecciones dc repartida por objetos entre varios hilos.
+ * Segun el XSD, {@code dc} es solo una secuencia de {@code o} y cada {@code o} se valida por su cuenta: los
+ * hijos de la raiz se agrupan en lotes contiguos, cada lote se envuelve en su propio {@code dc} y se valida en
+ * un hilo del pool con un {@link Validator} prestado por {@link SchemaRegistry} (todos salen del mismo
+ * {@code Schema} cacheado, que es seguro entre hilos). Los errores de cada lote se juntan despues en el orden del documento, asi que el
+ * informe es el mismo en cada ejecucion.
+ * <p>
+ * En un fichero no se construye nada: un recorrido rapido de los bytes localiza donde termina cada objeto de
+ * primer nivel y cada hilo parsea y valida su tramo directamente del fichero, con la linea y la columna de
+ * los errores traducidas a las del fichero completo. Los ficheros que no se pueden trocear asi (otra
+ * codificacion que UTF-8, DOCTYPE, XML mal formado, pocos objetos) se validan de la forma normal.
+ * <p>
+ * Un DOM no admite lecturas concurrentes (expansion diferida), asi que sus lotes se copian antes, como en
+ * {@link ShardedTransformer}.
+ * <p>
+ * Hilos con {@code -Dxslt.validation.threads=N} (por defecto, numero de CPUs; 1 desactiva el modo).
+ */
+final class ParallelCollectionValidator {
+    private static final String THREADS_PROP = "xslt.validation.threads";
+    private static final int OBJECTS_PER_BATCH = 256;
+    private static final long MIN_SLICE_BYTES = 256 * 1024;
+    private static final long MAX_SLICE_BYTES = 8 * 1024 * 1024;
+    private static final int SLICES_PER_THREAD = 4;
+    // propiedad de Xerces: elemento del DOM que se estaba validando cuando se notifica un error
+    private static final String CURRENT_ELEMENT_PROP = "http://apache.org/xml/properties/dom/current-element-node";
+    private static final Pattern ATTRIBUTE = Pattern.compile("\\s([^\\s=]+)\\s*=\\s*(\"[^\"]*\"|'[^']*')");
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static ForkJoinPool pool;
+
+    private ParallelCollectionValidator() {
+    }
+
+    /**
+     * Indica si hay mas de un hilo configurado para validar.
+     */
+    static boolean isEnabled() {
+        return threadCount() > 1;
+    }
+
+    /**
+     * Indica si merece la pena repartir este DOM: al menos dos lotes de objetos.
+     */
+    static boolean shouldSplit(Document doc) {
+        if (!isEnabled() || !XmlUtils.isCollectionDocument(doc)) {
+            return false;
+        }
+        int elements = 0;
+        for (Node child = doc.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && ++elements > OBJECTS_PER_BATCH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void validate(Document doc) throws Exception {
+        Element root = doc.getDocumentElement();
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        DocumentBuilder builder = dbf.newDocumentBuilder();
+        List<Document> batches = new ArrayList<>();
+        List<Integer> firstObjects = new ArrayList<>();
+        Document batch = null;
+        int objectIndex = 0;
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (batch == null) {
+                batch = builder.newDocument();
+                Element batchRoot = (Element) batch.importNode(root, false);
+                if (!batches.isEmpty()) {
+                    // los atributos propios de dc se validan solo en el primer lote
+                    removeNonNamespaceAttributes(batchRoot);
+                }
+                batch.appendChild(batchRoot);
+                batches.add(batch);
+                firstObjects.add(objectIndex);
+            }
+            batch.getDocumentElement().appendChild(batch.importNode(child, true));
+            if (child.getNodeType() == Node.ELEMENT_NODE && ++objectIndex % OBJECTS_PER_BATCH == 0) {
+                batch = null;
+            }
+        }
+
+        Schema schema = XmlUtils.getCollectionSchema();
+        List<Future<ValidationErrors>> results = new ArrayList<>();
+        for (int i = 0; i < batches.size(); i++) {
+            Document pending = batches.get(i);
+            int firstObject = firstObjects.get(i);
+            results.add(getPool().submit(() -> validateBatch(schema, null, validator -> new DOMSource(pending),
+                    validator -> exception -> describeObject(pending, firstObject, currentElement(validator)))));
+        }
+        ValidationErrors errors = new ValidationErrors(null);
+        mergeInOrder(results, errors);
+        errors.throwIfAny();
+    }
+
+    /**
+     * Valida el fichero por tramos en paralelo. Devuelve false, sin validar nada, si el fichero no se puede
+     * trocear; entonces hay que validarlo entero.
+     */
+    static boolean validateSplit(Path xmlPath) throws Exception {
+        long size = Files.size(xmlPath);
+        long target = Math.max(MIN_SLICE_BYTES,
+                Math.min(MAX_SLICE_BYTES, size / ((long) threadCount() * SLICES_PER_THREAD)));
+        Layout layout;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(xmlPath), 64 * 1024)) {
+            layout = Layout.scan(in, target);
+        }
+        if (layout == null || layout.slices.size() < 2) {
+            return false;
+        }
+
+        Schema schema = XmlUtils.getCollectionSchema();
+        String systemId = xmlPath.getFileName().toString();
+        String uri = xmlPath.toAbsolutePath().toUri().toString();
+        List<Future<ValidationErrors>> results = new ArrayList<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        try (FileChannel channel = FileChannel.open(xmlPath, StandardOpenOption.READ)) {
+            try {
+                for (int i = 0; i < layout.slices.size(); i++) {
+                    Slice slice = layout.slices.get(i);
+                    // cada tramo se envuelve en un dc de una sola linea con las declaraciones de namespace de la raiz
+                    String prefix = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                            + (i == 0 ? layout.rootTag : layout.rootTagNamespacesOnly);
+                    byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+                    int headColumns = prefix.length();
+                    results.add(getPool().submit(() -> validateBatch(schema, systemId,
+                            validator -> {
+                                InputStream in = new SequenceInputStream(new ByteArrayInputStream(head),
+                                        new SequenceInputStream(
+                                                new SliceInputStream(channel, slice.start, slice.end, stopped),
+                                                new ByteArrayInputStream(layout.rootEndTag)));
+                                return new StreamSource(in, uri);
+                            },
+                            validator -> exception -> layout.describe(slice, headColumns, exception))));
+                }
+                ValidationErrors errors = new ValidationErrors(systemId);
+                mergeInOrder(results, errors);
+                errors.throwIfAny();
+            } finally {
+                // si algo falla a mitad, los demas tramos se detienen en su siguiente lectura (cancelar una tarea
+                // de ForkJoinPool no la interrumpe) y se espera a todos antes de cerrar el canal
+                stopped.set(true);
+                awaitAll(results);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Espera a que terminen las tareas, sin atender a su resultado ni dejarse interrumpir: mientras alguna
+     * siga en marcha puede estar leyendo del canal.
+     */
+    private static void awaitAll(List<Future<ValidationErrors>> results) {
+        boolean interrupted = false;
+        for (Future<ValidationErrors> result : results) {
+            while (true) {
+                try {
+                    result.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ValidationErrors validateBatch(Schema schema, String systemId, SourceFactory source,
+                                                  Function<Validator, Function<SAXParseException, String>> location)
+            throws Exception {
+        Validator validator = SchemaRegistry.getInstance().borrowValidator(schema);
+        ValidationErrors errors = new ValidationErrors(systemId);
+        errors.setLocation(location.apply(validator));
+        validator.setErrorHandler(errors);
+        try {
+            validator.validate(source.create(validator));
+        } catch (SAXException e) {
+            // maximo de errores del lote o XML mal formado: lo recogido ya esta en errors
+            if (!errors.hasErrors()) {
+                throw e;
+            }
+        } finally {
+            SchemaRegistry.getInstance().releaseValidator(schema, validator);
+        }
+        return errors;
+    }
+
+    private interface SourceFactory {
+        Source create(Validator validator) throws Exception;
+    }
+
+    /**
+     * Junta los errores de los lotes en el orden del documento.
+     */
+    private static void mergeInOrder(List<Future<ValidationErrors>> results, ValidationErrors errors)
+            throws Exception {
+        boolean room = true;
+        for (Future<ValidationErrors> result : results) {
+            ValidationErrors batchErrors;
+            try {
+                batchErrors = result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+            if (room) {
+                room = errors.merge(batchErrors);
+            }
+        }
+    }
+
+    private static Node currentElement(Validator validator) {
+        try {
+            return (Node) validator.getProperty(CURRENT_ELEMENT_PROP);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Objeto (posicion y id) que contiene el nodo del lote en el que se produjo el error.
+     */
+    private static String describeObject(Document batch, int firstObject, Node node) {
+        if (node == null) {
+            return null;
+        }
+        Element root = batch.getDocumentElement();
+        Node object = node;
+        while (object.getParentNode() != null && object.getParentNode() != root) {
+            object = object.getParentNode();
+        }
+        if (object.getParentNode() != root) {
+            return root.getNodeName();
+        }
+        int index = firstObject;
+        for (Node sibling = root.getFirstChild(); sibling != object; sibling = sibling.getNextSibling()) {
+            if (sibling.getNodeType() == Node.ELEMENT_NODE) index++;
+        }
+        String id = object instanceof Element ? ((Element) object).getAttribute("id") : "";
+        StringBuilder where = new StringBuilder("objeto ").append(index + 1);
+        if (!id.isEmpty()) {
+            where.append(" (id=").append(id).append(')');
+        }
+        if (node != object) {
+            where.append(", elemento ").append(node.getNodeName());
+        }
+        return where.toString();
+    }
+
+    private static void removeNonNamespaceAttributes(Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = attributes.getLength() - 1; i >= 0; i--) {
+            Attr attr = (Attr) attributes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+                element.removeAttributeNode(attr);
+            }
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount());
+        }
+        return pool;
+    }
+
+    private static int threadCount() {
+        String configured = System.getProperty(THREADS_PROP);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException ignored) {
+                // valor invalido: se usa el valor por defecto
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Tramo [start, end) del contenido de dc, con la linea y la columna (en caracteres) en que empieza.
+     */
+    private static final class Slice {
+        private final long start;
+        private final long end;
+        private final int line;
+        private final int column;
+
+        private Slice(long start, long end, int line, int column) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    /**
+     * Estructura de primer nivel del fichero: etiqueta de la raiz y tramos de objetos. Se obtiene con un
+     * recorrido byte a byte que solo distingue etiquetas, comentarios, CDATA, PIs y valores de atributo
+     * entrecomillados; no valida nada. Ante cualquier cosa inesperada devuelve null.
+     */
+    private static final class Layout {
+        private final List<Slice> slices = new ArrayList<>();
+        private String rootTag;
+        private String rootTagNamespacesOnly;
+        private byte[] rootEndTag;
+        private int rootLine;
+        private int rootColumn;
+
+        private final InputStream in;
+        private long position;
+        private int line = 1;
+        private int column = 1;
+        private int peeked = -2;
+
+        private Layout(InputStream in) {
+            this.in = in;
+        }
+
+        static Layout scan(InputStream in, long targetSliceBytes) throws IOException {
+            Layout layout = new Layout(in);
+            return layout.scanDocument(targetSliceBytes) ? layout : null;
+        }
+
+        private boolean scanDocument(long targetSliceBytes) throws IOException {
+            int first = peek();
+            if (first == 0xFE || first == 0xFF || first == 0x00) {
+                return false; // UTF-16/32
+            }
+            if (first == 0xEF) {
+                // BOM UTF-8
+                read();
+                read();
+                read();
+            }
+            // prologo
+            while (true) {
+                int c = read();
+                if (c < 0) return false;
+                if (c != '<') {
+                    if (!Character.isWhitespace(c)) return false;
+                    continue;
+                }
+                int next = peek();
+                if (next == '?') {
+                    String pi = readUntil("?>");
+                    if (pi == null) return false;
+                    Matcher encoding = ENCODING.matcher(pi);
+                    if (pi.startsWith("?xml") && encoding.find()) {
+                        String name = encoding.group(1).toUpperCase(Locale.ROOT);
+                        if (!name.equals("UTF-8") && !name.equals("UTF8") && !name.equals("US-ASCII")) {
+                            return false;
+                        }
+                    }
+                } else if (next == '!') {
+                    String markup = readUntil(">");
+                    if (markup == null || !markup.startsWith("!--")) {
+                        return false; // DOCTYPE: entidades o atributos por defecto que un tramo suelto no veria
+                    }
+                    if (!markup.endsWith("--")) {
+                        String rest = readUntil("-->");
+                        if (rest == null) return false;
+                    }
+                } else {
+                    break;
+                }
+            }
+
+            // etiqueta de la raiz
+            StringBuilder tag = new StringBuilder("<");
+            if (!readTag(tag)) return false;
+            if (tag.charAt(tag.length() - 2) == '/') {
+                return false; // dc vacio: que informe la validacion normal
+            }
+            rootLine = line;
+            rootColumn = column;
+            String raw = tag.toString().replaceAll("[\\r\\n\\t]", " ");
+            rootTag = raw;
+            String rootName = raw.substring(1).split("[\\s/>]", 2)[0];
+            rootEndTag = ("</" + rootName + ">").getBytes(StandardCharsets.UTF_8);
+            StringBuilder namespaces = new StringBuilder("<").append(rootName);
+            Matcher attribute = ATTRIBUTE.matcher(raw);
+            while (attribute.find()) {
+                String name = attribute.group(1);
+                if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                    namespaces.append(' ').append(name).append('=').append(attribute.group(2));
+                }
+            }
+            rootTagNamespacesOnly = namespaces.append('>').toString();
+
+            // contenido: se corta tras un objeto de primer nivel cuando el tramo alcanza el tamano objetivo
+            long sliceStart = position;
+            int sliceLine = line;
+            int sliceColumn = column;
+            int objectsInSlice = 0;
+            int depth = 1;
+            while (true) {
+                long markupStart = position;
+                int c = read();
+                if (c < 0) return false;
+                if (c != '<') continue;
+                int next = peek();
+                boolean objectEnded = false;
+                if (next == '/') {
+                    if (readUntil(">") == null) return false;
+                    depth--;
+                    if (depth == 0) {
+                        if (!scanTrailer()) {
+                            return false;
+                        }
+                        if (objectsInSlice == 0) {
+                            // lo que queda tras el ultimo objeto (espacios, comentarios) va con el tramo anterior
+                            if (slices.isEmpty()) return false;
+                            Slice last = slices.remove(slices.size() - 1);
+                            slices.add(new Slice(last.start, markupStart, last.line, last.column));
+                        } else {
+                            slices.add(new Slice(sliceStart, markupStart, sliceLine, sliceColumn));
+                        }
+                        return true;
+                    }
+                    objectEnded = depth == 1;
+                } else if (next == '!') {
+                    if (!skipMarkupDeclaration()) return false;
+                } else if (next == '?') {
+                    if (readUntil("?>") == null) return false;
+                } else {
+                    StringBuilder element = new StringBuilder("<");
+                    if (!readTag(element)) return false;
+                    if (element.charAt(element.length() - 2) == '/') {
+                        objectEnded = depth == 1;
+                    } else {
+                        depth++;
+                    }
+                }
+                if (objectEnded) {
+                    objectsInSlice++;
+                    if (position - sliceStart >= targetSliceBytes) {
+                        slices.add(new Slice(sliceStart, position, sliceLine, sliceColumn));
+                        sliceStart = position;
+                        sliceLine = line;
+                        sliceColumn = column;
+                        objectsInSlice = 0;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Traduce la posicion de un error dentro del tramo envuelto a la del fichero. La envoltura ocupa la
+         * primera linea, de {@code headColumns} caracteres.
+         */
+        private String describe(Slice slice, int headColumns, SAXParseException exception) {
+            int errorLine = exception.getLineNumber();
+            int errorColumn = exception.getColumnNumber();
+            if (errorLine < 1) {
+                return null;
+            }
+            int fileLine;
+            int fileColumn;
+            if (errorLine == 1 && errorColumn <= headColumns + 1) {
+                // error en la propia raiz
+                fileLine = rootLine;
+                fileColumn = rootColumn;
+            } else if (errorLine == 1) {
+                fileLine = slice.line;
+                fileColumn = slice.column + (errorColumn - headColumns - 1);
+            } else {
+                fileLine = slice.line + errorLine - 1;
+                fileColumn = errorColumn;
+            }
+            return "linea " + fileLine + ", columna " + fileColumn;
+        }
+
+        /**
+         * Tras la raiz solo puede haber espacios, comentarios y PIs; cualquier otra cosa la informa la
+         * validacion normal.
+         */
+        private boolean scanTrailer() throws IOException {
+            while (true) {
+                int c = read();
+                if (c < 0) return true;
+                if (Character.isWhitespace(c)) continue;
+                if (c != '<') return false;
+                int next = peek();
+                if (next == '?') {
+                    if (readUntil("?>") == null) return false;
+                } else if (next == '!') {
+                    read();
+                    if (read() != '-' || read() != '-' || readUntil("-->") == null) return false;
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        private boolean skipMarkupDeclaration() throws IOException {
+            read(); // '!'
+            int c = read();
+            if (c == '-') {
+                if (read() != '-') return false;
+                return readUntil("-->") != null;
+            }
+            if (c == '[') {
+                // <![CDATA[ ... ]]>
+                return readUntil("]]>") != null;
+            }
+            return false;
+        }
+
+        /**
+         * Lee una etiqueta de apertura hasta su '>' (fuera de comillas) y la anade a {@code tag}.
+         */
+        private boolean readTag(StringBuilder tag) throws IOException {
+            int quote = 0;
+            ByteBuffer bytes = ByteBuffer.allocate(256);
+            while (true) {
+                int c = read();
+                if (c < 0) return false;
+                if (!bytes.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(bytes.capacity() * 2);
+                    bytes.flip();
+                    bigger.put(bytes);
+                    bytes = bigger;
+                }
+                bytes.put((byte) c);
+                if (quote != 0) {
+                    if (c == quote) quote = 0;
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    tag.append(new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8));
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Avanza hasta despues de {@code end} y devuelve lo leido (sin {@code end}), o null si se acaba el
+         * fichero. Solo se conserva texto corto: comentarios y CDATA largos no se guardan.
+         */
+        private String readUntil(String end) throws IOException {
+            StringBuilder text = new StringBuilder();
+            int matched = 0;
+            while (true) {
+                int c = read();
+                if (c < 0) return null;
+                if (text.length() < 1024) text.append((char) c);
+                if (c == end.charAt(matched)) {
+                    matched++;
+                    if (matched == end.length()) {
+                        int length = Math.min(text.length(), Math.max(0, text.length() - end.length()));
+                        return text.substring(0, length);
+                    }
+                } else if (matched > 0) {
+                    // "]]]>" o "--->": lo ya reconocido puede seguir siendo el principio del final
+                    String window = end.substring(0, matched) + (char) c;
+                    matched = 0;
+                    for (int k = Math.min(window.length(), end.length() - 1); k > 0; k--) {
+                        if (window.endsWith(end.substring(0, k))) {
+                            matched = k;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = in.read();
+            }
+            return peeked;
+        }
+
+        private int read() throws IOException {
+            int c;
+            if (peeked != -2) {
+                c = peeked;
+                peeked = -2;
+            } else {
+                c = in.read();
+            }
+            if (c < 0) return c;
+            position++;
+            if (c == '\n') {
+                line++;
+                column = 1;
+            } else if ((c & 0xC0) != 0x80) {
+                // columnas en caracteres, como el parser: los bytes de continuacion UTF-8 no cuentan
+                column++;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Lee [start, end) de un canal compartido con lecturas posicionales (seguras entre hilos). Deja de leer en
+     * cuanto {@code stopped} se activa: la validacion ya fallo en otro tramo.
+     */
+    private static final class SliceInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final AtomicBoolean stopped;
+        private long position;
+        private final long end;
+
+        private SliceInputStream(FileChannel channel, long start, long end, AtomicBoolean stopped) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.stopped = stopped;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            if (stopped.get()) {
+                throw new IOException("Validacion por tramos detenida");
+            }
+            if (buffer.hasRemaining()) return true;
+            if (position >= end) return false;
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) return false;
+            position += read;
+            buffer.flip();
+            return true;
+        }
+    }
+}
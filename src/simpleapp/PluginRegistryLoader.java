@@ -11,6 +11,7 @@ import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.TransformerException;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -90,6 +91,9 @@ public final class PluginRegistryLoader {
         List<String> registered = new ArrayList<>();
         for (PluginEntry entry : entries) {
             ExtensionElementHandler handler = createHandler(entry, pluginLoader);
+            if (entry.usesResources) {
+                handler = extractingResources(handler);
+            }
             ExtensionComponents.register(entry.elementName, handler);
             String method = !isBlank(entry.methodName) ? entry.methodName : entry.elementName;
             registered.add(entry.elementName + " -> " + entry.className + "#" + method);
@@ -225,7 +229,8 @@ public final class PluginRegistryLoader {
                         "dependencia del plugin '" + elementName + "'");
             }
 
-            entries.add(new PluginEntry(elementName.trim(), className.trim(), normalize(methodName)));
+            boolean usesResources = "true".equalsIgnoreCase(value(plugin, "resources"));
+            entries.add(new PluginEntry(elementName.trim(), className.trim(), normalize(methodName), usesResources));
         }
         return entries;
     }
@@ -258,6 +263,23 @@ public final class PluginRegistryLoader {
         return (context, element) -> invokeMethod(entry, method, target, context, element);
     }
 
+    /**
+     * Plugin marcado con {@code resources="true"}: lee por su cuenta ficheros de la coleccion, sin pasar por
+     * los servicios de la app, asi que antes de su primera llamada se extraen todos los recursos del ZIP abierto
+     * que contiene el documento ({@link ZipCollection}). Un plugin que convierte con
+     * {@link ImageConversionService} no lo necesita: el servicio extrae cada imagen al pedirla.
+     */
+    private static ExtensionElementHandler extractingResources(ExtensionElementHandler handler) {
+        return (context, element) -> {
+            try {
+                ZipCollection.ensureResourcesExtracted(XsltExtensions.resolveBaseDir(context));
+            } catch (IOException e) {
+                throw new TransformerException("No se pudieron extraer los recursos del ZIP", e);
+            }
+            handler.invoke(context, element);
+        };
+    }
+
     private static void invokeMethod(PluginEntry entry, Method method, Object target,
                                      XSLProcessorContext context, ElemExtensionCall element)
             throws TransformerException {
@@ -410,11 +432,13 @@ public final class PluginRegistryLoader {
         private final String elementName;
         private final String className;
         private final String methodName;
+        private final boolean usesResources;
 
-        private PluginEntry(String elementName, String className, String methodName) {
+        private PluginEntry(String elementName, String className, String methodName, boolean usesResources) {
             this.elementName = elementName;
             this.className = className;
             this.methodName = methodName;
+            this.usesResources = usesResources;
         }
     }
 
@@ -11,8 +11,8 @@ import javax.swing.table.DefaultTableModel;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.awt.*;
 import java.io.File;
+import java.io.OutputStream;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -22,8 +22,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.prefs.Preferences;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class RecordViewerMain {
     private static final String PREF_LAST_DIR = "recordViewerLastDir";
@@ -294,7 +292,7 @@ public class RecordViewerMain {
                 if (!selectedName.endsWith(".xml")) {
                     target = target.resolveSibling(target.getFileName().toString() + ".xml");
                 }
-                Files.write(target, XmlUtils.nodeToPrettyString(node).getBytes(StandardCharsets.UTF_8));
+                XmlSerializer.serialize(node, target, XmlSerializer.Options.forExport().withDeclaration(true));
             }
             sourceLabel.setText("Exportado: " + target.toAbsolutePath());
         } catch (Exception ex) {
@@ -303,21 +301,17 @@ public class RecordViewerMain {
     }
 
     private void exportAsZip(Node node, Path target, String xmlEntryName, Set<Path> resources) throws Exception {
-        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(target))) {
-            zos.putNextEntry(new ZipEntry(xmlEntryName));
-            zos.write(XmlUtils.nodeToPrettyString(node).getBytes(StandardCharsets.UTF_8));
-            zos.closeEntry();
+        try (ExportZipWriter zip = ExportZipWriter.create(target)) {
+            try (OutputStream entry = zip.openEntry(xmlEntryName)) {
+                XmlSerializer.serialize(node, entry, XmlSerializer.Options.forExport().withDeclaration(true));
+            }
             Path base = currentSource != null && currentSource.getParent() != null ? currentSource.getParent().normalize() : null;
             for (Path resource : resources) {
                 if (resource == null || !Files.exists(resource)) continue;
                 String entryName = base != null && resource.normalize().startsWith(base)
                         ? base.relativize(resource.normalize()).toString().replace('\\', '/')
                         : resource.getFileName().toString();
-                zos.putNextEntry(new ZipEntry(entryName));
-                try (var in = Files.newInputStream(resource)) {
-                    in.transferTo(zos);
-                }
-                zos.closeEntry();
+                zip.addFile(entryName, resource);
             }
         }
     }
@@ -0,0 +1,355 @@
+package simpleapp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro de esquemas XSD por formato: asocia el elemento raiz (y, opcionalmente, su namespace) o un namespace
+ * completo con un {@link Schema} compilado, de modo que cualquier etapa de una transformacion (coleccion dc,
+ * recordCollection, records...) se puede validar sin volver a compilar su XSD.
+ * <p>
+ * Las asociaciones se leen de {@code samples/schemas.xml} (o de {@code -Dxslt.schemas.config}); las rutas
+ * relativas se resuelven respecto a la carpeta del fichero. Sin fichero de configuracion solo se registra
+ * {@code dc} con {@code samples/collection.xsd}.
+ * <p>
+ * Cada esquema se compila una vez ({@link #preloadAsync()} los compila todos en segundo plano al arrancar) y se
+ * recompila si su fichero cambia (fecha, tamano y hash, como {@link TemplatesCache}); los XSD incluidos o
+ * importados desde el principal no se vigilan. Un {@link Schema} es seguro entre hilos; los {@link Validator}
+ * no, asi que se prestan desde un pool por esquema ({@link #borrowValidator(Schema)}).
+ */
+public final class SchemaRegistry {
+    private static final String CONFIG_PROPERTY = "xslt.schemas.config";
+    private static final Path DEFAULT_CONFIG = Paths.get("samples", "schemas.xml");
+    private static final Path DEFAULT_COLLECTION_SCHEMA = Paths.get("samples", "collection.xsd");
+    private static final SchemaRegistry INSTANCE = new SchemaRegistry();
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    // compilaciones en curso por XSD; cada clave se quita al terminar la suya
+    private final Map<Path, CompletableFuture<Void>> compiling = new ConcurrentHashMap<>();
+    private final Map<Schema, Queue<Validator>> idleValidators = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong validatorsCreated = new AtomicLong();
+    private final AtomicLong validatorsReused = new AtomicLong();
+    private Mappings mappings;
+    private Thread preloader;
+
+    private SchemaRegistry() {
+    }
+
+    public static SchemaRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Compila en un hilo de fondo todos los esquemas registrados. Quien pida un esquema mientras se compila
+     * espera a ese hilo en lugar de compilarlo otra vez. Los errores se ignoran aqui: vuelven a aparecer al
+     * usar el esquema.
+     */
+    public synchronized void preloadAsync() {
+        if (preloader != null && preloader.isAlive()) return;
+        preloader = new Thread(() -> {
+            try {
+                for (Path xsd : mappings().files()) {
+                    try {
+                        get(xsd);
+                    } catch (Exception ignored) {
+                        // se informara al validar con este esquema
+                    }
+                }
+            } catch (Exception ignored) {
+                // configuracion ilegible: se informara al usar el registro
+            }
+        }, "schema-preload");
+        preloader.setDaemon(true);
+        preloader.start();
+    }
+
+    /**
+     * Esquema de un elemento raiz, o null si no hay ninguno registrado. Tiene prioridad una entrada con ese
+     * nombre de raiz (y ese namespace, si la entrada lo indica) sobre una entrada solo de namespace.
+     */
+    public Schema find(String namespace, String rootName) throws Exception {
+        Path xsd = mappings().resolve(namespace, rootName);
+        return xsd != null ? get(xsd) : null;
+    }
+
+    public Schema find(Document doc) throws Exception {
+        if (doc == null || doc.getDocumentElement() == null) return null;
+        Element root = doc.getDocumentElement();
+        return find(root.getNamespaceURI(), root.getLocalName() != null ? root.getLocalName() : root.getNodeName());
+    }
+
+    /**
+     * Igual que {@link #find(String, String)}, pero falla si no hay esquema para esa raiz.
+     */
+    public Schema require(String namespace, String rootName) throws Exception {
+        Schema schema = find(namespace, rootName);
+        if (schema == null) {
+            throw new IllegalStateException("No hay esquema XSD registrado para la raiz '" + rootName + "'"
+                    + (namespace != null && !namespace.isEmpty() ? " (" + namespace + ")" : ""));
+        }
+        return schema;
+    }
+
+    public boolean hasSchema(String namespace, String rootName) throws Exception {
+        return mappings().resolve(namespace, rootName) != null;
+    }
+
+    /**
+     * Presta un {@link Validator} del esquema, ya reiniciado. Debe devolverse con
+     * {@link #releaseValidator(Schema, Validator)} al terminar, tambien si la validacion fallo.
+     */
+    public Validator borrowValidator(Schema schema) {
+        Queue<Validator> idle = idleValidators.get(schema);
+        Validator validator = idle != null ? idle.poll() : null;
+        if (validator == null) {
+            validatorsCreated.incrementAndGet();
+            return schema.newValidator();
+        }
+        validatorsReused.incrementAndGet();
+        validator.reset();
+        return validator;
+    }
+
+    public void releaseValidator(Schema schema, Validator validator) {
+        if (validator == null) return;
+        validator.setErrorHandler(null);
+        validator.setResourceResolver(null);
+        // los validadores de un esquema ya recompilado se descartan
+        Queue<Validator> idle = idleValidators.get(schema);
+        if (idle != null) {
+            idle.offer(validator);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(hits.get(), compilations.get(), reloads.get(), validatorsCreated.get(),
+                validatorsReused.get(), entries.size());
+    }
+
+    private Schema get(Path xsd) throws Exception {
+        if (!Files.exists(xsd)) {
+            throw new IllegalStateException("No se encontro el esquema en " + xsd);
+        }
+        FileStamp stamp = FileStamp.of(xsd);
+        while (true) {
+            Entry cached = entries.get(xsd);
+            if (cached != null && cached.stamp.equals(stamp)) {
+                hits.incrementAndGet();
+                return cached.schema;
+            }
+            // Un unico hilo compila cada esquema; el resto espera a que termine y vuelve a mirar la cache
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            CompletableFuture<Void> running = compiling.putIfAbsent(xsd, mine);
+            if (running != null) {
+                running.join();
+                continue;
+            }
+            try {
+                Entry current = entries.get(xsd);
+                if (current != null && current.stamp.equals(stamp)) {
+                    hits.incrementAndGet();
+                    return current.schema;
+                }
+                SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                Schema schema = sf.newSchema(xsd.toFile());
+                compilations.incrementAndGet();
+                idleValidators.put(schema, new ConcurrentLinkedQueue<>());
+                entries.put(xsd, new Entry(stamp, schema));
+                if (current != null) {
+                    reloads.incrementAndGet();
+                    idleValidators.remove(current.schema);
+                }
+                return schema;
+            } finally {
+                compiling.remove(xsd, mine);
+                mine.complete(null);
+            }
+        }
+    }
+
+    private synchronized Mappings mappings() throws Exception {
+        Path config = resolveConfigPath();
+        FileStamp stamp = Files.exists(config) ? FileStamp.of(config) : null;
+        if (mappings == null || !Objects.equals(mappings.stamp, stamp)) {
+            mappings = stamp != null ? Mappings.load(config, stamp) : Mappings.defaults();
+        }
+        return mappings;
+    }
+
+    private static Path resolveConfigPath() {
+        String configured = System.getProperty(CONFIG_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            return Paths.get(configured.trim());
+        }
+        return DEFAULT_CONFIG;
+    }
+
+    private static final class Entry {
+        private final FileStamp stamp;
+        private final Schema schema;
+
+        private Entry(FileStamp stamp, Schema schema) {
+            this.stamp = stamp;
+            this.schema = schema;
+        }
+    }
+
+    /**
+     * Contenido de schemas.xml: entradas por raiz (con namespace opcional) y por namespace.
+     */
+    private static final class Mappings {
+        private final FileStamp stamp;
+        private final List<Mapping> byRoot;
+        private final List<Mapping> byNamespace;
+
+        private Mappings(FileStamp stamp, List<Mapping> byRoot, List<Mapping> byNamespace) {
+            this.stamp = stamp;
+            this.byRoot = byRoot;
+            this.byNamespace = byNamespace;
+        }
+
+        private static Mappings defaults() {
+            Path xsd = DEFAULT_COLLECTION_SCHEMA.toAbsolutePath().normalize();
+            return new Mappings(null, List.of(new Mapping("dc", null, xsd)), Collections.emptyList());
+        }
+
+        private static Mappings load(Path config, FileStamp stamp) throws Exception {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            dbf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            Document doc = dbf.newDocumentBuilder().parse(config.toFile());
+            Path baseDir = config.toAbsolutePath().getParent();
+            List<Mapping> byRoot = new ArrayList<>();
+            List<Mapping> byNamespace = new ArrayList<>();
+            NodeList nodes = doc.getDocumentElement().getElementsByTagName("schema");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Element element = (Element) nodes.item(i);
+                String root = element.getAttribute("root").trim();
+                String namespace = element.getAttribute("namespace").trim();
+                String file = element.getAttribute("file").trim();
+                if (file.isEmpty() || (root.isEmpty() && namespace.isEmpty())) {
+                    throw new IllegalArgumentException("Entrada de esquema incompleta en " + config
+                            + ": se necesita file y root o namespace");
+                }
+                Path xsd = baseDir.resolve(file).normalize();
+                Mapping mapping = new Mapping(root.isEmpty() ? null : root, namespace.isEmpty() ? null : namespace, xsd);
+                (mapping.root != null ? byRoot : byNamespace).add(mapping);
+            }
+            return new Mappings(stamp, byRoot, byNamespace);
+        }
+
+        private Path resolve(String namespace, String rootName) {
+            String ns = namespace != null && !namespace.isEmpty() ? namespace : null;
+            for (Mapping mapping : byRoot) {
+                if (mapping.root.equals(rootName) && (mapping.namespace == null || mapping.namespace.equals(ns))) {
+                    return mapping.xsd;
+                }
+            }
+            if (ns != null) {
+                for (Mapping mapping : byNamespace) {
+                    if (mapping.namespace.equals(ns)) {
+                        return mapping.xsd;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private Set<Path> files() {
+            Set<Path> files = new LinkedHashSet<>();
+            byRoot.forEach(mapping -> files.add(mapping.xsd));
+            byNamespace.forEach(mapping -> files.add(mapping.xsd));
+            return files;
+        }
+    }
+
+    private static final class Mapping {
+        private final String root;
+        private final String namespace;
+        private final Path xsd;
+
+        private Mapping(String root, String namespace, Path xsd) {
+            this.root = root;
+            this.namespace = namespace;
+            this.xsd = xsd;
+        }
+    }
+
+    /**
+     * Contadores del registro: reutilizacion de esquemas compilados y de validadores.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long compilations;
+        private final long reloads;
+        private final long validatorsCreated;
+        private final long validatorsReused;
+        private final int size;
+
+        private Stats(long hits, long compilations, long reloads, long validatorsCreated, long validatorsReused,
+                      int size) {
+            this.hits = hits;
+            this.compilations = compilations;
+            this.reloads = reloads;
+            this.validatorsCreated = validatorsCreated;
+            this.validatorsReused = validatorsReused;
+            this.size = size;
+        }
+
+        public long hits() {
+            return hits;
+        }
+
+        public long compilations() {
+            return compilations;
+        }
+
+        public long reloads() {
+            return reloads;
+        }
+
+        public long validatorsCreated() {
+            return validatorsCreated;
+        }
+
+        public long validatorsReused() {
+            return validatorsReused;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "Esquemas XSD: hits=" + hits + ", compilaciones=" + compilations + ", recargas=" + reloads
+                    + ", validadores creados=" + validatorsCreated + ", reutilizados=" + validatorsReused
+                    + ", esquemas=" + size;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package simpleapp;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.ext.LexicalHandler;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Valida la salida de una transformacion mientras se escribe contra el XSD que {@link SchemaRegistry} tenga
+ * para su raiz: la raiz no se conoce hasta el primer elemento, asi que los eventos previos se retienen y al
+ * llegar la raiz se decide si pasan por un {@link ValidatorHandler} o van directos al destino (formato sin
+ * esquema). Evita releer (o recorrer otra vez en DOM) el resultado solo para validarlo.
+ * <p>
+ * Los errores van al {@link ErrorHandler} indicado; con un {@link ValidationErrors}, quien transforma debe
+ * llamar a {@link ValidationErrors#throwIfAny()} al terminar.
+ */
+final class SchemaValidationFilter implements ContentHandler, LexicalHandler {
+    private final ContentHandler downstream;
+    private final LexicalHandler lexical;
+    private final ErrorHandler errors;
+    // eventos anteriores a la raiz (prefijos, comentarios, PIs), en orden
+    private final List<PendingEvent> pending = new ArrayList<>();
+    private Locator locator;
+    private ContentHandler target;
+    private boolean validating;
+    private boolean schemaRequired;
+
+    private SchemaValidationFilter(ContentHandler downstream, LexicalHandler lexical, ErrorHandler errors) {
+        this.downstream = downstream;
+        this.lexical = lexical;
+        this.errors = errors;
+    }
+
+    static SchemaValidationFilter wrap(Result result, ErrorHandler errors) throws Exception {
+        return wrap(result, null, errors);
+    }
+
+    /**
+     * Un Result que no es SAX se escribe con un TransformerHandler identidad; {@code outputProperties} (el
+     * {@code xsl:output} de la hoja) se le aplica para que la salida sea la misma que sin validar.
+     */
+    static SchemaValidationFilter wrap(Result result, Properties outputProperties, ErrorHandler errors)
+            throws Exception {
+        if (result instanceof SAXResult sax) {
+            LexicalHandler lexical = sax.getLexicalHandler() != null ? sax.getLexicalHandler()
+                    : sax.getHandler() instanceof LexicalHandler l ? l : null;
+            return new SchemaValidationFilter(sax.getHandler(), lexical, errors);
+        }
+        SAXTransformerFactory factory = (SAXTransformerFactory) XmlUtils.newXsltFactory(
+                SchemaValidationFilter.class.getClassLoader());
+        TransformerHandler identity = factory.newTransformerHandler();
+        if (outputProperties != null) {
+            identity.getTransformer().setOutputProperties(outputProperties);
+        }
+        identity.setResult(result);
+        return new SchemaValidationFilter(identity, identity, errors);
+    }
+
+    /**
+     * Una raiz sin esquema registrado se notifica como error en lugar de dejarse pasar sin validar.
+     */
+    SchemaValidationFilter requireSchema() {
+        schemaRequired = true;
+        return this;
+    }
+
+    SAXResult asResult() {
+        SAXResult result = new SAXResult(this);
+        result.setLexicalHandler(this);
+        return result;
+    }
+
+    /**
+     * Indica si habia esquema para la raiz de la salida y se valido.
+     */
+    boolean isValidating() {
+        return validating;
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        this.locator = locator;
+    }
+
+    @Override
+    public void startDocument() {
+        // se reenvia al elegir destino
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        selectTarget(null, null);
+        target.endDocument();
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (target == null) {
+            pending.add(handler -> handler.startPrefixMapping(prefix, uri));
+        } else {
+            target.startPrefixMapping(prefix, uri);
+        }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        target.endPrefixMapping(prefix);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (target == null) {
+            selectTarget(uri, localName != null && !localName.isEmpty() ? localName : qName);
+        }
+        target.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        target.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        // texto fuera de la raiz: no forma parte del documento
+        if (target != null) target.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        if (target != null) target.ignorableWhitespace(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String piTarget, String data) throws SAXException {
+        if (target == null) {
+            pending.add(handler -> handler.processingInstruction(piTarget, data));
+        } else {
+            target.processingInstruction(piTarget, data);
+        }
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+        if (target != null) target.skippedEntity(name);
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        lexical(l -> l.startDTD(name, publicId, systemId));
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        lexical(LexicalHandler::endDTD);
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+        lexical(l -> l.startEntity(name));
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+        lexical(l -> l.endEntity(name));
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+        lexical(LexicalHandler::startCDATA);
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+        lexical(LexicalHandler::endCDATA);
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        if (lexical == null) return;
+        if (target == null) {
+            String text = new String(ch, start, length);
+            pending.add(handler -> lexical.comment(text.toCharArray(), 0, text.length()));
+        } else {
+            lexical.comment(ch, start, length);
+        }
+    }
+
+    /**
+     * Los eventos lexicos van directos al destino final: el validador no los necesita y, como reenvia el
+     * contenido en el mismo hilo y en orden, el destino los recibe intercalados correctamente.
+     */
+    private void lexical(LexicalEvent event) throws SAXException {
+        if (lexical == null) return;
+        if (target == null) {
+            pending.add(handler -> event.send(lexical));
+        } else {
+            event.send(lexical);
+        }
+    }
+
+    private void selectTarget(String namespace, String rootName) throws SAXException {
+        if (target != null) return;
+        Schema schema = null;
+        if (rootName != null) {
+            try {
+                schema = SchemaRegistry.getInstance().find(namespace, rootName);
+            } catch (Exception e) {
+                throw new SAXException("No se pudo preparar la validacion XSD: " + e.getMessage(), e);
+            }
+            if (schema == null && schemaRequired) {
+                errors.error(new SAXParseException("No hay esquema XSD registrado para la raiz '" + rootName
+                        + "'", locator));
+            }
+        }
+        if (schema != null) {
+            ValidatorHandler validator = schema.newValidatorHandler();
+            validator.setErrorHandler(errors);
+            validator.setContentHandler(downstream);
+            target = validator;
+            validating = true;
+        } else {
+            target = downstream;
+        }
+        if (locator != null) {
+            target.setDocumentLocator(locator);
+        }
+        target.startDocument();
+        for (PendingEvent event : pending) {
+            event.replay(target);
+        }
+        pending.clear();
+    }
+
+    private interface PendingEvent {
+        void replay(ContentHandler handler) throws SAXException;
+    }
+
+    private interface LexicalEvent {
+        void send(LexicalHandler handler) throws SAXException;
+    }
+}
@@ -0,0 +1,211 @@
+package simpleapp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Transformacion de colecciones dc por lotes de objetos en paralelo.
+ * Segun el XSD cada {@code o} es una unidad independiente: los objetos se reparten en lotes contiguos,
+ * cada lote se envuelve en una copia del elemento {@code dc} y se transforma en un hilo del pool con el
+ * mismo {@link Templates} cacheado. Los hijos del elemento raiz de cada resultado se concatenan despues,
+ * en el orden original, bajo la raiz del primer lote.
+ * <p>
+ * Solo es correcto para hojas que tratan cada objeto por separado y cuya raiz de salida solo contiene lo
+ * generado por objeto: por defecto se aplica a las hojas que lo declaran con {@code <?app-shard?>}
+ * ({@code -Dxslt.shard.mode=declared}). Con {@code auto} se aplica a todas salvo a las que declaran
+ * {@code <?app-shard no?>}; con {@code off} nunca.
+ */
+public final class ShardedTransformer {
+    private static final String MODE_PROP = "xslt.shard.mode";
+    private static final String THREADS_PROP = "xslt.shard.threads";
+    private static final String MIN_OBJECTS_PROP = "xslt.shard.min.objects";
+    private static final int DEFAULT_MIN_OBJECTS_PER_SHARD = 100;
+    private static ForkJoinPool pool;
+
+    private ShardedTransformer() {
+    }
+
+    /**
+     * Indica si la hoja analizada puede transformar {@code source} por lotes, segun su declaracion,
+     * el modo configurado y el numero de objetos de la coleccion.
+     */
+    public static boolean shouldShard(StylesheetAnalyzer.StylesheetAnalysis analysis, Document source) {
+        Boolean declared = analysis.getShardingDeclared();
+        String mode = System.getProperty(MODE_PROP, "declared").trim().toLowerCase(Locale.ROOT);
+        boolean enabled;
+        if ("off".equals(mode)) {
+            enabled = false;
+        } else if ("auto".equals(mode)) {
+            enabled = !Boolean.FALSE.equals(declared);
+        } else {
+            enabled = Boolean.TRUE.equals(declared);
+        }
+        return enabled && shardCount(collectObjects(source)) > 1;
+    }
+
+    /**
+     * Aplica la hoja por lotes. Todos los lotes comparten la sesion; cada hilo del pool usa su classloader
+     * como classloader de contexto mientras transforma.
+     */
+    public static Document transform(Document source, Templates templates, TransformSession session)
+            throws Exception {
+        List<Element> objects = collectObjects(source);
+        int shards = shardCount(objects);
+        if (objects == null || shards < 2) {
+            throw new IllegalStateException("La coleccion no se puede dividir en lotes");
+        }
+
+        // El DOM de entrada no admite lecturas concurrentes (expansion diferida): los lotes se copian aqui
+        List<Document> batches = buildBatches(source, objects, shards);
+        List<Callable<Document>> tasks = new ArrayList<>();
+        for (Document batch : batches) {
+            tasks.add(() -> transformBatch(batch, templates, session));
+        }
+        List<Future<Document>> futures = getPool().invokeAll(tasks);
+        List<Document> results = new ArrayList<>();
+        for (Future<Document> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+        return merge(results);
+    }
+
+    private static Document transformBatch(Document batch, Templates templates, TransformSession session)
+            throws Exception {
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        thread.setContextClassLoader(session.getClassLoader());
+        try {
+            DOMResult result = new DOMResult();
+            Transformer transformer = templates.newTransformer();
+            session.attach(transformer);
+            transformer.transform(new DOMSource(batch, batch.getDocumentURI()), session.guard(result));
+            return (Document) result.getNode();
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * Objetos {@code o} hijos directos de {@code dc}, o null si la raiz no es dc o contiene otros elementos.
+     */
+    private static List<Element> collectObjects(Document source) {
+        if (!XmlUtils.isCollectionDocument(source)) {
+            return null;
+        }
+        List<Element> objects = new ArrayList<>();
+        for (Node child = source.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            String name = child.getLocalName() != null ? child.getLocalName() : child.getNodeName();
+            if (!"o".equals(name)) {
+                return null;
+            }
+            objects.add((Element) child);
+        }
+        return objects;
+    }
+
+    private static int shardCount(List<Element> objects) {
+        if (objects == null) {
+            return 0;
+        }
+        int byObjects = objects.size() / Math.max(1, readInt(MIN_OBJECTS_PROP, DEFAULT_MIN_OBJECTS_PER_SHARD));
+        return Math.min(threadCount(), byObjects);
+    }
+
+    private static List<Document> buildBatches(Document source, List<Element> objects, int shards)
+            throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        DocumentBuilder builder = dbf.newDocumentBuilder();
+        Element root = source.getDocumentElement();
+        List<Document> batches = new ArrayList<>();
+        int size = objects.size();
+        for (int shard = 0; shard < shards; shard++) {
+            int from = (int) ((long) size * shard / shards);
+            int to = (int) ((long) size * (shard + 1) / shards);
+            Document batch = builder.newDocument();
+            // Copia superficial de dc: conserva atributos y declaraciones de namespace
+            Element batchRoot = (Element) batch.importNode(root, false);
+            batch.appendChild(batchRoot);
+            for (int i = from; i < to; i++) {
+                batchRoot.appendChild(batch.importNode(objects.get(i), true));
+            }
+            batch.setDocumentURI(source.getDocumentURI());
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static Document merge(List<Document> results) {
+        Document merged = results.get(0);
+        Element mergedRoot = merged.getDocumentElement();
+        if (mergedRoot == null) {
+            throw new IllegalStateException("La transformacion por lotes no produjo elemento raiz");
+        }
+        for (int i = 1; i < results.size(); i++) {
+            Element root = results.get(i).getDocumentElement();
+            if (root == null || !root.getNodeName().equals(mergedRoot.getNodeName())) {
+                throw new IllegalStateException("Los lotes produjeron raices distintas ("
+                        + mergedRoot.getNodeName() + " / " + (root != null ? root.getNodeName() : "vacio")
+                        + "); la hoja no es apta para <?app-shard?>");
+            }
+            Node child = root.getFirstChild();
+            while (child != null) {
+                Node next = child.getNextSibling();
+                // adoptNode mueve el nodo sin copiarlo; si la implementacion no lo permite, se copia
+                Node moved = merged.adoptNode(child);
+                mergedRoot.appendChild(moved != null ? moved : merged.importNode(child, true));
+                child = next;
+            }
+        }
+        return merged;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount());
+        }
+        return pool;
+    }
+
+    private static int threadCount() {
+        return Math.max(1, readInt(THREADS_PROP, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static int readInt(String property, int defaultValue) {
+        String configured = System.getProperty(property);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Integer.parseInt(configured.trim());
+            } catch (NumberFormatException ignored) {
+                // valor invalido: se usa el valor por defecto
+            }
+        }
+        return defaultValue;
+    }
+}
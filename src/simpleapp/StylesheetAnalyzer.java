@@ -0,0 +1,263 @@
+package simpleapp;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Analisis unico de una hoja XSLT. Parsea la hoja una sola vez y, en un unico recorrido del DOM, recoge
+ * los prefijos y elementos del namespace de extension propio y las clases referenciadas con java:/xalan://.
+ * Si hay elementos de extension, el DOM se reescribe en memoria ({@link XsltExtensionPreprocessor#rewrite})
+ * y se entrega a Xalan como {@link DOMSource}, sin copias temporales en disco.
+ * El resultado se cachea por ruta y version ({@link FileStamp}) de la hoja, con expulsion LRU y el mismo
+ * limite de entradas que {@link TemplatesCache} ({@code -Dxslt.templates.cache.size}).
+ * <p>
+ * Una hoja puede declarar que su entrada o su salida debe ser valida segun el XSD de su raiz
+ * ({@link SchemaRegistry}: {@code dc}, {@code recordCollection}, {@code records}...) con la instruccion de
+ * procesamiento {@code <?app-validate input?>}, {@code <?app-validate output?>} o ambas
+ * ({@code <?app-validate input output?>}), antes del elemento raiz o como hijo directo de xsl:stylesheet.
+ * {@link XsltPipeline} la usa para insertar la validacion XSD en la cadena.
+ * Del mismo modo, {@code <?app-shard?>} indica que la hoja trata cada {@code o} de forma independiente y
+ * admite la transformacion por lotes en paralelo ({@link ShardedTransformer}); {@code <?app-shard no?>} la excluye.
+ */
+public final class StylesheetAnalyzer {
+    public static final String VALIDATION_PI = "app-validate";
+    public static final String SHARD_PI = "app-shard";
+    private static final int MAX_ENTRIES = Math.max(1, TemplatesCache.resolveMaxEntries());
+    private static final Map<Path, StylesheetAnalysis> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, StylesheetAnalysis> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private StylesheetAnalyzer() {
+    }
+
+    public static StylesheetAnalysis analyze(Path xsltPath) throws Exception {
+        Path key = xsltPath.toAbsolutePath().normalize();
+        return analyze(key, FileStamp.of(key));
+    }
+
+    public static StylesheetAnalysis analyze(Path xsltPath, FileStamp stamp) throws Exception {
+        Path key = xsltPath.toAbsolutePath().normalize();
+        synchronized (CACHE) {
+            StylesheetAnalysis cached = CACHE.get(key);
+            if (cached != null && cached.stamp.equals(stamp)) {
+                return cached;
+            }
+        }
+        StylesheetAnalysis analysis = buildAnalysis(key, stamp);
+        synchronized (CACHE) {
+            CACHE.put(key, analysis);
+        }
+        return analysis;
+    }
+
+    private static StylesheetAnalysis buildAnalysis(Path xsltPath, FileStamp stamp) throws Exception {
+        Document doc = parse(xsltPath);
+        Scan scan = new Scan();
+        Element root = doc.getDocumentElement();
+        if (root != null) {
+            walk(root, scan);
+        }
+        scanDeclarations(doc, scan);
+        if (root != null) {
+            scanDeclarations(root, scan);
+        }
+
+        XsltExtensionPreprocessor.PreprocessedXslt preprocessed = null;
+        List<String> classNames = new ArrayList<>(scan.classNames);
+        if (!scan.elements.isEmpty()) {
+            preprocessed = XsltExtensionPreprocessor.rewrite(xsltPath, doc, scan.elements,
+                    scan.extensionNodes, scan.namespaceDecls);
+            classNames.add(preprocessed.getBridgeClassName());
+        }
+        return new StylesheetAnalysis(xsltPath, stamp, doc, scan.prefixes, scan.elements, classNames, preprocessed,
+                scan.validateInput, scan.validateOutput, scan.shardable);
+    }
+
+    private static Document parse(Path xsltPath) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        dbf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        DocumentBuilder db = dbf.newDocumentBuilder();
+        try (InputStream in = Files.newInputStream(xsltPath)) {
+            Document doc = db.parse(in, xsltPath.toUri().toString());
+            doc.setDocumentURI(xsltPath.toUri().toString());
+            return doc;
+        }
+    }
+
+    private static void walk(Element element, Scan scan) {
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Node node = attrs.item(i);
+            if (!(node instanceof Attr attr) || !XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+                continue;
+            }
+            String value = attr.getValue();
+            if (XsltExtensionPreprocessor.CUSTOM_EXTENSION_NAMESPACE.equals(value)) {
+                scan.namespaceDecls.add(attr);
+                scan.prefixes.add(attr.getLocalName());
+                continue;
+            }
+            String className = TransformationClassResolver.extractClassName(value);
+            if (className != null && !className.isEmpty()) {
+                scan.classNames.add(className);
+            }
+        }
+        if (XsltExtensionPreprocessor.CUSTOM_EXTENSION_NAMESPACE.equals(element.getNamespaceURI())
+                && element.getLocalName() != null) {
+            scan.extensionNodes.add(element);
+            scan.elements.add(element.getLocalName());
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element childElement) {
+                walk(childElement, scan);
+            }
+        }
+    }
+
+    private static void scanDeclarations(Node parent, Scan scan) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (!(child instanceof ProcessingInstruction pi)) {
+                continue;
+            }
+            String data = pi.getData() != null ? pi.getData().trim() : "";
+            if (SHARD_PI.equals(pi.getTarget())) {
+                scan.shardable = !("no".equalsIgnoreCase(data) || "off".equalsIgnoreCase(data)
+                        || "false".equalsIgnoreCase(data));
+                continue;
+            }
+            if (!VALIDATION_PI.equals(pi.getTarget())) {
+                continue;
+            }
+            for (String token : data.split("\\s+")) {
+                if ("input".equals(token)) {
+                    scan.validateInput = true;
+                } else if ("output".equals(token)) {
+                    scan.validateOutput = true;
+                }
+            }
+        }
+    }
+
+    private static final class Scan {
+        private final Set<String> prefixes = new LinkedHashSet<>();
+        private final Set<String> elements = new LinkedHashSet<>();
+        private final Set<String> classNames = new LinkedHashSet<>();
+        private final List<Element> extensionNodes = new ArrayList<>();
+        private final List<Attr> namespaceDecls = new ArrayList<>();
+        private boolean validateInput;
+        private boolean validateOutput;
+        private Boolean shardable;
+    }
+
+    /**
+     * Resultado del analisis de una version concreta de la hoja.
+     */
+    public static final class StylesheetAnalysis {
+        private final Path xsltPath;
+        private final FileStamp stamp;
+        private final Document document;
+        private final Set<String> extensionPrefixes;
+        private final Set<String> extensionElements;
+        private final List<String> javaClassNames;
+        private final XsltExtensionPreprocessor.PreprocessedXslt preprocessed;
+        private final boolean inputValidationDeclared;
+        private final boolean outputValidationDeclared;
+        private final Boolean shardingDeclared;
+
+        private StylesheetAnalysis(Path xsltPath, FileStamp stamp, Document document, Set<String> extensionPrefixes,
+                                   Set<String> extensionElements, List<String> javaClassNames,
+                                   XsltExtensionPreprocessor.PreprocessedXslt preprocessed,
+                                   boolean inputValidationDeclared, boolean outputValidationDeclared,
+                                   Boolean shardingDeclared) {
+            this.xsltPath = xsltPath;
+            this.stamp = stamp;
+            this.document = document;
+            this.extensionPrefixes = Collections.unmodifiableSet(extensionPrefixes);
+            this.extensionElements = Collections.unmodifiableSet(extensionElements);
+            this.javaClassNames = Collections.unmodifiableList(javaClassNames);
+            this.preprocessed = preprocessed;
+            this.inputValidationDeclared = inputValidationDeclared;
+            this.outputValidationDeclared = outputValidationDeclared;
+            this.shardingDeclared = shardingDeclared;
+        }
+
+        /**
+         * Fuente para compilar la hoja: el DOM (reescrito si procede) con la URI de la hoja original,
+         * de modo que xsl:include/xsl:import y document() resuelven rutas relativas a su ubicacion real.
+         */
+        public Source newSource() {
+            return new DOMSource(document, xsltPath.toUri().toString());
+        }
+
+        public FileStamp getStamp() {
+            return stamp;
+        }
+
+        public Set<String> getExtensionPrefixes() {
+            return extensionPrefixes;
+        }
+
+        public Set<String> getExtensionElements() {
+            return extensionElements;
+        }
+
+        public List<String> getJavaClassNames() {
+            return javaClassNames;
+        }
+
+        public ClassLoader getBridgeClassLoader() {
+            return preprocessed != null ? preprocessed.getClassLoader() : null;
+        }
+
+        public Path getBridgeDir() {
+            return preprocessed != null ? preprocessed.getWorkDir() : null;
+        }
+
+        /**
+         * La hoja declara ({@code <?app-validate input?>}) que su entrada debe ser valida segun el XSD
+         * registrado para su raiz.
+         */
+        public boolean isInputValidationDeclared() {
+            return inputValidationDeclared;
+        }
+
+        /**
+         * La hoja declara ({@code <?app-validate output?>}) que su salida debe validarse contra el XSD
+         * registrado para su raiz.
+         */
+        public boolean isOutputValidationDeclared() {
+            return outputValidationDeclared;
+        }
+
+        /**
+         * TRUE si la hoja declara {@code <?app-shard?>}, FALSE con {@code <?app-shard no?>} y null si no declara nada.
+         */
+        public Boolean getShardingDeclared() {
+            return shardingDeclared;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package simpleapp;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache de hojas XSLT compiladas ({@link Templates}), reutilizables entre transformaciones.
+ * La clave es la ruta absoluta de la hoja junto con su fecha de modificacion, tamano y hash de contenido:
+ * si el fichero cambia, la entrada anterior se descarta y se recompila. Expulsion LRU por numero de entradas.
+ */
+public final class TemplatesCache {
+    private static final String MAX_ENTRIES_PROP = "xslt.templates.cache.size";
+    private static final int DEFAULT_MAX_ENTRIES = 32;
+    private static final TemplatesCache INSTANCE = new TemplatesCache(resolveMaxEntries());
+
+    private final int maxEntries;
+    private final Map<Path, Entry> entries;
+    // compilaciones en curso por hoja; cada clave se quita al terminar la suya
+    private final Map<Path, CompletableFuture<Void>> compiling = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private TemplatesCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                if (size() > TemplatesCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static TemplatesCache getInstance() {
+        return INSTANCE;
+    }
+
+    public Templates get(Path xsltPath, TransformerFactory factory) throws Exception {
+        Path key = xsltPath.toAbsolutePath().normalize();
+        return get(key, FileStamp.of(key), () -> new StreamSource(key.toFile()), factory);
+    }
+
+    /**
+     * Devuelve la hoja compilada para la ruta indicada, compilandola con la factoria recibida si no
+     * esta en cache o si el fichero ha cambiado desde la ultima compilacion.
+     * {@code source} proporciona la fuente a compilar (por ejemplo, el DOM ya reescrito de la hoja),
+     * mientras la clave sigue siendo la hoja original y su version.
+     */
+    public Templates get(Path xsltPath, FileStamp stamp, Supplier<Source> source, TransformerFactory factory)
+            throws Exception {
+        Path key = xsltPath.toAbsolutePath().normalize();
+        while (true) {
+            Templates cached = lookup(key, stamp);
+            if (cached != null) {
+                return cached;
+            }
+            // Un unico hilo compila cada hoja; el resto espera a que termine y vuelve a mirar la cache
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            CompletableFuture<Void> running = compiling.putIfAbsent(key, mine);
+            if (running != null) {
+                running.join();
+                continue;
+            }
+            try {
+                synchronized (entries) {
+                    Entry entry = entries.get(key);
+                    if (entry != null && entry.stamp.equals(stamp)) {
+                        hits.incrementAndGet();
+                        return entry.templates;
+                    }
+                }
+                misses.incrementAndGet();
+                Templates compiled = factory.newTemplates(source.get());
+                synchronized (entries) {
+                    entries.put(key, new Entry(stamp, compiled));
+                }
+                return compiled;
+            } finally {
+                compiling.remove(key, mine);
+                mine.complete(null);
+            }
+        }
+    }
+
+    private Templates lookup(Path key, FileStamp stamp) {
+        synchronized (entries) {
+            Entry cached = entries.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (cached.stamp.equals(stamp)) {
+                hits.incrementAndGet();
+                return cached.templates;
+            }
+            entries.remove(key);
+            invalidations.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void invalidate(Path xsltPath) {
+        if (xsltPath == null) return;
+        synchronized (entries) {
+            if (entries.remove(xsltPath.toAbsolutePath().normalize()) != null) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public Stats stats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new Stats(hits.get(), misses.get(), invalidations.get(), evictions.get(), size, maxEntries);
+    }
+
+    /**
+     * Limite de entradas configurado; lo comparte el cache de analisis de {@link StylesheetAnalyzer}.
+     */
+    static int resolveMaxEntries() {
+        String configured = System.getProperty(MAX_ENTRIES_PROP);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Integer.parseInt(configured.trim());
+            } catch (NumberFormatException ignored) {
+                // valor invalido: se usa el tamano por defecto
+            }
+        }
+        return DEFAULT_MAX_ENTRIES;
+    }
+
+    private static final class Entry {
+        private final FileStamp stamp;
+        private final Templates templates;
+
+        private Entry(FileStamp stamp, Templates templates) {
+            this.stamp = stamp;
+            this.templates = templates;
+        }
+    }
+
+    /**
+     * Contadores del cache para comprobar la reutilizacion de hojas compiladas.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long invalidations;
+        private final long evictions;
+        private final int size;
+        private final int maxEntries;
+
+        private Stats(long hits, long misses, long invalidations, long evictions, int size, int maxEntries) {
+            this.hits = hits;
+            this.misses = misses;
+            this.invalidations = invalidations;
+            this.evictions = evictions;
+            this.size = size;
+            this.maxEntries = maxEntries;
+        }
+
+        public long hits() {
+            return hits;
+        }
+
+        public long misses() {
+            return misses;
+        }
+
+        public long invalidations() {
+            return invalidations;
+        }
+
+        public long evictions() {
+            return evictions;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "Templates cache: hits=" + hits + ", misses=" + misses + ", invalidaciones=" + invalidations
+                    + ", expulsiones=" + evictions + ", entradas=" + size + "/" + maxEntries;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package simpleapp;
+
+import org.apache.xalan.extensions.XSLProcessorContext;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Estado de una transformacion (o de una cadena de ellas sobre la misma coleccion): ficheros convertidos por
+ * las extensiones, carpeta del puente, clases de extension resueltas y classloader con los puentes generados.
+ * Cada transformacion usa su propia sesion, de modo que varias pueden ejecutarse a la vez en la misma JVM
+ * sin compartir estado.
+ * <p>
+ * La sesion viaja como parametro del {@link Transformer} ({@link #PARAMETER}); los handlers de extension la
+ * obtienen con {@link #from(XSLProcessorContext)}. El classloader de contexto del hilo solo se cambia mientras
+ * dura la transformacion, porque Xalan localiza por el las clases puente.
+ * <p>
+ * {@link #cancel()} corta la transformacion en curso: la salida de cada paso comprueba la sesion
+ * ({@link #guard(Result)}), las extensiones la consultan antes de ejecutarse y los procesos externos
+ * registrados con {@link #registerProcess(Process)} se terminan; las conversiones de imagen encoladas que aun no
+ * han empezado ya no arrancan.
+ */
+public final class TransformSession {
+    public static final String PARAMETER = "{" + XsltExtensionPreprocessor.CUSTOM_EXTENSION_NAMESPACE + "}session";
+    static final String CANCELLED_MESSAGE = "Transformacion cancelada";
+
+    private final Set<Path> convertedFiles = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final Map<Path, Object> outputLocks = new ConcurrentHashMap<>();
+    private final List<ClassLoader> bridgeLoaders = new CopyOnWriteArrayList<>();
+    private final ClassLoader classLoader = new SessionClassLoader(bridgeLoaders);
+    private final TransformationClassResolver classResolver = new TransformationClassResolver();
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private final ImageConversionQueue conversions = new ImageConversionQueue(this);
+    private volatile Path bridgeDir;
+    private volatile boolean cancelled;
+
+    /**
+     * Sesion asociada al transformer que ejecuta la extension, o null si se invoca fuera de
+     * {@link XmlUtils}/{@link XsltPipeline} (por ejemplo, con un Transformer creado a mano).
+     */
+    public static TransformSession from(XSLProcessorContext context) {
+        if (context == null || context.getTransformer() == null) {
+            return null;
+        }
+        Object value = context.getTransformer().getParameter(PARAMETER);
+        return value instanceof TransformSession ? (TransformSession) value : null;
+    }
+
+    /**
+     * Asocia la sesion al transformer. Su ErrorListener se envuelve para que, una vez cancelada la sesion,
+     * cualquier error se propague: el listener por defecto de Xalan solo lo imprimiria y la transformacion
+     * terminaria con una salida incompleta.
+     */
+    public void attach(Transformer transformer) {
+        transformer.setParameter(PARAMETER, this);
+        ErrorListener delegate = transformer.getErrorListener();
+        if (!(delegate instanceof CancellingErrorListener)) {
+            transformer.setErrorListener(new CancellingErrorListener(delegate, this));
+        }
+    }
+
+    /**
+     * Incorpora una hoja a la sesion: su puente pasa a ser visible desde el classloader de la sesion
+     * y sus clases java:/xalan:// se cargan y registran.
+     */
+    public void registerStylesheet(StylesheetAnalyzer.StylesheetAnalysis analysis) throws ClassNotFoundException {
+        ClassLoader bridgeLoader = analysis.getBridgeClassLoader();
+        if (bridgeLoader != null && !bridgeLoaders.contains(bridgeLoader)) {
+            bridgeLoaders.add(bridgeLoader);
+        }
+        if (analysis.getBridgeDir() != null) {
+            bridgeDir = analysis.getBridgeDir();
+        }
+        classResolver.registerAll(analysis.getJavaClassNames(), classLoader);
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public TransformationClassResolver getClassResolver() {
+        return classResolver;
+    }
+
+    public Path getBridgeDir() {
+        return bridgeDir;
+    }
+
+    public void addConvertedFile(Path output) {
+        if (output == null) return;
+        convertedFiles.add(output.normalize());
+    }
+
+    public List<Path> getConvertedFiles() {
+        synchronized (convertedFiles) {
+            return new ArrayList<>(convertedFiles);
+        }
+    }
+
+    /**
+     * Conversiones de imagen encoladas por las extensiones; la transformacion espera a que terminen.
+     */
+    public ImageConversionQueue conversions() {
+        return conversions;
+    }
+
+    /**
+     * Cerrojo por fichero de salida: con lotes en paralelo, dos objetos pueden pedir la misma imagen convertida.
+     */
+    public Object outputLock(Path output) {
+        return outputLocks.computeIfAbsent(output.toAbsolutePath().normalize(), k -> new Object());
+    }
+
+    /**
+     * Marca la sesion como cancelada y termina los procesos externos registrados (con sus descendientes).
+     * Puede llamarse desde cualquier hilo.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Process process : processes) {
+            destroy(process);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() throws TransformerException {
+        if (cancelled) {
+            throw new TransformerException(CANCELLED_MESSAGE);
+        }
+    }
+
+    /**
+     * Result equivalente que falla en cuanto la sesion se cancela; se usa como salida de cada transformacion.
+     */
+    public Result guard(Result result) throws Exception {
+        return CancellationGuard.wrap(result, this);
+    }
+
+    /**
+     * Registra un proceso lanzado por una extension para poder terminarlo al cancelar.
+     * Si la sesion ya estaba cancelada, el proceso se termina en el acto.
+     */
+    public void registerProcess(Process process) {
+        processes.add(process);
+        if (cancelled) {
+            destroy(process);
+        }
+    }
+
+    public void unregisterProcess(Process process) {
+        processes.remove(process);
+    }
+
+    private static void destroy(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private static final class CancellingErrorListener implements ErrorListener {
+        private final ErrorListener delegate;
+        private final TransformSession session;
+
+        private CancellingErrorListener(ErrorListener delegate, TransformSession session) {
+            this.delegate = delegate;
+            this.session = session;
+        }
+
+        @Override
+        public void warning(TransformerException exception) throws TransformerException {
+            if (delegate != null) delegate.warning(exception);
+        }
+
+        @Override
+        public void error(TransformerException exception) throws TransformerException {
+            if (delegate != null) delegate.error(exception);
+            rethrowIfCancelled(exception);
+        }
+
+        @Override
+        public void fatalError(TransformerException exception) throws TransformerException {
+            if (delegate != null) delegate.fatalError(exception);
+            rethrowIfCancelled(exception);
+        }
+
+        private void rethrowIfCancelled(TransformerException exception) throws TransformerException {
+            if (session.isCancelled()) {
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Delega en el classloader de cada puente registrado. Los nombres de puente son unicos por conjunto
+     * de elementos, asi que no hay colisiones entre hojas.
+     */
+    private static final class SessionClassLoader extends ClassLoader {
+        private final List<ClassLoader> bridgeLoaders;
+
+        private SessionClassLoader(List<ClassLoader> bridgeLoaders) {
+            super(TransformSession.class.getClassLoader());
+            this.bridgeLoaders = bridgeLoaders;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            for (ClassLoader loader : bridgeLoaders) {
+                try {
+                    return loader.loadClass(name);
+                } catch (ClassNotFoundException ignored) {
+                    // se prueba con el siguiente puente
+                }
+            }
+            throw new ClassNotFoundException(name);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -21,18 +22,13 @@ import java.util.Set;
  * Punto único para resolver clases usadas en extensiones XSLT.
  * Detecta prefijos java:/xalan:// en la hoja de estilos, carga las clases con el classloader
  * de la aplicación y mantiene un registro ordenado para su inspección futura.
+ * Cada {@link TransformSession} tiene el suyo, de modo que transformaciones simultaneas no comparten registro.
  */
 public final class TransformationClassResolver {
-    private static final TransformationClassResolver INSTANCE = new TransformationClassResolver();
-
     private final Set<String> resolved = Collections.synchronizedSet(new LinkedHashSet<>());
     private final ClassLoader loader = TransformationClassResolver.class.getClassLoader();
 
-    private TransformationClassResolver() {
-    }
-
-    public static TransformationClassResolver getInstance() {
-        return INSTANCE;
+    TransformationClassResolver() {
     }
 
     public void reset() {
@@ -50,6 +46,14 @@ public final class TransformationClassResolver {
      * y las carga una única vez.
      */
     public void resolveFromXslt(Path xsltPath) throws Exception {
+        resolveFromXslt(xsltPath, null);
+    }
+
+    /**
+     * Igual que {@link #resolveFromXslt(Path)} pero cargando las clases con el classloader indicado
+     * (por ejemplo, el de la clase puente generada). Si es null se usa el de la aplicacion.
+     */
+    public void resolveFromXslt(Path xsltPath, ClassLoader classLoader) throws Exception {
         if (xsltPath == null || !Files.exists(xsltPath)) {
             return;
         }
@@ -61,22 +65,23 @@ public final class TransformationClassResolver {
             Document xsltDoc = db.parse(in);
             Element root = xsltDoc.getDocumentElement();
             if (root != null) {
-                walk(root);
+                walk(root, classLoader != null ? classLoader : loader);
             }
         }
     }
 
-    private void walk(Node node) throws ClassNotFoundException {
+    private void walk(Node node, ClassLoader classLoader) throws ClassNotFoundException {
         if (node == null) return;
-        inspectNamespaceAttributes(node.getAttributes());
+        inspectNamespaceAttributes(node.getAttributes(), classLoader);
         for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
             if (child.getNodeType() == Node.ELEMENT_NODE) {
-                walk(child);
+                walk(child, classLoader);
             }
         }
     }
 
-    private void inspectNamespaceAttributes(NamedNodeMap attrs) throws ClassNotFoundException {
+    private void inspectNamespaceAttributes(NamedNodeMap attrs, ClassLoader classLoader)
+            throws ClassNotFoundException {
         if (attrs == null) return;
         for (int i = 0; i < attrs.getLength(); i++) {
             Node attr = attrs.item(i);
@@ -88,17 +93,27 @@ public final class TransformationClassResolver {
             String value = attr.getNodeValue();
             String className = extractClassName(value);
             if (className != null && !className.isEmpty()) {
-                resolveAndRegister(className);
+                resolveAndRegister(className, classLoader);
             }
         }
     }
 
-    private void resolveAndRegister(String className) throws ClassNotFoundException {
-        Class<?> clazz = Class.forName(className, false, loader);
+    private void resolveAndRegister(String className, ClassLoader classLoader) throws ClassNotFoundException {
+        Class<?> clazz = Class.forName(className, false, classLoader);
         resolved.add(clazz.getName());
     }
 
-    private String extractClassName(String uri) {
+    /**
+     * Carga y registra clases ya detectadas (por ejemplo, por {@link StylesheetAnalyzer}) sin volver a parsear la hoja.
+     */
+    public void registerAll(Collection<String> classNames, ClassLoader classLoader) throws ClassNotFoundException {
+        if (classNames == null) return;
+        for (String className : classNames) {
+            resolveAndRegister(className, classLoader != null ? classLoader : loader);
+        }
+    }
+
+    public static String extractClassName(String uri) {
         if (uri == null) return null;
         String trimmed = uri.trim();
         if (trimmed.startsWith("java:")) {
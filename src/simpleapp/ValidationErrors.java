@@ -0,0 +1,150 @@
+package simpleapp;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * {@link ErrorHandler} que acumula los errores de validacion XSD con su linea y columna en lugar de cortar
+ * en el primero: validar una coleccion grande muestra de una vez todo lo que hay que corregir.
+ * La recogida se detiene al llegar a {@code -Dxslt.validation.max.errors} (por defecto 100) y ante un error
+ * fatal (XML mal formado), tras el cual el parser no puede seguir.
+ * <p>
+ * Cada instancia sirve para una sola validacion y no es segura entre hilos.
+ */
+public final class ValidationErrors implements ErrorHandler {
+    private static final String MAX_ERRORS_PROP = "xslt.validation.max.errors";
+    private static final int DEFAULT_MAX_ERRORS = 100;
+
+    private final String systemId;
+    private final int maxErrors;
+    private final List<String> errors = new ArrayList<>();
+    private boolean truncated;
+    private Function<SAXParseException, String> location;
+
+    public ValidationErrors(String systemId) {
+        this.systemId = systemId;
+        this.maxErrors = Math.max(1, Integer.getInteger(MAX_ERRORS_PROP, DEFAULT_MAX_ERRORS));
+    }
+
+    @Override
+    public void warning(SAXParseException exception) {
+        // los avisos del esquema no invalidan el documento
+    }
+
+    @Override
+    public void error(SAXParseException exception) throws SAXException {
+        errors.add(format(exception));
+        if (errors.size() >= maxErrors) {
+            truncated = true;
+            throw toException();
+        }
+    }
+
+    @Override
+    public void fatalError(SAXParseException exception) throws SAXException {
+        errors.add(format(exception));
+        throw toException();
+    }
+
+    /**
+     * Describe donde se produjo un error cuando la linea del parser no basta: el objeto afectado al validar un
+     * DOM, o la posicion real en el fichero al validar un fragmento. Si devuelve null se usa la del parser.
+     */
+    void setLocation(Function<SAXParseException, String> location) {
+        this.location = location;
+    }
+
+    /**
+     * Anade los errores de otra validacion (un lote de {@link ParallelCollectionValidator}) respetando el
+     * maximo. Devuelve false si ya se alcanzo y no caben mas.
+     */
+    boolean merge(ValidationErrors other) {
+        for (String error : other.errors) {
+            if (errors.size() >= maxErrors) {
+                truncated = true;
+                return false;
+            }
+            errors.add(error);
+        }
+        truncated |= other.truncated;
+        return !truncated;
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Lanza {@link InvalidDocumentException} si se recogio algun error.
+     */
+    public void throwIfAny() throws InvalidDocumentException {
+        if (hasErrors()) {
+            throw toException();
+        }
+    }
+
+    /**
+     * Excepcion a propagar cuando el parser o el validador cortan: si ya hay errores recogidos se informa
+     * de todos ellos; si no, se conserva la excepcion original.
+     */
+    Exception failure(Exception cause) {
+        if (cause instanceof InvalidDocumentException || !hasErrors()) {
+            return cause;
+        }
+        return toException();
+    }
+
+    private InvalidDocumentException toException() {
+        return new InvalidDocumentException(systemId, new ArrayList<>(errors), truncated);
+    }
+
+    private String format(SAXParseException exception) {
+        String where = location != null ? location.apply(exception) : null;
+        if (where == null && exception.getLineNumber() >= 0) {
+            where = "linea " + exception.getLineNumber() + ", columna " + exception.getColumnNumber();
+        }
+        // sin posicion (salida de una transformacion) se da solo el mensaje
+        return where != null ? where + ": " + exception.getMessage() : exception.getMessage();
+    }
+
+    /**
+     * Documento que no cumple el XSD de coleccion. El mensaje incluye todos los errores recogidos.
+     */
+    public static final class InvalidDocumentException extends SAXException {
+        private final List<String> errors;
+
+        private InvalidDocumentException(String systemId, List<String> errors, boolean truncated) {
+            super(buildMessage(systemId, errors, truncated));
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        private static String buildMessage(String systemId, List<String> errors, boolean truncated) {
+            StringBuilder message = new StringBuilder("Documento no valido");
+            if (systemId != null) {
+                message.append(" (").append(systemId).append(')');
+            }
+            message.append(": ").append(errors.size()).append(errors.size() == 1 ? " error" : " errores");
+            if (truncated) {
+                message.append(" (se detuvo la validacion al llegar al maximo)");
+            }
+            for (String error : errors) {
+                message.append(System.lineSeparator()).append("  ").append(error);
+            }
+            return message.toString();
+        }
+    }
+}
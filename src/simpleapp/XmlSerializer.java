@@ -0,0 +1,154 @@
+package simpleapp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Serializacion de DOM a texto para vista previa, detalle de nodos y exportacion.
+ * Escribe directamente en el destino ({@link OutputStream}, {@link Writer} o fichero) con un Transformer
+ * identidad; cada hilo reutiliza el suyo para cada combinacion de opciones, de modo que pulsar nodos del arbol
+ * o exportar no crea factoria ni Transformer en cada llamada. La salida es siempre UTF-8.
+ * <p>
+ * Los documentos cuya raiz es {@code html} se escriben como XML bien formado y sin declaracion (modo HTML):
+ * sin esto, el Transformer identidad de Xalan cambiaria al metodo de salida html ({@code <br>}, META anadido).
+ */
+public final class XmlSerializer {
+    private static final String EXPORT_INDENT_PROP = "xslt.export.indent";
+    private static final ThreadLocal<Map<Options, Transformer>> TRANSFORMERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<TransformerFactory> FACTORY = ThreadLocal.withInitial(TransformerFactory::newInstance);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private XmlSerializer() {
+    }
+
+    public static void serialize(Node node, OutputStream out, Options options) throws TransformerException {
+        serialize(node, new StreamResult(out), options);
+    }
+
+    public static void serialize(Node node, Writer out, Options options) throws TransformerException {
+        serialize(node, new StreamResult(out), options);
+    }
+
+    public static void serialize(Node node, Path target, Options options) throws Exception {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), BUFFER_SIZE)) {
+            serialize(node, out, options);
+        }
+    }
+
+    public static String toString(Node node, Options options) throws TransformerException {
+        if (node == null) return "";
+        StringWriter sw = new StringWriter();
+        serialize(node, sw, options);
+        return sw.toString();
+    }
+
+    private static void serialize(Node node, Result result, Options options) throws TransformerException {
+        Options effective = options.resolveFor(node);
+        Map<Options, Transformer> cache = TRANSFORMERS.get();
+        Transformer transformer = cache.remove(effective);
+        if (transformer == null) {
+            transformer = newTransformer(effective);
+        }
+        transformer.transform(new DOMSource(node), result);
+        // Solo vuelve a la cache si termino bien: tras un error el estado interno del Transformer no es fiable
+        cache.put(effective, transformer);
+    }
+
+    private static Transformer newTransformer(Options options) throws TransformerException {
+        Transformer t = FACTORY.get().newTransformer();
+        t.setOutputProperty(OutputKeys.METHOD, "xml");
+        t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        t.setOutputProperty(OutputKeys.INDENT, options.indent ? "yes" : "no");
+        if (options.indent) {
+            t.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        }
+        t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, Boolean.TRUE.equals(options.declaration) ? "no" : "yes");
+        return t;
+    }
+
+    private static boolean isHtmlDocument(Node node) {
+        if (!(node instanceof Document) || ((Document) node).getDocumentElement() == null) return false;
+        return "html".equalsIgnoreCase(((Document) node).getDocumentElement().getNodeName());
+    }
+
+    /**
+     * Opciones de salida. Por defecto la declaracion XML se decide segun el nodo: se escribe para documentos
+     * XML y se omite para nodos sueltos y para documentos HTML.
+     */
+    public static final class Options {
+        /** Sangrado de 2 espacios: vista previa y detalle de nodos. */
+        public static final Options PRETTY = new Options(true, null, null);
+        /** Sin sangrado ni espacios anadidos: exportacion. */
+        public static final Options COMPACT = new Options(false, null, null);
+
+        private final boolean indent;
+        private final Boolean declaration;
+        private final Boolean html;
+
+        private Options(boolean indent, Boolean declaration, Boolean html) {
+            this.indent = indent;
+            this.declaration = declaration;
+            this.html = html;
+        }
+
+        /**
+         * Opciones de exportacion: compacta salvo que se pida sangrado con -Dxslt.export.indent=true.
+         */
+        public static Options forExport() {
+            return Boolean.getBoolean(EXPORT_INDENT_PROP) ? PRETTY : COMPACT;
+        }
+
+        public Options withIndent(boolean indent) {
+            return new Options(indent, declaration, html);
+        }
+
+        public Options withDeclaration(boolean declaration) {
+            return new Options(indent, declaration, html);
+        }
+
+        /**
+         * Fuerza (o desactiva) el modo HTML en lugar de deducirlo de la raiz del documento.
+         */
+        public Options withHtml(boolean html) {
+            return new Options(indent, declaration, html);
+        }
+
+        private Options resolveFor(Node node) {
+            boolean htmlMode = html != null ? html : isHtmlDocument(node);
+            boolean writeDeclaration = declaration != null ? declaration : node instanceof Document && !htmlMode;
+            // el modo HTML solo decide la declaracion: XML y HTML comparten Transformer
+            return new Options(indent, writeDeclaration, null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Options)) return false;
+            Options other = (Options) o;
+            return indent == other.indent && Objects.equals(declaration, other.declaration)
+                    && Objects.equals(html, other.html);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(indent, declaration, html);
+        }
+    }
+}
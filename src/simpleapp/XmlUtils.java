@@ -1,15 +1,17 @@
 package simpleapp;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Node;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
 
-import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
@@ -18,10 +20,12 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -30,8 +34,10 @@ import java.util.stream.Stream;
 
 public class XmlUtils {
     private static final Path DEFAULT_COLLECTION_SCHEMA = Paths.get("samples", "collection.xsd");
-    private static Schema collectionSchema;
-    private static volatile Path lastBridgeDir;
+    private static final String STREAMING_THRESHOLD_PROP = "xslt.streaming.threshold.mb";
+    private static final long DEFAULT_STREAMING_THRESHOLD_MB = 64;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
 
     public static Document parse(Path xmlPath) throws Exception {
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -48,83 +54,282 @@ public class XmlUtils {
         return doc;
     }
 
+    /**
+     * Lee y valida una coleccion en una sola pasada: el XSD va enganchado al parser
+     * ({@link DocumentBuilderFactory#setSchema}), de modo que el documento no se recorre otra vez para validarlo.
+     * Los errores se acumulan con su linea y columna y se informan juntos ({@link ValidationErrors}).
+     * <p>
+     * El DOM se construye entero, sin la expansion diferida de Xerces: en un DOM diferido cada lectura puede
+     * crear nodos, y este documento lo leen a la vez el arbol de la interfaz y la transformacion en segundo
+     * plano. Ya expandido, leerlo no cambia su estado; nadie debe modificarlo mientras se comparte.
+     */
+    public static Document parseCollection(Path xmlPath) throws Exception {
+        return parseCollection(() -> Files.newInputStream(xmlPath), xmlPath);
+    }
+
+    /**
+     * Igual que {@link #parseCollection(Path)}, leyendo de {@code opener} (por ejemplo, una entrada de ZIP
+     * con {@link ZipCollection}); {@code location} da nombre a los errores y URI al documento.
+     */
+    static Document parseCollection(StreamOpener opener, Path location) throws Exception {
+        QName root = readRootQName(opener);
+        requireCollectionRoot(root != null ? root.getLocalPart() : null);
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        dbf.setIgnoringComments(true);
+        dbf.setCoalescing(true);
+        dbf.setSchema(getCollectionSchema());
+        dbf.setFeature(DEFER_NODE_EXPANSION, false);
+        DocumentBuilder db = dbf.newDocumentBuilder();
+        ValidationErrors errors = new ValidationErrors(location.getFileName().toString());
+        db.setErrorHandler(errors);
+        Document doc;
+        try (InputStream in = new BufferedInputStream(opener.open(), STREAM_BUFFER_SIZE)) {
+            doc = db.parse(in, location.toAbsolutePath().toUri().toString());
+        } catch (Exception e) {
+            throw errors.failure(e);
+        }
+        errors.throwIfAny();
+        try {
+            doc.setDocumentURI(location.toUri().toString());
+        } catch (Exception ignored) {
+            // igual que en parse: sin URI se sigue adelante
+        }
+        return doc;
+    }
+
     public static String toPrettyString(Document doc) throws Exception {
         return nodeToPrettyString(doc);
     }
 
     public static String nodeToPrettyString(Node node) throws Exception {
-        if (node == null) return "";
-        if (node instanceof Document && isHtmlDocument((Document) node)) {
-            return serializeHtmlAsXml((Document) node);
+        return XmlSerializer.toString(node, XmlSerializer.Options.PRETTY);
+    }
+
+    /**
+     * Igual que {@link #nodeToPrettyString(Node)}, pero escribe en el fichero indicado (UTF-8) sin construir
+     * el texto completo en memoria. Lo usa la vista previa paginada.
+     */
+    public static void writePrettyTo(Node node, Path target) throws Exception {
+        XmlSerializer.serialize(node, target, XmlSerializer.Options.PRETTY);
+    }
+
+    public static Document transform(Document source, Path xsltPath) throws Exception {
+        return transform(source, xsltPath, new TransformSession());
+    }
+
+    /**
+     * Transforma dentro de la sesion indicada: los ficheros convertidos y el puente usado quedan registrados en ella.
+     */
+    public static Document transform(Document source, Path xsltPath, TransformSession session) throws Exception {
+        return withStylesheet(xsltPath, session, (templates, analysis) -> {
+            if (ShardedTransformer.shouldShard(analysis, source)) {
+                return ShardedTransformer.transform(source, templates, session);
+            }
+            DOMResult result = new DOMResult();
+            Transformer transformer = templates.newTransformer();
+            session.attach(transformer);
+            transformer.transform(new DOMSource(source), session.guard(result));
+            return (Document) result.getNode();
+        });
+    }
+
+    /**
+     * Igual que {@link #transform(Document, Path, TransformSession)}, pero si hay un XSD registrado para la raiz
+     * del resultado ({@link SchemaRegistry}) lo valida mientras se construye, sin recorrer despues el DOM.
+     */
+    public static Document transformValidated(Document source, Path xsltPath, TransformSession session)
+            throws Exception {
+        return withStylesheet(xsltPath, session, (templates, analysis) -> {
+            if (ShardedTransformer.shouldShard(analysis, source)) {
+                // los lotes se fusionan al final: se valida el DOM ya unido
+                Document merged = ShardedTransformer.transform(source, templates, session);
+                validate(merged);
+                return merged;
+            }
+            DOMResult result = new DOMResult();
+            Transformer transformer = templates.newTransformer();
+            session.attach(transformer);
+            ValidationErrors errors = new ValidationErrors(xsltPath.getFileName().toString());
+            SchemaValidationFilter filter = SchemaValidationFilter.wrap(result, errors);
+            try {
+                transformer.transform(new DOMSource(source), session.guard(filter.asResult()));
+            } catch (Exception e) {
+                throw errors.failure(e);
+            }
+            errors.throwIfAny();
+            return (Document) result.getNode();
+        });
+    }
+
+    /**
+     * Transformacion en streaming: lee el XML de entrada directamente del fichero y escribe el resultado
+     * en {@code output}, sin construir un DOM de W3C ni de entrada ni de salida. Lo que se ahorra es el DOM
+     * de salida y la copia del fichero en un {@code Document}; Xalan sigue construyendo con la entrada su
+     * modelo interno (DTM) del documento entero, asi que la memoria sigue creciendo con el tamano del XML,
+     * aunque bastante menos que con un DOM.
+     */
+    public static void transformStreaming(Path sourceXml, Path xsltPath, Path output) throws Exception {
+        transformStreaming(sourceXml, xsltPath, output, new TransformSession());
+    }
+
+    public static void transformStreaming(Path sourceXml, Path xsltPath, Path output, TransformSession session)
+            throws Exception {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), STREAM_BUFFER_SIZE)) {
+            transformStreaming(sourceXml, xsltPath, out, session);
         }
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer t = tf.newTransformer();
-        t.setOutputProperty(OutputKeys.INDENT, "yes");
-        t.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        if (!(node instanceof Document)) {
-            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    }
+
+    public static void transformStreaming(Path sourceXml, Path xsltPath, OutputStream output,
+                                          TransformSession session) throws Exception {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(sourceXml), STREAM_BUFFER_SIZE)) {
+            StreamSource source = new StreamSource(in, sourceXml.toAbsolutePath().toUri().toString());
+            applyStylesheet(xsltPath, source, new StreamResult(output), session);
         }
-        StringWriter sw = new StringWriter();
-        t.transform(new DOMSource(node), new StreamResult(sw));
-        return sw.toString();
     }
 
-    private static boolean isHtmlDocument(Document doc) {
-        if (doc == null || doc.getDocumentElement() == null) return false;
-        String root = doc.getDocumentElement().getNodeName();
-        return root != null && "html".equalsIgnoreCase(root);
+    /**
+     * Igual que {@link #transformStreaming(Path, Path, Path, TransformSession)}, validando la salida contra el
+     * XSD registrado para su raiz mientras se escribe. Devuelve si se valido (false si la raiz no tiene esquema). Si la validacion falla, el
+     * fichero de salida queda incompleto o invalido y es responsabilidad de quien llama borrarlo.
+     */
+    public static boolean transformStreamingValidated(Path sourceXml, Path xsltPath, Path output,
+                                                      TransformSession session) throws Exception {
+        ValidationErrors errors = new ValidationErrors(output.getFileName().toString());
+        return withStylesheet(xsltPath, session, (templates, analysis) -> {
+            SchemaValidationFilter filter;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(sourceXml), STREAM_BUFFER_SIZE);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), STREAM_BUFFER_SIZE)) {
+                StreamSource source = new StreamSource(in, sourceXml.toAbsolutePath().toUri().toString());
+                // la salida pasa por un serializador identidad: debe respetar el xsl:output de la hoja
+                filter = SchemaValidationFilter.wrap(new StreamResult(out), templates.getOutputProperties(),
+                        errors);
+                Transformer transformer = templates.newTransformer();
+                session.attach(transformer);
+                transformer.transform(source, session.guard(filter.asResult()));
+            } catch (Exception e) {
+                throw errors.failure(e);
+            }
+            errors.throwIfAny();
+            return filter.isValidating();
+        });
     }
 
-    private static String serializeHtmlAsXml(Document doc) throws Exception {
-        DOMImplementation impl = doc.getImplementation();
-        DOMImplementationLS ls = impl != null ? (DOMImplementationLS) impl.getFeature("LS", "3.0") : null;
-        if (ls == null) {
-            throw new IllegalStateException("No se encontro serializer DOM LS para salida HTML");
-        }
-        LSSerializer serializer = ls.createLSSerializer();
-        if (serializer.getDomConfig().canSetParameter("format-pretty-print", true)) {
-            serializer.getDomConfig().setParameter("format-pretty-print", true);
+    /**
+     * Indica si un XML supera el umbral a partir del cual la interfaz trabaja en modo streaming
+     * (-Dxslt.streaming.threshold.mb, por defecto 64 MB; 0 desactiva el modo).
+     */
+    public static boolean shouldStream(Path xmlPath) throws IOException {
+        return shouldStream(Files.size(xmlPath));
+    }
+
+    public static boolean shouldStream(long sizeBytes) {
+        long threshold = getStreamingThresholdBytes();
+        return threshold > 0 && sizeBytes >= threshold;
+    }
+
+    public static long getStreamingThresholdBytes() {
+        String configured = System.getProperty(STREAMING_THRESHOLD_PROP);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return (long) (Double.parseDouble(configured.trim()) * 1024 * 1024);
+            } catch (NumberFormatException ignored) {
+                // valor invalido: se usa el umbral por defecto
+            }
         }
-        if (serializer.getDomConfig().canSetParameter("xml-declaration", false)) {
-            serializer.getDomConfig().setParameter("xml-declaration", false);
+        return DEFAULT_STREAMING_THRESHOLD_MB * 1024 * 1024;
+    }
+
+    /**
+     * Lee solo hasta el elemento raiz (StAX) y devuelve su local-name, sin cargar el documento.
+     */
+    public static String readRootName(Path xmlPath) throws Exception {
+        QName root = readRootQName(xmlPath);
+        return root != null ? root.getLocalPart() : null;
+    }
+
+    /**
+     * Como {@link #readRootName(Path)}, con el namespace de la raiz.
+     */
+    public static QName readRootQName(Path xmlPath) throws Exception {
+        return readRootQName(() -> Files.newInputStream(xmlPath));
+    }
+
+    private static QName readRootQName(StreamOpener opener) throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try (InputStream in = new BufferedInputStream(opener.open())) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return reader.getName();
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
         }
-        return serializer.writeToString(doc);
     }
 
-    public static Document transform(Document source, Path xsltPath) throws Exception {
+    private static void applyStylesheet(Path xsltPath, Source source, Result result, TransformSession session)
+            throws Exception {
+        withStylesheet(xsltPath, session, (templates, analysis) -> {
+            Transformer transformer = templates.newTransformer();
+            session.attach(transformer);
+            transformer.transform(source, session.guard(result));
+            return null;
+        });
+    }
+
+    /**
+     * Prepara la hoja (analisis, puente y clases de extension registrados en la sesion, Templates cacheado)
+     * y ejecuta {@code task} con el classloader de la sesion como classloader de contexto del hilo. Antes de
+     * volver espera a las conversiones de imagen que haya encolado la transformacion.
+     */
+    private static <T> T withStylesheet(Path xsltPath, TransformSession session, StylesheetTask<T> task)
+            throws Exception {
         PluginRegistryLoader.ensureDefaultLoaded();
-        XsltExtensionPreprocessor.PreprocessedXslt preprocessed =
-                XsltExtensionPreprocessor.preprocessIfNeeded(xsltPath);
-        Path effectiveXslt = preprocessed != null ? preprocessed.getXsltPath() : xsltPath;
-        lastBridgeDir = preprocessed != null ? preprocessed.getWorkDir() : null;
-
-        ClassLoader originalCl = Thread.currentThread().getContextClassLoader();
-        ClassLoader bridgeCl = preprocessed != null ? preprocessed.getClassLoader() : null;
-        if (bridgeCl != null) {
-            Thread.currentThread().setContextClassLoader(bridgeCl);
-        }
-
-        TransformerFactory tf = newXsltFactory(bridgeCl);
-        TransformationClassResolver resolver = TransformationClassResolver.getInstance();
-        resolver.reset();
-        resolver.resolveFromXslt(effectiveXslt);
-        try (InputStream in = Files.newInputStream(effectiveXslt)) {
-            Transformer transformer = tf.newTransformer(new StreamSource(in));
-            DOMResult result = new DOMResult();
-            transformer.transform(new DOMSource(source), result);
-            return (Document) result.getNode();
-        } finally {
-            if (bridgeCl != null) {
-                Thread.currentThread().setContextClassLoader(originalCl);
-            }
-            if (preprocessed != null) {
-                preprocessed.cleanup();
+        Path stylesheet = xsltPath.toAbsolutePath().normalize();
+        FileStamp stamp = FileStamp.of(stylesheet);
+        StylesheetAnalyzer.StylesheetAnalysis analysis = StylesheetAnalyzer.analyze(stylesheet, stamp);
+        session.registerStylesheet(analysis);
+
+        Thread thread = Thread.currentThread();
+        ClassLoader originalCl = thread.getContextClassLoader();
+        thread.setContextClassLoader(session.getClassLoader());
+        try {
+            TransformerFactory tf = newXsltFactory(session.getClassLoader());
+            Templates templates = TemplatesCache.getInstance().get(stylesheet, stamp, analysis::newSource, tf);
+            T value;
+            try {
+                value = task.run(templates, analysis);
+            } catch (Exception e) {
+                session.conversions().discard();
+                throw e;
             }
+            // las imagenes que las extensiones dejaron en cola deben existir cuando se usa el resultado
+            session.conversions().awaitAll();
+            return value;
+        } finally {
+            thread.setContextClassLoader(originalCl);
         }
     }
 
-    public static Path getLastBridgeDir() {
-        return lastBridgeDir;
+    /**
+     * Abre de nuevo el contenido de un XML: la raiz se lee antes de parsear, asi que se necesitan dos flujos.
+     */
+    interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private interface StylesheetTask<T> {
+        T run(Templates templates, StylesheetAnalyzer.StylesheetAnalysis analysis) throws Exception;
+    }
+
+    public static TemplatesCache.Stats getTemplatesCacheStats() {
+        return TemplatesCache.getInstance().stats();
     }
 
     public static boolean isCollectionDocument(Document doc) {
@@ -134,28 +339,123 @@ public class XmlUtils {
         return "dc".equals(name);
     }
 
+    /**
+     * Valida en streaming un XML de coleccion directamente desde el fichero, sin construir DOM del documento
+     * completo. Con varios hilos ({@link ParallelCollectionValidator}) los objetos se validan por lotes en paralelo.
+     */
+    public static void validateCollection(Path xmlPath) throws Exception {
+        requireCollectionRoot(readRootName(xmlPath));
+        if (ParallelCollectionValidator.isEnabled() && ParallelCollectionValidator.validateSplit(xmlPath)) {
+            return;
+        }
+        validateWith(getCollectionSchema(), xmlPath);
+    }
+
+    /**
+     * Valida un DOM ya construido. Para un fichero es preferible {@link #parseCollection(Path)}, que valida
+     * mientras lee.
+     */
     public static void validateCollection(Document doc) throws Exception {
         if (!isCollectionDocument(doc)) {
             throw new IllegalArgumentException("El documento no tiene raiz 'dc'");
         }
-        Validator validator = getCollectionSchema().newValidator();
-        validator.validate(new DOMSource(doc));
+        if (ParallelCollectionValidator.shouldSplit(doc)) {
+            ParallelCollectionValidator.validate(doc);
+            return;
+        }
+        validateWith(getCollectionSchema(), doc);
+    }
+
+    /**
+     * Valida un fichero contra el XSD registrado para su raiz ({@link SchemaRegistry}). Las colecciones dc
+     * siguen el camino de {@link #validateCollection(Path)}. Devuelve false si la raiz no tiene esquema.
+     */
+    public static boolean validate(Path xmlPath) throws Exception {
+        QName root = readRootQName(xmlPath);
+        if (root == null) {
+            return false;
+        }
+        Schema schema = SchemaRegistry.getInstance().find(root.getNamespaceURI(), root.getLocalPart());
+        if (schema == null) {
+            return false;
+        }
+        if ("dc".equals(root.getLocalPart())) {
+            validateCollection(xmlPath);
+        } else {
+            validateWith(schema, xmlPath);
+        }
+        return true;
+    }
+
+    /**
+     * Igual que {@link #validate(Path)} para un DOM ya construido.
+     */
+    public static boolean validate(Document doc) throws Exception {
+        Schema schema = SchemaRegistry.getInstance().find(doc);
+        if (schema == null) {
+            return false;
+        }
+        if (isCollectionDocument(doc)) {
+            validateCollection(doc);
+        } else {
+            validateWith(schema, doc);
+        }
+        return true;
+    }
+
+    /**
+     * Indica si hay un XSD registrado para la raiz del documento.
+     */
+    public static boolean hasSchema(Document doc) throws Exception {
+        if (doc == null || doc.getDocumentElement() == null) return false;
+        Node root = doc.getDocumentElement();
+        return SchemaRegistry.getInstance().hasSchema(root.getNamespaceURI(),
+                root.getLocalName() != null ? root.getLocalName() : root.getNodeName());
+    }
+
+    private static void validateWith(Schema schema, Path xmlPath) throws Exception {
+        ValidationErrors errors = new ValidationErrors(xmlPath.getFileName().toString());
+        Validator validator = SchemaRegistry.getInstance().borrowValidator(schema);
+        validator.setErrorHandler(errors);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(xmlPath), STREAM_BUFFER_SIZE)) {
+            validator.validate(new StreamSource(in, xmlPath.toAbsolutePath().toUri().toString()));
+        } catch (Exception e) {
+            throw errors.failure(e);
+        } finally {
+            SchemaRegistry.getInstance().releaseValidator(schema, validator);
+        }
+        errors.throwIfAny();
+    }
+
+    private static void validateWith(Schema schema, Document doc) throws Exception {
+        ValidationErrors errors = new ValidationErrors(null);
+        Validator validator = SchemaRegistry.getInstance().borrowValidator(schema);
+        validator.setErrorHandler(errors);
+        try {
+            validator.validate(new DOMSource(doc));
+        } catch (Exception e) {
+            throw errors.failure(e);
+        } finally {
+            SchemaRegistry.getInstance().releaseValidator(schema, validator);
+        }
+        errors.throwIfAny();
+    }
+
+    private static void requireCollectionRoot(String rootName) {
+        if (!"dc".equals(rootName)) {
+            throw new IllegalArgumentException("El documento no tiene raiz 'dc'");
+        }
     }
 
     public static Path getDefaultCollectionSchemaPath() {
         return DEFAULT_COLLECTION_SCHEMA;
     }
 
-    private static synchronized Schema getCollectionSchema() throws Exception {
-        if (collectionSchema == null) {
-            if (!Files.exists(DEFAULT_COLLECTION_SCHEMA)) {
-                throw new IllegalStateException("No se encontro el esquema en " +
-                        DEFAULT_COLLECTION_SCHEMA.toAbsolutePath());
-            }
-            SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            collectionSchema = sf.newSchema(DEFAULT_COLLECTION_SCHEMA.toFile());
-        }
-        return collectionSchema;
+    /**
+     * Esquema de coleccion {@code dc}, compilado y cacheado por {@link SchemaRegistry}.
+     */
+    static Schema getCollectionSchema() throws Exception {
+        return SchemaRegistry.getInstance().require(null, "dc");
     }
 
     public static void deleteDirectoryRecursively(Path dir) throws Exception {
@@ -172,7 +472,7 @@ public class XmlUtils {
         return newXsltFactory(XmlUtils.class.getClassLoader());
     }
 
-    private static TransformerFactory newXsltFactory(ClassLoader loader) {
+    static TransformerFactory newXsltFactory(ClassLoader loader) {
         ClassLoader effective = loader != null ? loader : XmlUtils.class.getClassLoader();
         try {
             return TransformerFactory.newInstance(
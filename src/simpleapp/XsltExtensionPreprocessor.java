@@ -3,21 +3,11 @@ package simpleapp;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 
 import javax.tools.JavaCompiler;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -25,106 +15,134 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Preprocesa hojas XSLT que usen un namespace propio para elementos de extension.
- * Genera una clase puente compatible con Xalan y una copia de la XSLT con el namespace esperado.
+ * Genera una clase puente compatible con Xalan y reescribe en memoria el DOM de la XSLT con el namespace esperado.
+ * Las clases puente se cachean por conjunto de elementos (nombre de clase con hash del conjunto) y,
+ * salvo que se pida el modo javac, se generan directamente en memoria sin compilador.
  */
 public final class XsltExtensionPreprocessor {
     public static final String CUSTOM_EXTENSION_NAMESPACE = "http://junhua.com/extensions";
     private static final String GENERATED_PACKAGE = "simpleapp.generated";
     private static final String GENERATED_SIMPLE_CLASS = "AppExtensionBridge";
-    private static final String GENERATED_FQN = GENERATED_PACKAGE + "." + GENERATED_SIMPLE_CLASS;
     private static final String DEBUG_KEEP_DIR_PROP = "xslt.bridge.debug";
+    private static final String BRIDGE_MODE_PROP = "xslt.bridge.mode";
+    private static final String BRIDGE_MODE_JAVAC = "javac";
     private static final String BRIDGE_DIR_PROP = "xslt.bridge.dir";
     private static final Path DEFAULT_BRIDGE_DIR = Paths.get("out", "xslt-bridge");
     private static final String BRIDGE_CLASSES_DIR_PROP = "xslt.bridge.classes.dir";
     private static final Path DEFAULT_CLASSES_DIR = Paths.get("out");
+    private static final Map<String, Bridge> BRIDGES = new ConcurrentHashMap<>();
 
     private XsltExtensionPreprocessor() {
     }
 
-    public static PreprocessedXslt preprocessIfNeeded(Path xsltPath) throws Exception {
-        if (xsltPath == null || !Files.exists(xsltPath)) {
-            return null;
+    /**
+     * Reescribe en memoria la hoja ya analizada: asigna la clase puente del conjunto de elementos y mueve
+     * las declaraciones y los elementos de extension al namespace Java que espera Xalan.
+     *
+     * @param xsltPath       hoja original (solo para nombrar la copia de depuracion)
+     * @param doc            DOM de la hoja, que se modifica en el sitio
+     * @param elements       local-names de los elementos de extension usados
+     * @param extensionNodes elementos en el namespace propio
+     * @param namespaceDecls atributos xmlns:* que declaran el namespace propio
+     */
+    public static PreprocessedXslt rewrite(Path xsltPath, Document doc, Set<String> elements,
+                                           List<Element> extensionNodes, List<Attr> namespaceDecls)
+            throws Exception {
+        checkHandlers(elements);
+        Path workDir = resolveBridgeDir();
+        Bridge bridge = obtainBridge(elements, workDir);
+        String newNs = buildXalanNamespace(bridge.className);
+        for (Attr decl : namespaceDecls) {
+            decl.setValue(newNs);
         }
-        Document doc = parse(xsltPath);
-        Element root = doc.getDocumentElement();
-        if (root == null) {
-            return null;
+        for (Element node : extensionNodes) {
+            doc.renameNode(node, newNs, node.getNodeName());
         }
-
-        String prefix = findExtensionPrefix(root, CUSTOM_EXTENSION_NAMESPACE);
-        if (prefix == null) {
-            return null;
+        Path reportedDir = useJavac() ? workDir : null;
+        if (Boolean.getBoolean(DEBUG_KEEP_DIR_PROP)) {
+            writeDebugCopy(doc, workDir.resolve(deriveXsltName(xsltPath)));
+            reportedDir = workDir;
         }
+        return new PreprocessedXslt(bridge.className, bridge.loader, reportedDir);
+    }
 
-        Set<String> elements = collectExtensionElements(root, prefix);
-        if (elements.isEmpty()) {
-            return null;
+    /**
+     * Devuelve la clase puente para el conjunto de elementos indicado. El nombre de la clase incluye un hash
+     * del conjunto, de modo que cada combinacion tiene su propia clase y se genera una sola vez:
+     * las llamadas siguientes reutilizan la clase y el classloader ya cargados, sin escribir en disco.
+     * Por defecto el bytecode se genera en memoria; con -Dxslt.bridge.mode=javac se escribe y compila el fuente.
+     */
+    private static synchronized Bridge obtainBridge(Set<String> elements, Path workDir) throws Exception {
+        String key = hashElements(elements);
+        Bridge cached = BRIDGES.get(key);
+        if (cached != null) {
+            return cached;
         }
-        checkHandlers(elements);
-
-        Path workDir = resolveBridgeDir();
-        Files.createDirectories(workDir);
-        Path rewrittenXslt = workDir.resolve(deriveXsltName(xsltPath));
-        rewriteNamespace(doc, prefix, rewrittenXslt);
-
-        Path javaFile = writeBridgeSource(elements, workDir);
-        Path classesDir = resolveBridgeClassesDir();
-        compileBridge(javaFile, classesDir);
-        ClassLoader loader = buildClassLoader(classesDir);
+        String simpleName = GENERATED_SIMPLE_CLASS + "_" + key;
+        String className = GENERATED_PACKAGE + "." + simpleName;
+        Bridge bridge = useJavac()
+                ? compileBridgeWithJavac(elements, simpleName, className, workDir)
+                : defineBridgeInMemory(elements, className);
+        BRIDGES.put(key, bridge);
+        return bridge;
+    }
 
-        return new PreprocessedXslt(rewrittenXslt, loader, workDir, true);
+    private static boolean useJavac() {
+        String mode = System.getProperty(BRIDGE_MODE_PROP);
+        return mode != null && BRIDGE_MODE_JAVAC.equalsIgnoreCase(mode.trim());
     }
 
-    private static Document parse(Path xsltPath) throws Exception {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-        dbf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        try (InputStream in = Files.newInputStream(xsltPath)) {
-            return db.parse(in);
+    private static Bridge defineBridgeInMemory(Set<String> elements, String className) throws Exception {
+        byte[] bytecode = BridgeClassGenerator.generate(className, elements);
+        ClassLoader loader = new BridgeClassGenerator.InMemoryClassLoader(Map.of(className, bytecode),
+                XsltExtensionPreprocessor.class.getClassLoader());
+        if (!isLoadable(className, loader)) {
+            throw new IllegalStateException("No se pudo definir la clase puente generada " + className);
         }
+        return new Bridge(className, loader);
     }
 
-    private static String findExtensionPrefix(Element root, String targetNamespace) {
-        if (root == null || targetNamespace == null) return null;
-        for (int i = 0; i < root.getAttributes().getLength(); i++) {
-            Node attr = root.getAttributes().item(i);
-            if (!(attr instanceof Attr)) continue;
-            String name = attr.getNodeName();
-            String value = attr.getNodeValue();
-            if (name != null && name.startsWith("xmlns:") && targetNamespace.equals(value)) {
-                return name.substring("xmlns:".length());
+    private static Bridge compileBridgeWithJavac(Set<String> elements, String simpleName, String className,
+                                                 Path workDir) throws Exception {
+        Path classesDir = resolveBridgeClassesDir();
+        ClassLoader loader = buildClassLoader(classesDir);
+        if (!isLoadable(className, loader)) {
+            Files.createDirectories(workDir);
+            Path javaFile = writeBridgeSource(elements, simpleName, workDir);
+            compileBridge(javaFile, classesDir);
+            loader = buildClassLoader(classesDir);
+            if (!isLoadable(className, loader)) {
+                throw new IllegalStateException("No se pudo cargar la clase puente generada " + className);
             }
         }
-        return null;
+        return new Bridge(className, loader);
     }
 
-    private static Set<String> collectExtensionElements(Node node, String prefix) {
-        Set<String> names = new LinkedHashSet<>();
-        walk(node, prefix, names);
-        return names;
+    private static String hashElements(Set<String> elements) throws Exception {
+        List<String> sorted = new ArrayList<>(elements);
+        Collections.sort(sorted);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hash = digest.digest(String.join("\n", sorted).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash, 0, 8);
     }
 
-    private static void walk(Node node, String prefix, Set<String> names) {
-        if (node == null) return;
-        if (node.getNodeType() == Node.ELEMENT_NODE) {
-            String p = node.getPrefix();
-            String local = node.getLocalName();
-            if (prefix.equals(p) && local != null) {
-                names.add(local);
-            }
-        }
-        Node child = node.getFirstChild();
-        while (child != null) {
-            walk(child, prefix, names);
-            child = child.getNextSibling();
+    private static boolean isLoadable(String className, ClassLoader loader) {
+        try {
+            Class.forName(className, false, loader);
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
         }
     }
 
@@ -140,60 +158,18 @@ public final class XsltExtensionPreprocessor {
         }
     }
 
-    private static void rewriteNamespace(Document doc, String prefix, Path output) throws Exception {
-        Element root = doc.getDocumentElement();
-        boolean replaced = false;
-        for (int i = 0; i < root.getAttributes().getLength(); i++) {
-            Node attr = root.getAttributes().item(i);
-            if (!(attr instanceof Attr)) continue;
-            String name = attr.getNodeName();
-            if (name != null && name.equals("xmlns:" + prefix)) {
-                attr.setNodeValue(buildXalanNamespace(GENERATED_FQN));
-                replaced = true;
-                break;
-            }
-        }
-        if (!replaced) {
-            throw new IllegalStateException("No se pudo reemplazar el namespace del prefijo " + prefix);
-        }
-        // Actualiza los nodos de extension para que queden en el nuevo namespace
-        String newNs = buildXalanNamespace(GENERATED_FQN);
-        updateExtensionElementNamespaces(doc, prefix, newNs);
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer t = tf.newTransformer();
-        t.setOutputProperty(OutputKeys.INDENT, "yes");
-        t.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        try (var out = Files.newOutputStream(output)) {
-            t.transform(new DOMSource(doc), new StreamResult(out));
-        }
+    /**
+     * Vuelca la hoja reescrita a disco solo para depuracion (-Dxslt.bridge.debug=true).
+     */
+    private static void writeDebugCopy(Document doc, Path output) throws Exception {
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        XmlSerializer.serialize(doc, output, XmlSerializer.Options.PRETTY);
     }
 
     private static String buildXalanNamespace(String className) {
         return "http://xml.apache.org/xalan/java/" + className;
     }
 
-    private static void updateExtensionElementNamespaces(Document doc, String prefix, String newNs) {
-        if (doc == null || prefix == null || newNs == null) return;
-        Element root = doc.getDocumentElement();
-        if (root == null) return;
-        renameExtensionNodes(doc, root, prefix, newNs);
-    }
-
-    private static void renameExtensionNodes(Document doc, Node node, String prefix, String newNs) {
-        if (node.getNodeType() == Node.ELEMENT_NODE) {
-            String p = node.getPrefix();
-            String ns = node.getNamespaceURI();
-            if (prefix.equals(p) && CUSTOM_EXTENSION_NAMESPACE.equals(ns)) {
-                doc.renameNode(node, newNs, node.getNodeName());
-            }
-        }
-        Node child = node.getFirstChild();
-        while (child != null) {
-            renameExtensionNodes(doc, child, prefix, newNs);
-            child = child.getNextSibling();
-        }
-    }
-
     private static String deriveXsltName(Path original) {
         String name = original.getFileName().toString();
         int dot = name.lastIndexOf('.');
@@ -202,35 +178,28 @@ public final class XsltExtensionPreprocessor {
         return base + "-xalan" + ext;
     }
 
-    private static Path writeBridgeSource(Set<String> elements, Path workDir) throws IOException {
+    private static Path writeBridgeSource(Set<String> elements, String simpleName, Path workDir)
+            throws IOException {
         Path pkgDir = workDir.resolve(GENERATED_PACKAGE.replace('.', '/'));
         Files.createDirectories(pkgDir);
-        Path javaFile = pkgDir.resolve(GENERATED_SIMPLE_CLASS + ".java");
-        Files.writeString(javaFile, buildBridgeSource(elements), StandardCharsets.UTF_8);
+        Path javaFile = pkgDir.resolve(simpleName + ".java");
+        Files.writeString(javaFile, buildBridgeSource(elements, simpleName), StandardCharsets.UTF_8);
         return javaFile;
     }
 
-    private static String buildBridgeSource(Set<String> elements) {
+    private static String buildBridgeSource(Set<String> elements, String simpleName) {
         StringBuilder sb = new StringBuilder();
         sb.append("package ").append(GENERATED_PACKAGE).append(";\n\n");
         sb.append("import org.apache.xalan.extensions.XSLProcessorContext;\n");
         sb.append("import org.apache.xalan.templates.ElemExtensionCall;\n");
         sb.append("import javax.xml.transform.TransformerException;\n");
-        sb.append("import simpleapp.ExtensionComponents;\n");
-        sb.append("import simpleapp.ExtensionElementHandler;\n\n");
-        sb.append("public final class ").append(GENERATED_SIMPLE_CLASS).append(" {\n");
-        sb.append("  private ").append(GENERATED_SIMPLE_CLASS).append("() {}\n\n");
-        sb.append("  private static ExtensionElementHandler handler(String name) throws TransformerException {\n");
-        sb.append("    ExtensionElementHandler h = ExtensionComponents.get(name);\n");
-        sb.append("    if (h == null) {\n");
-        sb.append("      throw new TransformerException(\"No hay handler para \" + name);\n");
-        sb.append("    }\n");
-        sb.append("    return h;\n");
-        sb.append("  }\n\n");
+        sb.append("import simpleapp.ExtensionComponents;\n\n");
+        sb.append("public final class ").append(simpleName).append(" {\n");
+        sb.append("  private ").append(simpleName).append("() {}\n\n");
         for (String name : elements) {
             sb.append("  public static void ").append(name)
               .append("(XSLProcessorContext ctx, ElemExtensionCall elem) throws TransformerException {\n");
-            sb.append("    handler(\"").append(name).append("\").invoke(ctx, elem);\n");
+            sb.append("    ExtensionComponents.dispatch(\"").append(name).append("\", ctx, elem);\n");
             sb.append("  }\n\n");
         }
         sb.append("}\n");
@@ -251,12 +220,13 @@ public final class XsltExtensionPreprocessor {
         try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
             Iterable<? extends javax.tools.JavaFileObject> units =
                     fileManager.getJavaFileObjects(javaFile.toFile());
-            try (var err = new PrintWriter(System.err)) {
-                JavaCompiler.CompilationTask task = compiler.getTask(err, fileManager, null, options, null, units);
-                Boolean ok = task.call();
-                if (ok == null || !ok) {
-                    throw new IllegalStateException("Fallo al compilar la clase puente generada");
-                }
+            // No se cierra el PrintWriter: cerrarlo cerraria tambien System.err
+            PrintWriter err = new PrintWriter(System.err, true);
+            JavaCompiler.CompilationTask task = compiler.getTask(err, fileManager, null, options, null, units);
+            Boolean ok = task.call();
+            err.flush();
+            if (ok == null || !ok) {
+                throw new IllegalStateException("Fallo al compilar la clase puente generada");
             }
         }
     }
@@ -283,40 +253,39 @@ public final class XsltExtensionPreprocessor {
     }
 
 
+    private static final class Bridge {
+        private final String className;
+        private final ClassLoader loader;
+
+        private Bridge(String className, ClassLoader loader) {
+            this.className = className;
+            this.loader = loader;
+        }
+    }
+
     /**
-     * Resultado del preprocesado: xslt reescrita y classloader con la clase puente generada.
+     * Resultado del preprocesado: clase puente generada y su classloader.
+     * {@code workDir} solo se informa cuando se han escrito ficheros (modo javac o depuracion).
      */
     public static final class PreprocessedXslt {
-        private final Path xsltPath;
+        private final String bridgeClassName;
         private final ClassLoader classLoader;
         private final Path workDir;
-        private final boolean keepFiles;
 
-        public PreprocessedXslt(Path xsltPath, ClassLoader classLoader, Path workDir, boolean keepFiles) {
-            this.xsltPath = xsltPath;
+        public PreprocessedXslt(String bridgeClassName, ClassLoader classLoader, Path workDir) {
+            this.bridgeClassName = bridgeClassName;
             this.classLoader = classLoader;
             this.workDir = workDir;
-            this.keepFiles = keepFiles;
         }
 
-        public Path getXsltPath() {
-            return xsltPath;
+        public String getBridgeClassName() {
+            return bridgeClassName;
         }
 
         public ClassLoader getClassLoader() {
             return classLoader;
         }
 
-        public void cleanup() {
-            if (keepFiles || Boolean.getBoolean(DEBUG_KEEP_DIR_PROP)) {
-                return;
-            }
-            try {
-                XmlUtils.deleteDirectoryRecursively(workDir);
-            } catch (Exception ignored) {
-            }
-        }
-
         public Path getWorkDir() {
             return workDir;
         }
@@ -2,35 +2,23 @@ package simpleapp;
 
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xml.dtm.DTM;
 import org.apache.xpath.XPath;
 import org.apache.xpath.XPathContext;
 import org.apache.xpath.objects.XObject;
 import org.apache.xml.utils.PrefixResolver;
 
 import javax.xml.transform.TransformerException;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Funciones auxiliares expuestas a las hojas XSLT mediante namespaces de extension.
  * Con JAXP/Xalan pueden invocarse con xmlns:app="java:simpleapp.XsltExtensions".
  */
 public final class XsltExtensions {
-    private static final Set<Path> convertedFiles = Collections.synchronizedSet(new LinkedHashSet<>());
 
     private XsltExtensions() {
     }
@@ -66,6 +54,8 @@ public final class XsltExtensions {
     /**
      * Extension element handler para <app:changeImageFormat/>.
      * Convierte la imagen indicada a otro formato mediante ImageMagick y escribe en la salida el path del nuevo archivo.
+     * La conversion la hace {@link ImageConversionService}: dentro de una sesion la ruta se escribe en el acto
+     * y la conversion se encola ({@link ImageConversionQueue}).
      *
      * Atributos soportados:
      * - format (obligatorio): formato destino (png, jpg, webp segun disponibilidad de ImageMagick).
@@ -102,24 +92,21 @@ public final class XsltExtensions {
             System.out.println("[xslt.ext] baseDir=" + baseDir);
             System.out.println("[xslt.ext] input=" + input);
         }
-        if (!Files.exists(input)) {
-            throw new TransformerException("No se encontro el fichero de imagen: " + input);
-        }
-
         Path output = resolveOutputPath(readAttribute("output", context, element),
                 readAttribute("suffix", context, element), input, format, baseDir);
         if (debug) {
             System.out.println("[xslt.ext] output=" + output);
         }
 
-        convertImageWithMagick(input, output, format, debug);
-        if (debug) {
+        // La ruta ya se conoce: se emite ahora y la conversion queda en la cola de la sesion
+        TransformSession session = TransformSession.from(context);
+        ImageConversionService.getInstance().submit(session, input, output, format);
+        if (debug && (session == null || !ImageConversionQueue.isAsyncEnabled())) {
             boolean exists = Files.exists(output);
             long size = 0L;
             try { size = exists ? Files.size(output) : 0L; } catch (Exception ignored) {}
             System.out.println("[xslt.ext] converted exists=" + exists + " size=" + size);
         }
-        registerConvertedFile(output);
 
         try {
             String emitted = emitPath(output, baseDir);
@@ -134,144 +121,6 @@ public final class XsltExtensions {
         }
     }
 
-    private static void convertImageWithMagick(Path input, Path output, String format, boolean debug)
-            throws TransformerException {
-        try {
-            Path parent = output.getParent();
-            if (parent != null) {
-                Files.createDirectories(parent);
-            }
-        } catch (Exception e) {
-            throw new TransformerException("No se pudo preparar la carpeta destino para la imagen", e);
-        }
-
-        List<String[]> commands = buildMagickCommands(input, output);
-        TransformerException lastError = null;
-        String lastLog = null;
-        for (String[] command : commands) {
-            try {
-                if (debug) {
-                    System.out.println("[xslt.ext] trying command: " + String.join(" ", command));
-                }
-                lastLog = runMagickCommand(command, format);
-                if (debug && lastLog != null && !lastLog.isBlank()) {
-                    System.out.println("[xslt.ext] magick output: " + lastLog.trim());
-                }
-                return;
-            } catch (TransformerException e) {
-                lastError = e;
-                if (debug) {
-                    System.out.println("[xslt.ext] command failed: " + e.getMessage());
-                    if (lastLog != null && !lastLog.isBlank()) {
-                        System.out.println("[xslt.ext] magick output: " + lastLog.trim());
-                    }
-                }
-            }
-        }
-        if (lastError != null) {
-            // Fallback: intento con ImageIO (sin ImageMagick)
-            try {
-                convertWithImageIO(input, output, format);
-                return;
-            } catch (Exception e) {
-                throw lastError;
-            }
-        }
-        throw new TransformerException("No se encontro un comando valido de ImageMagick para convertir la imagen.");
-    }
-
-    private static List<String[]> buildMagickCommands(Path input, Path output) {
-        List<String[]> commands = new ArrayList<>();
-        String magickExe = resolveMagickExecutable();
-        commands.add(new String[]{magickExe, input.toString(), output.toString()});
-        if (!isWindows()) {
-            commands.add(new String[]{"convert", input.toString(), output.toString()});
-        }
-        return commands;
-    }
-
-    private static String runMagickCommand(String[] command, String format) throws TransformerException {
-        Process process;
-        try {
-            process = new ProcessBuilder(command)
-                    .redirectErrorStream(true)
-                    .start();
-        } catch (IOException e) {
-            throw new TransformerException("No se pudo ejecutar ImageMagick (comando '" + command[0]
-                    + "'). Asegura que esta instalado y en PATH.", e);
-        } catch (Exception e) {
-            throw new TransformerException("Error al lanzar ImageMagick (comando '" + command[0] + "')", e);
-        }
-
-        String log;
-        try (InputStream stream = process.getInputStream()) {
-            log = readProcessOutput(stream);
-        } catch (Exception e) {
-            process.destroyForcibly();
-            throw new TransformerException("Fallo al leer la salida de ImageMagick", e);
-        }
-
-        try {
-            boolean finished = process.waitFor(60, TimeUnit.SECONDS);
-            if (!finished) {
-                process.destroyForcibly();
-                throw new TransformerException("ImageMagick tardo demasiado en convertir la imagen");
-            }
-            int exitCode = process.exitValue();
-            if (exitCode != 0) {
-                throw new TransformerException("ImageMagick devolvio codigo " + exitCode
-                        + " al convertir a '" + format + "': " + log);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new TransformerException("La conversion de imagen fue interrumpida", e);
-        }
-        return log;
-    }
-
-    private static String readProcessOutput(InputStream stream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        byte[] chunk = new byte[1024];
-        int read;
-        while ((read = stream.read(chunk)) != -1) {
-            buffer.write(chunk, 0, read);
-        }
-        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
-    }
-
-    private static boolean isWindows() {
-        String os = System.getProperty("os.name");
-        return os != null && os.toLowerCase(Locale.ROOT).contains("win");
-    }
-
-    private static String resolveMagickExecutable() {
-        String configured = System.getProperty("xslt.magick");
-        if (configured != null && !configured.trim().isEmpty()) {
-            return configured.trim();
-        }
-        return "magick";
-    }
-
-    private static void convertWithImageIO(Path input, Path output, String format) throws Exception {
-        String fmt = normalizeFormat(format);
-        if ("jpg".equals(fmt)) {
-            fmt = "jpeg";
-        }
-        BufferedImage img = ImageIO.read(input.toFile());
-        if (img == null) {
-            throw new IllegalArgumentException("ImageIO no pudo leer la imagen: " + input);
-        }
-        boolean ok = ImageIO.write(img, fmt, output.toFile());
-        if (!ok) {
-            throw new IllegalArgumentException("ImageIO no soporta escribir formato: " + fmt);
-        }
-    }
-
-    private static void registerConvertedFile(Path output) {
-        if (output == null) return;
-        convertedFiles.add(output.normalize());
-    }
-
     private static void writeTextToResult(XSLProcessorContext context, String text)
             throws TransformerException {
         if (text == null) return;
@@ -290,16 +139,6 @@ public final class XsltExtensions {
         }
     }
 
-    public static void resetConvertedFiles() {
-        convertedFiles.clear();
-    }
-
-    public static List<Path> snapshotConvertedFiles() {
-        synchronized (convertedFiles) {
-            return new ArrayList<>(convertedFiles);
-        }
-    }
-
     private static String resolveNombre(XSLProcessorContext context, ElemExtensionCall element)
             throws TransformerException {
         String nombre = readAttribute("nombre", context, element);
@@ -342,7 +181,7 @@ public final class XsltExtensions {
         return node != null ? node.getTextContent() : null;
     }
 
-    private static Path resolveBaseDir(XSLProcessorContext context) {
+    static Path resolveBaseDir(XSLProcessorContext context) {
         try {
             org.w3c.dom.Node node = context != null ? context.getContextNode() : null;
             if (node != null && node.getOwnerDocument() != null) {
@@ -356,11 +195,35 @@ public final class XsltExtensions {
                     }
                 }
             }
+            Path fromSource = baseDirFromSourceTree(context, node);
+            if (fromSource != null) {
+                return fromSource;
+            }
         } catch (Exception ignored) {
         }
         return Paths.get("").toAbsolutePath();
     }
 
+    /**
+     * En transformaciones en streaming el nodo de contexto es un proxy DTM sin documentURI:
+     * se usa el systemId con el que se abrio el documento fuente.
+     */
+    private static Path baseDirFromSourceTree(XSLProcessorContext context, org.w3c.dom.Node node) {
+        if (context == null || node == null) return null;
+        XPathContext xctxt = context.getTransformer().getXPathContext();
+        int handle = xctxt.getDTMHandleFromNode(node);
+        DTM dtm = xctxt.getDTM(handle);
+        if (dtm == null) return null;
+        String systemId = dtm.getDocumentBaseURI();
+        if (isBlank(systemId)) {
+            systemId = dtm.getDocumentSystemIdentifier(handle);
+        }
+        if (isBlank(systemId) || !systemId.startsWith("file:")) {
+            return null;
+        }
+        return Paths.get(java.net.URI.create(systemId)).getParent();
+    }
+
     private static Path resolvePath(String rawPath, Path baseDir) {
         Path path = Paths.get(rawPath);
         if (path.isAbsolute()) {
@@ -0,0 +1,328 @@
+package simpleapp;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.ValidatorHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cadena de hojas XSLT aplicadas en una sola pasada. Cada paso es un {@link TransformerHandler}
+ * ({@link SAXTransformerFactory#newTransformerHandler(Templates)}) cuya salida son los eventos SAX de
+ * entrada del siguiente: entre pasos no se construye DOM ni texto intermedio.
+ * Un paso puede exigir que su entrada o su salida sea valida segun el XSD registrado para su raiz
+ * ({@link SchemaRegistry}); la validacion se intercala en la cadena como un {@link ValidatorHandler},
+ * tambien en streaming.
+ * Las hojas se compilan a traves de {@link TemplatesCache}, igual que en {@link XmlUtils#transform}.
+ */
+public final class XsltPipeline {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final List<Step> steps;
+
+    public XsltPipeline(List<Step> steps) {
+        if (steps == null || steps.isEmpty()) {
+            throw new IllegalArgumentException("La cadena XSLT necesita al menos una hoja");
+        }
+        this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    /**
+     * Cadena con las hojas en el orden indicado, tomando de cada hoja la validacion que declare
+     * con {@code <?app-validate ...?>}.
+     */
+    public static XsltPipeline fromStylesheets(List<Path> xsltPaths) throws Exception {
+        List<Step> steps = new ArrayList<>();
+        for (Path xsltPath : xsltPaths) {
+            steps.add(Step.declaredBy(xsltPath));
+        }
+        return new XsltPipeline(steps);
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public Document run(Document source) throws Exception {
+        return run(source, new TransformSession());
+    }
+
+    public Document run(Document source, TransformSession session) throws Exception {
+        DOMResult result = new DOMResult();
+        run(new DOMSource(source, source.getDocumentURI()), result, session);
+        return (Document) result.getNode();
+    }
+
+    public void run(Path sourceXml, Path output) throws Exception {
+        run(sourceXml, output, new TransformSession());
+    }
+
+    public void run(Path sourceXml, Path output, TransformSession session) throws Exception {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(sourceXml), STREAM_BUFFER_SIZE);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), STREAM_BUFFER_SIZE)) {
+            run(new StreamSource(in, sourceXml.toAbsolutePath().toUri().toString()), new StreamResult(out), session);
+        }
+    }
+
+    public void run(Source source, Result result) throws Exception {
+        run(source, result, new TransformSession());
+    }
+
+    public void run(Source source, Result result, TransformSession session) throws Exception {
+        PluginRegistryLoader.ensureDefaultLoaded();
+        List<StylesheetAnalyzer.StylesheetAnalysis> analyses = new ArrayList<>();
+        for (Step step : steps) {
+            StylesheetAnalyzer.StylesheetAnalysis analysis = StylesheetAnalyzer.analyze(step.getXsltPath(),
+                    FileStamp.of(step.getXsltPath()));
+            analyses.add(analysis);
+            session.registerStylesheet(analysis);
+        }
+
+        // Los pasos se ejecutan anidados en el mismo hilo: el classloader de la sesion ve todos los puentes
+        Thread thread = Thread.currentThread();
+        ClassLoader originalCl = thread.getContextClassLoader();
+        thread.setContextClassLoader(session.getClassLoader());
+        try {
+            TransformerFactory factory = XmlUtils.newXsltFactory(session.getClassLoader());
+            if (!factory.getFeature(SAXTransformerFactory.FEATURE)) {
+                throw new IllegalStateException("La factoria XSLT no soporta TransformerHandler: "
+                        + factory.getClass().getName());
+            }
+            SAXTransformerFactory saxFactory = (SAXTransformerFactory) factory;
+            ChainErrors errors = new ChainErrors();
+            Result head = buildChain(saxFactory, analyses, systemIdOf(source), result, session, errors);
+            try {
+                saxFactory.newTransformer().transform(source, head);
+            } catch (Exception e) {
+                errors.record(e);
+            }
+            try {
+                errors.rethrowFirst();
+            } catch (Exception e) {
+                session.conversions().discard();
+                throw e;
+            }
+            // como en XmlUtils: el resultado no se entrega con imagenes aun convirtiendose
+            session.conversions().awaitAll();
+        } finally {
+            thread.setContextClassLoader(originalCl);
+        }
+    }
+
+    /**
+     * Monta la cadena de atras hacia delante: cada paso escribe en el {@link Result} del siguiente.
+     * Devuelve el Result de cabeza, al que se envian los eventos del documento de entrada.
+     */
+    private Result buildChain(SAXTransformerFactory factory, List<StylesheetAnalyzer.StylesheetAnalysis> analyses,
+                              String systemId, Result result, TransformSession session, ChainErrors errors)
+            throws Exception {
+        Result downstream = result;
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            Step step = steps.get(i);
+            if (step.isValidateOutput()) {
+                downstream = validating(downstream, "salida del paso " + (i + 1) + " ("
+                        + step.getXsltPath().getFileName() + ")", errors);
+            }
+            StylesheetAnalyzer.StylesheetAnalysis analysis = analyses.get(i);
+            Templates templates = TemplatesCache.getInstance().get(step.getXsltPath(), analysis.getStamp(),
+                    analysis::newSource, factory);
+            TransformerHandler handler = factory.newTransformerHandler(templates);
+            // Xalan ejecuta cada paso al recibir endDocument y no propaga sus errores: se recogen aqui
+            handler.getTransformer().setErrorListener(errors);
+            session.attach(handler.getTransformer());
+            // Todos los pasos comparten la URI del documento original para resolver rutas relativas de recursos
+            if (systemId != null) {
+                handler.setSystemId(systemId);
+            }
+            handler.setResult(session.guard(downstream));
+            SAXResult stepInput = new SAXResult(handler);
+            stepInput.setLexicalHandler(handler);
+            downstream = stepInput;
+            boolean previousValidatesOutput = i > 0 && steps.get(i - 1).isValidateOutput();
+            if (step.isValidateInput() && !previousValidatesOutput) {
+                downstream = validating(downstream, "entrada del paso " + (i + 1) + " ("
+                        + step.getXsltPath().getFileName() + ")", errors);
+            }
+        }
+        return downstream;
+    }
+
+    /**
+     * Intercala la validacion contra el esquema que {@link SchemaRegistry} tenga para la raiz que llegue a ese
+     * punto de la cadena; una raiz sin esquema registrado es un fallo de validacion.
+     */
+    private static Result validating(Result downstream, String where, ChainErrors errors) throws Exception {
+        return SchemaValidationFilter.wrap(downstream, new FailingErrorHandler(where, errors))
+                .requireSchema()
+                .asResult();
+    }
+
+    private static String systemIdOf(Source source) {
+        if (source.getSystemId() != null) {
+            return source.getSystemId();
+        }
+        if (source instanceof DOMSource && ((DOMSource) source).getNode() instanceof Document) {
+            return ((Document) ((DOMSource) source).getNode()).getDocumentURI();
+        }
+        return null;
+    }
+
+    /**
+     * Paso de la cadena: una hoja XSLT y, opcionalmente, validacion XSD de su entrada y/o de su salida.
+     */
+    public static final class Step {
+        private final Path xsltPath;
+        private final boolean validateInput;
+        private final boolean validateOutput;
+
+        public Step(Path xsltPath, boolean validateInput, boolean validateOutput) {
+            this.xsltPath = xsltPath.toAbsolutePath().normalize();
+            this.validateInput = validateInput;
+            this.validateOutput = validateOutput;
+        }
+
+        public static Step of(Path xsltPath) {
+            return new Step(xsltPath, false, false);
+        }
+
+        /**
+         * Paso con la validacion que la propia hoja declara ({@link StylesheetAnalyzer#VALIDATION_PI}).
+         */
+        public static Step declaredBy(Path xsltPath) throws Exception {
+            StylesheetAnalyzer.StylesheetAnalysis analysis = StylesheetAnalyzer.analyze(xsltPath);
+            return new Step(xsltPath, analysis.isInputValidationDeclared(), analysis.isOutputValidationDeclared());
+        }
+
+        public Path getXsltPath() {
+            return xsltPath;
+        }
+
+        public boolean isValidateInput() {
+            return validateInput;
+        }
+
+        public boolean isValidateOutput() {
+            return validateOutput;
+        }
+
+        @Override
+        public String toString() {
+            String validation = validateInput && validateOutput ? " [valida entrada y salida]"
+                    : validateInput ? " [valida entrada]"
+                    : validateOutput ? " [valida salida]" : "";
+            return xsltPath.getFileName() + validation;
+        }
+    }
+
+    /**
+     * Primer error de la cadena. Un fallo de validacion tiene prioridad: al cortar el flujo a mitad de
+     * documento, Xalan suele notificar despues errores derivados que ocultarian la causa real.
+     */
+    private static final class ChainErrors implements ErrorListener {
+        private StepValidationException validation;
+        private Exception first;
+
+        private synchronized void record(Exception error) {
+            for (Throwable current = error; current != null; current = current.getCause()) {
+                if (current instanceof StepValidationException) {
+                    if (validation == null) {
+                        validation = (StepValidationException) current;
+                    }
+                    return;
+                }
+            }
+            if (first == null) {
+                first = error;
+            }
+        }
+
+        private synchronized void rethrowFirst() throws Exception {
+            if (validation != null) {
+                throw validation;
+            }
+            if (first != null) {
+                throw first;
+            }
+        }
+
+        @Override
+        public void warning(TransformerException exception) {
+            System.err.println("Aviso XSLT: " + exception.getMessageAndLocation());
+        }
+
+        @Override
+        public void error(TransformerException exception) throws TransformerException {
+            record(exception);
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(TransformerException exception) throws TransformerException {
+            record(exception);
+            throw exception;
+        }
+    }
+
+    private static final class FailingErrorHandler implements ErrorHandler {
+        private final String where;
+        private final ChainErrors errors;
+
+        private FailingErrorHandler(String where, ChainErrors errors) {
+            this.where = where;
+            this.errors = errors;
+        }
+
+        @Override
+        public void warning(SAXParseException exception) {
+            // los avisos del esquema no detienen la cadena
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            fail(exception);
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            fail(exception);
+        }
+
+        private void fail(SAXParseException exception) throws SAXException {
+            StepValidationException failure = new StepValidationException(where, exception);
+            errors.record(failure);
+            throw failure;
+        }
+    }
+
+    /**
+     * Fallo de validacion XSD dentro de la cadena, con el paso en el que se produjo.
+     */
+    public static final class StepValidationException extends SAXException {
+        private StepValidationException(String where, SAXParseException cause) {
+            super("Validacion XSD fallida en la " + where + ": " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package simpleapp;
+
+import org.w3c.dom.Document;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Coleccion abierta directamente desde su ZIP, sin extraerlo entero. El XML de la coleccion es la primera
+ * entrada {@code .xml} del directorio central y se lee del flujo de la entrada; el resto (las imagenes de
+ * {@code resources/}) se extrae a la carpeta de trabajo solo cuando alguien lo necesita: un elemento de
+ * extension como {@code changeImageFormat} ({@link #ensureExtracted(Path)}) o la exportacion
+ * ({@link #extractResources()}).
+ * <p>
+ * El documento se lee con la URI que tendria en la carpeta de trabajo, asi que las rutas relativas de los
+ * recursos se resuelven igual que tras una extraccion completa. Con {@code -Dxslt.zip.lazy=false} la
+ * interfaz y el modo por lotes vuelven a extraer el ZIP entero ({@link ZipUtils#extractZip}).
+ * <p>
+ * Los limites de {@link ZipUtils} valen tambien aqui: el numero de entradas ({@code -Dxslt.zip.max.entries})
+ * se comprueba al abrir y el total descomprimido ({@code -Dxslt.zip.max.mb}) se acumula con los bytes que
+ * escribe cada extraccion, no con los tamanos que declara el ZIP.
+ */
+public final class ZipCollection implements Closeable {
+    private static final String LAZY_PROP = "xslt.zip.lazy";
+    // colecciones abiertas por carpeta de trabajo, para localizar la entrada de una ruta pedida por una extension
+    private static final Map<Path, ZipCollection> OPEN = new ConcurrentHashMap<>();
+
+    private final ZipFile zip;
+    private final Path zipPath;
+    private final Path workDir;
+    private final Map<Path, ZipEntry> entries;
+    private final Map<Path, Object> extractLocks = new ConcurrentHashMap<>();
+    private final ZipEntry xmlEntry;
+    private final long maxBytes = ZipUtils.defaultMaxBytes();
+    // bytes descomprimidos a disco por todas las extracciones de esta coleccion
+    private final AtomicLong extractedBytes = new AtomicLong();
+    private volatile boolean resourcesExtracted;
+
+    private ZipCollection(ZipFile zip, Path zipPath, Path workDir, Map<Path, ZipEntry> entries, ZipEntry xmlEntry) {
+        this.zip = zip;
+        this.zipPath = zipPath;
+        this.workDir = workDir;
+        this.entries = entries;
+        this.xmlEntry = xmlEntry;
+    }
+
+    /**
+     * Indica si la carga de ZIP trabaja sin extraccion completa (por defecto, si).
+     */
+    public static boolean isLazyEnabled() {
+        return Boolean.parseBoolean(System.getProperty(LAZY_PROP, "true"));
+    }
+
+    /**
+     * Abre el ZIP leyendo solo su directorio central. {@code workDir} es la carpeta donde se extraeran las
+     * entradas que se pidan y donde las extensiones dejan sus ficheros convertidos.
+     */
+    public static ZipCollection open(Path zipPath, Path workDir) throws IOException {
+        Path base = workDir.toAbsolutePath().normalize();
+        ZipFile zip = new ZipFile(zipPath.toFile());
+        try {
+            Map<Path, ZipEntry> entries = new LinkedHashMap<>();
+            ZipEntry xmlEntry = null;
+            int maxEntries = ZipUtils.defaultMaxEntries();
+            int count = 0;
+            Enumeration<? extends ZipEntry> all = zip.entries();
+            while (all.hasMoreElements()) {
+                ZipEntry entry = all.nextElement();
+                if (maxEntries > 0 && ++count > maxEntries) {
+                    throw ZipUtils.tooManyEntries(maxEntries);
+                }
+                Path target = ZipUtils.entryTarget(base, entry.getName());
+                if (entry.isDirectory()) continue;
+                entries.put(target, entry);
+                if (xmlEntry == null && isCollectionXml(entry)) {
+                    xmlEntry = entry;
+                }
+            }
+            ZipCollection collection = new ZipCollection(zip, zipPath, base, entries, xmlEntry);
+            OPEN.put(base, collection);
+            return collection;
+        } catch (IOException | RuntimeException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Heuristica de siempre: el primer .xml del directorio central describe la coleccion. La comparte
+     * {@link ExtractionCache#collectionXml(Path, Path)} para que un arbol de la cache elija el mismo XML.
+     */
+    static boolean isCollectionXml(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getName().toLowerCase(Locale.ROOT).endsWith(".xml");
+    }
+
+    public boolean hasXml() {
+        return xmlEntry != null;
+    }
+
+    /**
+     * Ruta del XML de la coleccion dentro de la carpeta de trabajo. No existe en disco hasta
+     * {@link #extractXml()}, pero es la base para resolver los recursos.
+     */
+    public Path getXmlPath() {
+        return xmlEntry != null ? workDir.resolve(xmlEntry.getName().replace('\\', '/')).normalize() : null;
+    }
+
+    /**
+     * Tamano descomprimido del XML segun el directorio central (-1 si el ZIP no lo indica).
+     */
+    public long getXmlSize() {
+        return xmlEntry != null ? xmlEntry.getSize() : -1;
+    }
+
+    /**
+     * Indica si el XML supera el umbral del modo streaming; sin tamano conocido se trata como grande.
+     */
+    public boolean shouldStreamXml() {
+        long size = getXmlSize();
+        return XmlUtils.shouldStream(size < 0 ? Long.MAX_VALUE : size);
+    }
+
+    public Path getWorkDir() {
+        return workDir;
+    }
+
+    public InputStream openXml() throws IOException {
+        requireXml();
+        return zip.getInputStream(xmlEntry);
+    }
+
+    /**
+     * Lee y valida el XML de la coleccion directamente de la entrada del ZIP.
+     */
+    public Document parseCollection() throws Exception {
+        requireXml();
+        return XmlUtils.parseCollection(this::openXml, getXmlPath());
+    }
+
+    /**
+     * Extrae solo el XML (modo streaming, que trabaja sobre el fichero) y devuelve su ruta.
+     */
+    public Path extractXml() throws IOException {
+        requireXml();
+        Path xml = getXmlPath();
+        extract(xml, xmlEntry);
+        return xml;
+    }
+
+    /**
+     * Extrae las entradas bajo una carpeta {@code resources} que aun no esten en disco; es lo que la
+     * exportacion incluye junto al resultado. Devuelve cuantas se extrajeron.
+     */
+    public synchronized int extractResources() throws IOException {
+        if (resourcesExtracted) return 0;
+        int extracted = 0;
+        for (Map.Entry<Path, ZipEntry> entry : entries.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Extraccion del ZIP cancelada");
+            }
+            if (isResourcesPath(workDir.relativize(entry.getKey())) && extract(entry.getKey(), entry.getValue())) {
+                extracted++;
+            }
+        }
+        resourcesExtracted = true;
+        return extracted;
+    }
+
+    /**
+     * Guarda el ZIP en {@link ExtractionCache} para que la proxima apertura lo enlace ya extraido. Se llama al
+     * exportar, tras {@link #extractResources()}: los recursos ya estan en disco y solo falta extraer el resto
+     * de entradas (normalmente el XML). Si el ZIP no cabe en la cache no se extrae nada, y si un fichero de la
+     * carpeta de trabajo ya no coincide con su entrada (lo sustituyo una extension) no se guarda.
+     */
+    public void storeInCache() {
+        ExtractionCache cache = ExtractionCache.getInstance();
+        try {
+            if (!cache.accepts(zipPath)) return;
+            Map<Path, Path> files = new LinkedHashMap<>();
+            for (Map.Entry<Path, ZipEntry> entry : entries.entrySet()) {
+                Path target = entry.getKey();
+                extract(target, entry.getValue());
+                long declared = entry.getValue().getSize();
+                if (declared >= 0 && Files.size(target) != declared) return;
+                files.put(workDir.relativize(target), target);
+            }
+            cache.storeTree(zipPath, files);
+        } catch (IOException e) {
+            System.err.println("[zip-cache] No se pudo guardar " + zipPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Extrae los recursos de la coleccion abierta cuya carpeta de trabajo contiene {@code dir} (la carpeta del
+     * documento que se transforma). Lo usan los plugins que leen recursos, que no pueden pedir fichero a fichero.
+     */
+    public static void ensureResourcesExtracted(Path dir) throws IOException {
+        if (dir == null) return;
+        Path target = dir.toAbsolutePath().normalize();
+        for (ZipCollection collection : OPEN.values()) {
+            if (target.startsWith(collection.workDir) && !collection.resourcesExtracted) {
+                collection.extractResources();
+            }
+        }
+    }
+
+    /**
+     * Garantiza que el fichero existe en disco: si no existe y pertenece a una coleccion abierta, se extrae
+     * su entrada en ese momento. Devuelve si el fichero existe al terminar.
+     */
+    public static boolean ensureExtracted(Path file) throws IOException {
+        if (file == null) return false;
+        if (Files.exists(file)) return true;
+        Path target = file.toAbsolutePath().normalize();
+        for (ZipCollection collection : OPEN.values()) {
+            if (!target.startsWith(collection.workDir)) continue;
+            ZipEntry entry = collection.entries.get(target);
+            if (entry != null) {
+                collection.extract(target, entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        OPEN.remove(workDir, this);
+        zip.close();
+    }
+
+    /**
+     * Extrae una entrada si aun no esta en disco. Se escribe en un temporal y se mueve al final, de modo que
+     * otro hilo nunca ve un fichero a medias; si se supera el limite de bytes de la coleccion se lanza
+     * {@link ZipUtils.ZipLimitException} y el temporal se borra. Devuelve si se extrajo ahora.
+     */
+    private boolean extract(Path target, ZipEntry entry) throws IOException {
+        synchronized (extractLocks.computeIfAbsent(target, k -> new Object())) {
+            if (Files.exists(target)) return false;
+            Files.createDirectories(target.getParent());
+            Path partial = Files.createTempFile(target.getParent(), ".extract-", ".tmp");
+            try {
+                try (InputStream in = zip.getInputStream(entry);
+                     OutputStream out = Files.newOutputStream(partial)) {
+                    byte[] chunk = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(chunk)) > 0) {
+                        if (maxBytes > 0 && extractedBytes.addAndGet(read) > maxBytes) {
+                            throw ZipUtils.tooManyBytes(maxBytes);
+                        }
+                        out.write(chunk, 0, read);
+                    }
+                }
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(partial);
+            }
+            return true;
+        }
+    }
+
+    private void requireXml() {
+        if (xmlEntry == null) {
+            throw new IllegalStateException("No se encontro ningun XML dentro del ZIP");
+        }
+    }
+
+    private static boolean isResourcesPath(Path relative) {
+        for (Path part : relative) {
+            if ("resources".equals(part.toString().toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
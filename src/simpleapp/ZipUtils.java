@@ -1,34 +1,385 @@
 package simpleapp;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
+/**
+ * Extraccion de ZIP con {@link ZipFile}: el directorio central da todas las entradas de antemano, asi que las
+ * carpetas se crean en una sola pasada y los ficheros se descomprimen en paralelo en un pool acotado
+ * ({@code -Dxslt.zip.threads}, por defecto numero de CPUs). Cada hilo escribe con un {@link FileChannel} desde
+ * un buffer propio de 1 MB.
+ * <p>
+ * Los limites de tamano descomprimido total ({@code -Dxslt.zip.max.mb}) y de numero de entradas
+ * ({@code -Dxslt.zip.max.entries}) se comprueban mientras se escribe, con los bytes realmente descomprimidos y
+ * no con los tamanos que declara el ZIP: un ZIP malicioso no llega a llenar el disco. {@link ZipCollection}
+ * aplica los mismos limites a la apertura sin extraccion completa.
+ */
 public class ZipUtils {
-    public static void extractZip(Path zipPath, Path destDir) throws IOException {
-        Files.createDirectories(destDir);
-        try (InputStream fis = Files.newInputStream(zipPath);
-             ZipInputStream zis = new ZipInputStream(new BufferedInputStream(fis))) {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                Path outPath = destDir.resolve(entry.getName()).normalize();
-                if (!outPath.startsWith(destDir)) {
-                    throw new IOException("Entrada ZIP fuera del directorio destino: " + entry.getName());
+    private static final String THREADS_PROP = "xslt.zip.threads";
+    private static final String MAX_MB_PROP = "xslt.zip.max.mb";
+    private static final String MAX_ENTRIES_PROP = "xslt.zip.max.entries";
+    private static final long DEFAULT_MAX_MB = 16 * 1024;
+    private static final int DEFAULT_MAX_ENTRIES = 100_000;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // FileChannel escribe sin copia intermedia desde un buffer directo (uno de heap lo copia antes a uno temporal)
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static ForkJoinPool pool;
+
+    public static ExtractionStats extractZip(Path zipPath, Path destDir) throws IOException {
+        return extractZip(zipPath, destDir, defaultMaxBytes(), defaultMaxEntries());
+    }
+
+    /**
+     * Limite de bytes descomprimidos configurado con {@code -Dxslt.zip.max.mb} (0 o negativo: sin limite).
+     */
+    static long defaultMaxBytes() {
+        return readLong(MAX_MB_PROP, DEFAULT_MAX_MB) * 1024 * 1024;
+    }
+
+    static int defaultMaxEntries() {
+        return (int) readLong(MAX_ENTRIES_PROP, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Extrae el ZIP en {@code destDir}. {@code maxBytes} y {@code maxEntries} acotan el total descomprimido y
+     * el numero de entradas (0 o negativo: sin limite); al superarlos se lanza {@link ZipLimitException} y lo
+     * escrito hasta entonces queda a medias, igual que si se cancela.
+     */
+    public static ExtractionStats extractZip(Path zipPath, Path destDir, long maxBytes, int maxEntries)
+            throws IOException {
+        long start = System.nanoTime();
+        Path base = destDir.toAbsolutePath().normalize();
+        Files.createDirectories(base);
+        try (ZipFile zip = new ZipFile(zipPath.toFile())) {
+            List<Pending> files = new ArrayList<>();
+            TreeSet<Path> dirs = new TreeSet<>();
+            int count = 0;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (maxEntries > 0 && ++count > maxEntries) {
+                    throw tooManyEntries(maxEntries);
                 }
+                Path target = entryTarget(base, entry.getName());
                 if (entry.isDirectory()) {
-                    Files.createDirectories(outPath);
+                    dirs.add(target);
                 } else {
-                    Files.createDirectories(outPath.getParent());
-                    Files.copy(zis, outPath, StandardCopyOption.REPLACE_EXISTING);
+                    files.add(new Pending(entry, target));
+                    if (!target.getParent().equals(base)) {
+                        dirs.add(target.getParent());
+                    }
                 }
-                zis.closeEntry();
             }
+            // Una sola pasada de carpetas, en orden (los padres antes que los hijos), antes de repartir ficheros
+            for (Path dir : dirs) {
+                Files.createDirectories(dir);
+            }
+            Extraction extraction = new Extraction(zip, files, maxBytes);
+            extraction.run();
+            return new ExtractionStats(extraction.timings(), extraction.bytes.get(), dirs.size(),
+                    extraction.threads, System.nanoTime() - start);
         }
     }
-}
 
+    /**
+     * Ruta de destino de una entrada dentro de {@code base}, que debe ser absoluta y normalizada. Los ZIP
+     * creados en Windows pueden usar '\' como separador; las entradas que salen de {@code base} se rechazan.
+     */
+    static Path entryTarget(Path base, String entryName) throws IOException {
+        Path target = base.resolve(entryName.replace('\\', '/')).normalize();
+        if (!target.startsWith(base)) {
+            throw new IOException("Entrada ZIP fuera del directorio destino: " + entryName);
+        }
+        return target;
+    }
+
+    static ZipLimitException tooManyEntries(int maxEntries) {
+        return new ZipLimitException("El ZIP tiene mas de " + maxEntries + " entradas");
+    }
+
+    static ZipLimitException tooManyBytes(long maxBytes) {
+        return new ZipLimitException(String.format(Locale.ROOT,
+                "El ZIP supera el limite de %.1f MB descomprimidos", maxBytes / (1024.0 * 1024.0)));
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount());
+        }
+        return pool;
+    }
+
+    private static int threadCount() {
+        return (int) Math.max(1, readLong(THREADS_PROP, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static long readLong(String property, long defaultValue) {
+        String configured = System.getProperty(property);
+        if (configured != null && !configured.trim().isEmpty()) {
+            try {
+                return Long.parseLong(configured.trim());
+            } catch (NumberFormatException ignored) {
+                // valor invalido: se usa el valor por defecto
+            }
+        }
+        return defaultValue;
+    }
+
+    private static final class Pending {
+        private final ZipEntry entry;
+        private final Path target;
+        private long bytes;
+        private long nanos;
+
+        private Pending(ZipEntry entry, Path target) {
+            this.entry = entry;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Reparto de los ficheros: cada hilo toma la siguiente entrada pendiente hasta agotarlas. Un fallo o una
+     * cancelacion detiene al resto en el siguiente bloque que escriban.
+     */
+    private static final class Extraction {
+        private final ZipFile zip;
+        private final List<Pending> files;
+        private final long maxBytes;
+        private final int threads;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        private Extraction(ZipFile zip, List<Pending> files, long maxBytes) {
+            this.zip = zip;
+            this.files = files;
+            this.maxBytes = maxBytes;
+            this.threads = Math.max(1, Math.min(threadCount(), files.size()));
+        }
+
+        private void run() throws IOException {
+            if (threads == 1) {
+                // un solo hilo (o un solo fichero): se extrae en el hilo que llama, que es el que se cancela
+                drain();
+                return;
+            }
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(getPool().submit(() -> {
+                    drain();
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            boolean interrupted = false;
+            // Se espera a todos los hilos, tambien al cancelar: quien llama suele borrar la carpeta a continuacion
+            for (int i = 0; i < workers.size(); ) {
+                try {
+                    workers.get(i).get();
+                    i++;
+                } catch (InterruptedException e) {
+                    // La interfaz cancela la carga interrumpiendo el hilo que extrae
+                    interrupted = true;
+                    stopped.set(true);
+                } catch (ExecutionException e) {
+                    i++;
+                    // ForkJoinPool envuelve las excepciones comprobadas en RuntimeException
+                    Throwable cause = e.getCause();
+                    while (!(cause instanceof IOException) && cause.getCause() != null) {
+                        cause = cause.getCause();
+                    }
+                    if (failure == null && !(cause instanceof StoppedException)) {
+                        failure = cause instanceof IOException io ? io
+                                : new IOException("No se pudo extraer el ZIP: " + cause, cause);
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Extraccion del ZIP cancelada");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void drain() throws IOException {
+            int index;
+            while ((index = next.getAndIncrement()) < files.size()) {
+                checkStopped();
+                extract(files.get(index));
+            }
+        }
+
+        private void extract(Pending file) throws IOException {
+            long start = System.nanoTime();
+            byte[] chunk = CHUNKS.get();
+            ByteBuffer buffer = BUFFERS.get();
+            try (InputStream in = zip.getInputStream(file.entry);
+                 FileChannel out = FileChannel.open(file.target, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                int read;
+                while ((read = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+                    checkStopped();
+                    long total = bytes.addAndGet(read);
+                    if (maxBytes > 0 && total > maxBytes) {
+                        stopped.set(true);
+                        throw tooManyBytes(maxBytes);
+                    }
+                    buffer.clear();
+                    buffer.put(chunk, 0, read).flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    file.bytes += read;
+                }
+            } catch (IOException | RuntimeException e) {
+                stopped.set(true);
+                throw e;
+            }
+            file.nanos = System.nanoTime() - start;
+        }
+
+        private void checkStopped() throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                stopped.set(true);
+                throw new InterruptedIOException("Extraccion del ZIP cancelada");
+            }
+            if (stopped.get()) {
+                throw new StoppedException();
+            }
+        }
+
+        private List<EntryTiming> timings() {
+            List<EntryTiming> timings = new ArrayList<>(files.size());
+            for (Pending file : files) {
+                timings.add(new EntryTiming(file.entry.getName(), file.bytes, file.nanos));
+            }
+            return timings;
+        }
+    }
+
+    /**
+     * Aviso interno a los demas hilos de que la extraccion ya fallo en otro.
+     */
+    private static final class StoppedException extends IOException {
+        private StoppedException() {
+            super("Extraccion del ZIP detenida");
+        }
+    }
+
+    /**
+     * El ZIP supera el limite de tamano descomprimido o de numero de entradas.
+     */
+    public static final class ZipLimitException extends IOException {
+        private ZipLimitException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Tiempo y bytes escritos de una entrada.
+     */
+    public static final class EntryTiming {
+        private final String name;
+        private final long bytes;
+        private final long nanos;
+
+        private EntryTiming(String name, long bytes, long nanos) {
+            this.name = name;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %,d bytes en %.1f ms", name, bytes, nanos / 1_000_000.0);
+        }
+    }
+
+    /**
+     * Resultado de una extraccion: totales y tiempo de cada entrada, en el orden del ZIP.
+     */
+    public static final class ExtractionStats {
+        private final List<EntryTiming> entries;
+        private final long bytes;
+        private final int directories;
+        private final int threads;
+        private final long nanos;
+
+        private ExtractionStats(List<EntryTiming> entries, long bytes, int directories, int threads, long nanos) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.bytes = bytes;
+            this.directories = directories;
+            this.threads = threads;
+            this.nanos = nanos;
+        }
+
+        public List<EntryTiming> entries() {
+            return entries;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public int threads() {
+            return threads;
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * Las {@code n} entradas que mas tardaron.
+         */
+        public List<EntryTiming> slowest(int n) {
+            List<EntryTiming> sorted = new ArrayList<>(entries);
+            sorted.sort(Comparator.comparingLong(EntryTiming::nanos).reversed());
+            return sorted.subList(0, Math.min(n, sorted.size()));
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format(Locale.ROOT, "ZIP: %d ficheros, %d carpetas, %.1f MB en %.1f ms (%.1f MB/s, %d hilos)",
+                    entries.size(), directories, bytes / (1024.0 * 1024.0), nanos / 1_000_000.0,
+                    bytes / (1024.0 * 1024.0) / seconds, threads);
+        }
+    }
+}